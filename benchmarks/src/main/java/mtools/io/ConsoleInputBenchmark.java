@@ -0,0 +1,125 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.io;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads a few megabytes of numbers, one per line, through {@link MConsole}:
+ * line by line through the Scanner and as tokens in bulk input mode.
+ * @author Noah
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class ConsoleInputBenchmark {
+	
+	@Param({"500000"})
+	public int valueCount;
+	
+	private byte[] intInput;
+	private byte[] floatInput;
+	private int[] ints;
+	private float[] floats;
+	
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		StringBuilder intText = new StringBuilder();
+		StringBuilder floatText = new StringBuilder();
+		for(int i = 0; i < valueCount; i++) {
+			intText.append(random.nextInt()).append('\n');
+			floatText.append(random.nextInt(1_000_000) / 100.0f).append('\n');
+		}
+		intInput = intText.toString().getBytes(StandardCharsets.US_ASCII);
+		floatInput = floatText.toString().getBytes(StandardCharsets.US_ASCII);
+		ints = new int[valueCount];
+		floats = new float[valueCount];
+	}
+	
+	@Benchmark
+	public int[] scannerInts() {
+		MConsole console = new MConsole(new ByteArrayInputStream(intInput));
+		for(int i = 0; i < valueCount; i++) {
+			ints[i] = console.getInputInt();
+		}
+		return ints;
+	}
+	
+	@Benchmark
+	public int[] bulkInts() {
+		MConsole console = new MConsole(new ByteArrayInputStream(intInput));
+		console.enableBulkInput();
+		console.readInts(ints);
+		return ints;
+	}
+	
+	@Benchmark
+	public float[] scannerFloats() {
+		MConsole console = new MConsole(new ByteArrayInputStream(floatInput));
+		for(int i = 0; i < valueCount; i++) {
+			floats[i] = console.getInputFloat();
+		}
+		return floats;
+	}
+	
+	@Benchmark
+	public float[] bulkFloats() {
+		MConsole console = new MConsole(new ByteArrayInputStream(floatInput));
+		console.enableBulkInput();
+		console.readFloats(floats);
+		return floats;
+	}
+}
@@ -0,0 +1,150 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Throughput and per call latency of {@link MFileLogger#log(String, int)} from one and from four threads.
+ * The file is written to a temp directory that is deleted after every trial.
+ * In asynchronous mode the numbers are the cost to the logging thread.  The queue fills up within an iteration and
+ * the rest of it is dropped, which is cheaper than queueing, so read the score together with the "dropped" counter.
+ * The queue is drained between iterations.
+ * @author Noah
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class FileLoggerBenchmark {
+	
+	/**
+	 * Reports the records dropped on a full queue during each iteration next to the score.
+	 * Only the first thread counts them, the drop count belongs to the logger, not to a thread.
+	 */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Drops {
+		public long dropped;
+		private long droppedBefore;
+		private boolean counting;
+		
+		@Setup(Level.Iteration)
+		public void start(FileLoggerBenchmark bench, ThreadParams params) {
+			dropped = 0;
+			counting = params.getThreadIndex() == 0;
+			droppedBefore = bench.logger.getDroppedCount();
+		}
+		
+		@TearDown(Level.Iteration)
+		public void stop(FileLoggerBenchmark bench) {
+			if(counting)
+				dropped = bench.logger.getDroppedCount() - droppedBefore;
+		}
+	}
+	
+	@Param({"0", "1"})
+	public int layout;
+	
+	@Param({"false", "true"})
+	public boolean async;
+	
+	private File directory;
+	private MFileLogger logger;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("mtools-bench").toFile();
+		logger = new MFileLogger(new File(directory, "bench.log").getPath());
+		logger.setLayout(layout);
+		logger.setAsynchronous(async);
+	}
+	
+	/**
+	 * Lets the writer thread empty the queue, so every iteration starts from the same place.
+	 * @throws InterruptedException
+	 */
+	@TearDown(Level.Iteration)
+	public void drain() throws InterruptedException {
+		while(logger.getQueueSize() > 0) {
+			Thread.sleep(1);
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		logger.close();
+		for(File f : directory.listFiles()) {
+			f.delete();
+		}
+		directory.delete();
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public void logSingleThread(Drops drops) {
+		logger.log("Connection accepted from 10.0.0.1 on port 8080", LogSeverity.INFORMATION);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public void logFourThreads(Drops drops) {
+		logger.log("Connection accepted from 10.0.0.1 on port 8080", LogSeverity.INFORMATION);
+	}
+}
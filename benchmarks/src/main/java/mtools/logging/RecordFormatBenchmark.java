@@ -0,0 +1,113 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of taking the timestamp and encoding a record without any I/O.
+ * Lives in the mtools.logging package to reach the package private {@link RecordEncoder}.
+ * @author Noah
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class RecordFormatBenchmark {
+	
+	private static final String MESSAGE = "Connection accepted from 10.0.0.1 on port 8080, \"keep-alive\"";
+	
+	private RecordEncoder encoder;
+	private ThrowableRenderer renderer;
+	private Throwable thrown;
+	private long epochMicros;
+	
+	@Setup
+	public void setUp() {
+		encoder = new RecordEncoder();
+		renderer = new ThrowableRenderer();
+		thrown = new IllegalStateException("Benchmark exception");
+		epochMicros = LogRecord.currentEpochMicros();
+	}
+	
+	@Benchmark
+	public long clock() {
+		return LogRecord.currentEpochMicros();
+	}
+	
+	@Benchmark
+	public int timestamp() {
+		encoder.reset();
+		encoder.writeTimestamp(epochMicros);
+		return encoder.size();
+	}
+	
+	@Benchmark
+	public int jsonRecord() {
+		encoder.reset();
+		encoder.writeJsonRecord(epochMicros, LogSeverity.INFORMATION, FacilityNumbers.LOCAL_USE_0, "bench", "1234", "-", null, MESSAGE, null, renderer);
+		return encoder.size();
+	}
+	
+	@Benchmark
+	public int textRecord() {
+		encoder.reset();
+		encoder.writeTextRecord(epochMicros, LogSeverity.INFORMATION, "1234", "-", MESSAGE);
+		return encoder.size();
+	}
+	
+	@Benchmark
+	public int repeatedStackTrace() {
+		encoder.reset();
+		encoder.writeUtf8(MESSAGE);
+		renderer.writeText(encoder, thrown, epochMicros);
+		return encoder.size();
+	}
+}
@@ -0,0 +1,140 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What a short-lived program pays for {@link MLog}: the init calls, and the first record after them, eager and lazy.
+ * Every measurement is a single call in a fresh JVM, so class loading and the first file, socket and thread are included.
+ * {@link #noLogger(Unconfigured)} is the cost of a log call when no logger was initialized.
+ * @author Noah
+ *
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(8)
+public class StartupBenchmark {
+	
+	/**
+	 * A temp file for the file logger, and MLog back to no loggers after the call.
+	 */
+	@State(Scope.Benchmark)
+	public static class Loggers {
+		@Param({"false", "true"})
+		public boolean lazy;
+		
+		@Param({"false", "true"})
+		public boolean async;
+		
+		private File logFile;
+		
+		@Setup
+		public void setUp() throws IOException {
+			logFile = File.createTempFile("mtools-startup", ".log");
+			MLog.setLazyInit(lazy);
+		}
+		
+		@TearDown
+		public void tearDown() {
+			MLog.unregisterShutdownHook();
+			MLog.shutdown();
+			MLog.fileLog = null;
+			MLog.sysLog = null;
+			logFile.delete();
+		}
+		
+		void init() {
+			MLog.initFileLogger(logFile.getPath());
+			MLog.initSysLogger("bench", FacilityNumbers.LOCAL_USE_0, InetAddress.getLoopbackAddress());
+			if(async) {
+				MLog.fileLog.setAsynchronous(true);
+				MLog.sysLog.setAsynchronous(true);
+			}
+		}
+	}
+	
+	/**
+	 * MLog without any logger.  Has no parameters, so {@link StartupBenchmark#noLogger(Unconfigured)} only runs once.
+	 */
+	@State(Scope.Benchmark)
+	public static class Unconfigured {
+		@Setup
+		public void setUp() {
+			MLog.fileLog = null;
+			MLog.sysLog = null;
+		}
+	}
+	
+	@Benchmark
+	public void initOnly(Loggers loggers) {
+		loggers.init();
+	}
+	
+	@Benchmark
+	public void initAndFirstLog(Loggers loggers) {
+		loggers.init();
+		MLog.log("Started", LogSeverity.INFORMATION);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Warmup(iterations = 5, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	@Fork(2)
+	public void noLogger(Unconfigured unconfigured) {
+		MLog.log("Nothing is listening", LogSeverity.INFORMATION);
+	}
+}
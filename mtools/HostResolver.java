@@ -0,0 +1,103 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Looks up host names and addresses for the host cache in {@link MUtils}.
+ * {@link #SYSTEM} asks the operating system through {@link InetAddress}.  Tests can pass their own
+ * implementation to {@link MUtils#setHostResolver(HostResolver)} so nothing depends on the real DNS.
+ * @author Noah
+ *
+ */
+public interface HostResolver {
+	
+	/**
+	 * Resolves through {@link InetAddress}.
+	 */
+	HostResolver SYSTEM = new HostResolver() {
+		@Override
+		public String getLocalHostName() throws UnknownHostException {
+			return InetAddress.getLocalHost().getHostName();
+		}
+		
+		@Override
+		public String getLocalCanonicalHostName() throws UnknownHostException {
+			return InetAddress.getLocalHost().getCanonicalHostName();
+		}
+		
+		@Override
+		public InetAddress getLocalAddress() throws UnknownHostException {
+			return InetAddress.getLocalHost();
+		}
+		
+		@Override
+		public InetAddress getByName(String host) throws UnknownHostException {
+			return InetAddress.getByName(host);
+		}
+	};
+	
+	/**
+	 * Returns the name of the local host.
+	 * @return
+	 * @throws UnknownHostException
+	 */
+	String getLocalHostName() throws UnknownHostException;
+	
+	/**
+	 * Returns the fully qualified domain name of the local host.
+	 * @return
+	 * @throws UnknownHostException
+	 */
+	String getLocalCanonicalHostName() throws UnknownHostException;
+	
+	/**
+	 * Returns the address of the local host.
+	 * @return
+	 * @throws UnknownHostException
+	 */
+	InetAddress getLocalAddress() throws UnknownHostException;
+	
+	/**
+	 * Resolves a host name or a textual IP address.
+	 * @param host
+	 * @return
+	 * @throws UnknownHostException
+	 */
+	InetAddress getByName(String host) throws UnknownHostException;
+}
@@ -37,13 +37,438 @@
 package mtools;
 
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 
 /**
  * A class that provides helpful utilities.
+ * <p>
+ * The clock methods are shared by the loggers.  {@link #currentTimeMicros()} reads a cached time that a background
+ * ticker thread updates every millisecond by default, which costs a few nanoseconds instead of a call to the system clock.
+ * See {@link #setClockResolution(long)} and {@link #setPreciseClock(boolean)}.  {@link #writeTimestamp(long, byte[], int)}
+ * renders an ISO-8601 timestamp by copying the date and time of the current second, which is rendered once per second.
+ * <p>
+ * The host methods keep the names and addresses of the local host and of remote hosts, such as a syslog server,
+ * in a cache with a time to live.  The cached methods never wait for a lookup: expired entries are looked up again on a
+ * background thread while the old value is still handed out.  See {@link #setHostResolver(HostResolver)} and
+ * {@link #setHostCacheTtl(long)}.
  * @author Noah
  *
  */
 public class MUtils {
-
+	
+	/**
+	 * The length of a timestamp written by {@link #writeTimestamp(long, byte[], int)}.
+	 */
+	public static final int TIMESTAMP_LENGTH = 27;
+	
+	private static final long SECONDS_PER_DAY = 86_400L;
+	//"yyyy-MM-ddTHH:mm:ss."
+	private static final int PREFIX_LENGTH = 20;
+	
+	private static final Clock CLOCK = Clock.systemUTC();
+	
+	private static volatile long cachedMicros = preciseTimeMicros();
+	private static volatile long resolutionMicros = 1000;
+	private static volatile boolean precise = false;
+	private static volatile Thread ticker;
+	
+	private static final long DEFAULT_HOST_TTL_MILLIS = 300_000;
+	//Failed lookups are tried again after this long at the latest.
+	private static final long HOST_RETRY_MILLIS = 10_000;
+	
+	private static volatile HostResolver hostResolver = HostResolver.SYSTEM;
+	private static volatile long hostTtlNanos = DEFAULT_HOST_TTL_MILLIS * 1_000_000L;
+	private static final HostEntry localHost = new HostEntry();
+	private static final ConcurrentHashMap<String, HostEntry> remoteHosts = new ConcurrentHashMap<String, HostEntry>();
+	private static ExecutorService resolverThread;
+	
+	private static volatile TimestampPrefix lastPrefix = new TimestampPrefix(Long.MIN_VALUE);
+	
+	/**
+	 * The rendered date and time of one second, replaced as a whole so readers never see half of it.
+	 */
+	private static final class TimestampPrefix {
+		final long epochSecond;
+		final byte[] bytes = new byte[PREFIX_LENGTH];
+		
+		TimestampPrefix(long epochSecond) {
+			this.epochSecond = epochSecond;
+			if(epochSecond != Long.MIN_VALUE)
+				renderPrefix(epochSecond, bytes);
+		}
+	}
+	
+	/**
+	 * The local host identity, or one remote address, with the time it runs out.
+	 */
+	private static final class HostEntry {
+		volatile LocalIdentity identity;
+		volatile InetAddress address;
+		volatile long expiresNanos;
+		final AtomicBoolean refreshing = new AtomicBoolean();
+		
+		//Starts out expired.
+		HostEntry() {
+			expiresNanos = System.nanoTime();
+		}
+		
+		boolean isExpired() {
+			return System.nanoTime() - expiresNanos >= 0;
+		}
+	}
+	
+	/**
+	 * The names of the local host, looked up together.  "-" stands for a name that could not be found.
+	 */
+	private static final class LocalIdentity {
+		final String hostName;
+		final String fqdn;
+		final String ipAddress;
+		
+		LocalIdentity(String hostName, String fqdn, String ipAddress) {
+			this.hostName = hostName;
+			this.fqdn = fqdn;
+			this.ipAddress = ipAddress;
+		}
+	}
+	
+	/**
+	 * Returns the UTC time in microseconds since the epoch, as of the last tick of the cached clock.
+	 * The value lags behind the system clock by up to the clock resolution.
+	 * Reads the system clock directly in precise mode.
+	 * @return
+	 */
+	public static long currentTimeMicros() {
+		if(precise)
+			return preciseTimeMicros();
+		
+		if(ticker == null)
+			startTicker();
+		return cachedMicros;
+	}
+	
+	/**
+	 * Returns the UTC time in microseconds since the epoch straight from the system clock.
+	 * @return
+	 */
+	public static long preciseTimeMicros() {
+		Instant now = CLOCK.instant();
+		return now.getEpochSecond() * 1_000_000L + now.getNano() / 1000;
+	}
+	
+	/**
+	 * Sets how often the cached clock ticks.  The default is 1000 microseconds.
+	 * @param micros At least 1.
+	 */
+	public static void setClockResolution(long micros) {
+		if(micros < 1)
+			throw new IllegalArgumentException("The clock resolution must be at least 1 microsecond.");
+		resolutionMicros = micros;
+	}
+	
+	/**
+	 * Returns how often the cached clock ticks in microseconds.
+	 * @return
+	 */
+	public static long getClockResolution() {
+		return resolutionMicros;
+	}
+	
+	/**
+	 * In precise mode {@link #currentTimeMicros()} reads the system clock on every call instead of the cached clock.
+	 * Off by default.
+	 * @param flag
+	 */
+	public static void setPreciseClock(boolean flag) {
+		precise = flag;
+	}
+	
+	/**
+	 * Returns whether the clock is in precise mode.
+	 * @return
+	 */
+	public static boolean isPreciseClock() {
+		return precise;
+	}
+	
+	private static synchronized void startTicker() {
+		if(ticker != null)
+			return;
+		
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(true) {
+					cachedMicros = preciseTimeMicros();
+					LockSupport.parkNanos(resolutionMicros * 1000);
+				}
+			}
+		}, "MUtils clock");
+		t.setDaemon(true);
+		cachedMicros = preciseTimeMicros();
+		t.start();
+		ticker = t;
+	}
+	
+	/**
+	 * Sets where host names and addresses are looked up, such as a stub for tests.
+	 * Pass null for {@link HostResolver#SYSTEM}.  Clears the host cache.
+	 * @param resolver
+	 */
+	public static void setHostResolver(HostResolver resolver) {
+		hostResolver = resolver == null ? HostResolver.SYSTEM : resolver;
+		clearHostCache();
+	}
+	
+	/**
+	 * Sets how long looked up names and addresses are used before they are looked up again.
+	 * The default is 5 minutes.  Entries that were already looked up keep their old expiry.
+	 * @param millis
+	 */
+	public static void setHostCacheTtl(long millis) {
+		if(millis < 0)
+			throw new IllegalArgumentException("The host cache TTL cannot be negative.");
+		hostTtlNanos = millis * 1_000_000L;
+	}
+	
+	/**
+	 * Forgets every cached name and address.
+	 */
+	public static void clearHostCache() {
+		localHost.identity = null;
+		localHost.expiresNanos = System.nanoTime();
+		remoteHosts.clear();
+	}
+	
+	/**
+	 * Returns the cached name of the local host, "-" (the syslog NILVALUE) if it is unknown.
+	 * Never waits: the first call, and calls after the entry expired, start a lookup in the background.
+	 * @return
+	 */
+	public static String getLocalHostName() {
+		LocalIdentity identity = localIdentity();
+		return identity == null ? "-" : identity.hostName;
+	}
+	
+	/**
+	 * Returns the cached fully qualified domain name of the local host, "-" if it is unknown.
+	 * Never waits, see {@link #getLocalHostName()}.
+	 * @return
+	 */
+	public static String getLocalFqdn() {
+		LocalIdentity identity = localIdentity();
+		return identity == null ? "-" : identity.fqdn;
+	}
+	
+	/**
+	 * Returns the cached IP address of the local host as text, "-" if it is unknown.
+	 * Never waits, see {@link #getLocalHostName()}.
+	 * @return
+	 */
+	public static String getLocalIpAddress() {
+		LocalIdentity identity = localIdentity();
+		return identity == null ? "-" : identity.ipAddress;
+	}
+	
+	/**
+	 * Looks up the local host names now and waits for it.  For startup code that wants the names known
+	 * before the first log call, never call it on a logging thread.
+	 */
+	public static void refreshLocalHost() {
+		lookUpLocalHost();
+	}
+	
+	/**
+	 * Returns the cached address of a remote host, or null if it was never looked up successfully.
+	 * Never waits: a host that is not cached yet, or whose entry expired, is looked up in the background
+	 * and the old address is returned meanwhile.
+	 * @param host A host name or a textual IP address.
+	 * @return
+	 */
+	public static InetAddress getCachedAddress(String host) {
+		HostEntry entry = remoteHosts.get(host);
+		if(entry == null) {
+			HostEntry created = new HostEntry();
+			entry = remoteHosts.putIfAbsent(host, created);
+			if(entry == null)
+				entry = created;
+		}
+		
+		if(entry.isExpired())
+			refreshInBackground(host, entry);
+		return entry.address;
+	}
+	
+	/**
+	 * Looks up a remote host now, waits for it and caches the result.
+	 * @param host A host name or a textual IP address.
+	 * @return
+	 * @throws UnknownHostException if the host cannot be found.
+	 */
+	public static InetAddress resolveAddress(String host) throws UnknownHostException {
+		InetAddress address = hostResolver.getByName(host);
+		HostEntry entry = new HostEntry();
+		entry.address = address;
+		entry.expiresNanos = System.nanoTime() + hostTtlNanos;
+		remoteHosts.put(host, entry);
+		return address;
+	}
+	
+	private static LocalIdentity localIdentity() {
+		if(localHost.isExpired())
+			refreshInBackground(null, localHost);
+		return localHost.identity;
+	}
+	
+	/**
+	 * Starts one lookup for the entry on the resolver thread, unless one is already running.
+	 * @param host null for the local host.
+	 * @param entry
+	 */
+	private static void refreshInBackground(final String host, final HostEntry entry) {
+		if(!entry.refreshing.compareAndSet(false, true))
+			return;
+		
+		resolverThread().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if(host == null) {
+						lookUpLocalHost();
+					} else {
+						try {
+							entry.address = hostResolver.getByName(host);
+							entry.expiresNanos = System.nanoTime() + hostTtlNanos;
+						} catch(UnknownHostException e) {
+							//Keeps the old address and tries again soon.
+							entry.expiresNanos = System.nanoTime() + Math.min(hostTtlNanos, HOST_RETRY_MILLIS * 1_000_000L);
+						}
+					}
+				} finally {
+					entry.refreshing.set(false);
+				}
+			}
+		});
+	}
+	
+	private static void lookUpLocalHost() {
+		HostResolver resolver = hostResolver;
+		LocalIdentity old = localHost.identity;
+		boolean failed = false;
+		
+		String hostName;
+		try {
+			hostName = resolver.getLocalHostName();
+		} catch(UnknownHostException e) {
+			hostName = old == null ? "-" : old.hostName;
+			failed = true;
+		}
+		
+		String fqdn;
+		try {
+			fqdn = resolver.getLocalCanonicalHostName();
+		} catch(UnknownHostException e) {
+			fqdn = old == null ? "-" : old.fqdn;
+			failed = true;
+		}
+		
+		String ipAddress;
+		try {
+			ipAddress = resolver.getLocalAddress().getHostAddress();
+		} catch(UnknownHostException e) {
+			ipAddress = old == null ? "-" : old.ipAddress;
+			failed = true;
+		}
+		
+		localHost.identity = new LocalIdentity(hostName, fqdn, ipAddress);
+		long ttl = failed ? Math.min(hostTtlNanos, HOST_RETRY_MILLIS * 1_000_000L) : hostTtlNanos;
+		localHost.expiresNanos = System.nanoTime() + ttl;
+	}
+	
+	private static synchronized ExecutorService resolverThread() {
+		if(resolverThread == null) {
+			resolverThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = Executors.defaultThreadFactory().newThread(r);
+					t.setName("MUtils resolver");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return resolverThread;
+	}
+	
+	/**
+	 * Writes a UTC timestamp in the RFC 3339 / ISO-8601 form "yyyy-MM-ddTHH:mm:ss.SSSSSSZ", {@link #TIMESTAMP_LENGTH} bytes.
+	 * The part up to the seconds is rendered once per second and copied, only the microseconds are written every time.
+	 * @param epochMicros Microseconds since the epoch.
+	 * @param dest
+	 * @param offset
+	 * @return The offset after the timestamp.
+	 */
+	public static int writeTimestamp(long epochMicros, byte[] dest, int offset) {
+		long epochSecond = Math.floorDiv(epochMicros, 1_000_000L);
+		TimestampPrefix prefix = lastPrefix;
+		if(prefix.epochSecond != epochSecond) {
+			prefix = new TimestampPrefix(epochSecond);
+			//Records from earlier seconds still come in, only moving forward keeps the cache useful.
+			if(epochSecond > lastPrefix.epochSecond)
+				lastPrefix = prefix;
+		}
+		
+		System.arraycopy(prefix.bytes, 0, dest, offset, PREFIX_LENGTH);
+		writePadded(Math.floorMod(epochMicros, 1_000_000L), dest, offset + PREFIX_LENGTH, 6);
+		dest[offset + TIMESTAMP_LENGTH - 1] = 'Z';
+		return offset + TIMESTAMP_LENGTH;
+	}
+	
+	/**
+	 * Renders "yyyy-MM-ddTHH:mm:ss." for a second since the epoch.  Also used by {@link TimestampRenderer} with local seconds.
+	 */
+	static void renderPrefix(long epochSecond, byte[] dest) {
+		long epochDay = Math.floorDiv(epochSecond, SECONDS_PER_DAY);
+		long secondOfDay = Math.floorMod(epochSecond, SECONDS_PER_DAY);
+		
+		//Civil date from the day count, see Howard Hinnant's "chrono-Compatible Low-Level Date Algorithms".
+		long z = epochDay + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long mp = (5 * dayOfYear + 2) / 153;
+		long day = dayOfYear - (153 * mp + 2) / 5 + 1;
+		long month = mp < 10 ? mp + 3 : mp - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		
+		writePadded(year, dest, 0, 4);
+		dest[4] = '-';
+		writePadded(month, dest, 5, 2);
+		dest[7] = '-';
+		writePadded(day, dest, 8, 2);
+		dest[10] = 'T';
+		writePadded(secondOfDay / 3600, dest, 11, 2);
+		dest[13] = ':';
+		writePadded((secondOfDay / 60) % 60, dest, 14, 2);
+		dest[16] = ':';
+		writePadded(secondOfDay % 60, dest, 17, 2);
+		dest[19] = '.';
+	}
+	
+	static void writePadded(long value, byte[] dest, int offset, int digits) {
+		for(int i = offset + digits - 1; i >= offset; i--) {
+			dest[i] = (byte) ('0' + (value % 10));
+			value /= 10;
+		}
+	}
 }
@@ -0,0 +1,178 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Renders RFC 3339 / ISO-8601 timestamps in a time zone, such as "2024-03-10T14:05:09.123456-04:00".
+ * The offset of the zone is kept together with the time until the next daylight saving transition,
+ * it is only looked up again once a timestamp falls outside of that.  Like {@link MUtils#writeTimestamp(long, byte[], int)}
+ * the date and time are rendered once per second, so a zone costs about as much as UTC.
+ * A zone with a zero offset is written with "Z".  Offsets are written in whole minutes, as RFC 5424 requires.
+ * Safe to use from several threads.
+ * @author Noah
+ *
+ */
+public final class TimestampRenderer {
+	
+	/**
+	 * The longest timestamp written by {@link #write(long, byte[], int)}.
+	 */
+	public static final int MAX_LENGTH = 32;
+	
+	private final ZoneId zone;
+	private final ZoneRules rules;
+	
+	private volatile OffsetWindow window = new OffsetWindow(Long.MIN_VALUE, Long.MIN_VALUE, 0, new byte[0]);
+	private volatile Prefix lastPrefix = new Prefix(Long.MIN_VALUE, null);
+	
+	/**
+	 * An offset and the seconds since the epoch it is valid for, start inclusive, end exclusive.
+	 */
+	private static final class OffsetWindow {
+		final long start;
+		final long end;
+		final int offsetSeconds;
+		final byte[] suffix;
+		
+		OffsetWindow(long start, long end, int offsetSeconds, byte[] suffix) {
+			this.start = start;
+			this.end = end;
+			this.offsetSeconds = offsetSeconds;
+			this.suffix = suffix;
+		}
+	}
+	
+	/**
+	 * The rendered local date and time of one second.
+	 */
+	private static final class Prefix {
+		final long epochSecond;
+		final byte[] bytes = new byte[20];
+		
+		Prefix(long epochSecond, OffsetWindow window) {
+			this.epochSecond = epochSecond;
+			if(window != null)
+				MUtils.renderPrefix(epochSecond + window.offsetSeconds, bytes);
+		}
+	}
+	
+	/**
+	 * @param zone
+	 */
+	public TimestampRenderer(ZoneId zone) {
+		if(zone == null)
+			throw new IllegalArgumentException("The time zone cannot be null.");
+		this.zone = zone;
+		this.rules = zone.getRules();
+	}
+	
+	/**
+	 * Returns the zone the timestamps are written in.
+	 * @return
+	 */
+	public ZoneId getZone() {
+		return zone;
+	}
+	
+	/**
+	 * Writes the timestamp, at most {@link #MAX_LENGTH} bytes.
+	 * @param epochMicros Microseconds since the epoch.
+	 * @param dest
+	 * @param offset
+	 * @return The offset after the timestamp.
+	 */
+	public int write(long epochMicros, byte[] dest, int offset) {
+		long epochSecond = Math.floorDiv(epochMicros, 1_000_000L);
+		
+		OffsetWindow w = window;
+		if(epochSecond < w.start || epochSecond >= w.end) {
+			w = lookUpWindow(epochSecond);
+			//Older records still come in, only moving forward keeps the cache useful.
+			if(epochSecond >= window.start)
+				window = w;
+		}
+		
+		Prefix prefix = lastPrefix;
+		if(prefix.epochSecond != epochSecond) {
+			prefix = new Prefix(epochSecond, w);
+			if(epochSecond > lastPrefix.epochSecond)
+				lastPrefix = prefix;
+		}
+		
+		System.arraycopy(prefix.bytes, 0, dest, offset, 20);
+		MUtils.writePadded(Math.floorMod(epochMicros, 1_000_000L), dest, offset + 20, 6);
+		System.arraycopy(w.suffix, 0, dest, offset + 26, w.suffix.length);
+		return offset + 26 + w.suffix.length;
+	}
+	
+	private OffsetWindow lookUpWindow(long epochSecond) {
+		Instant instant = Instant.ofEpochSecond(epochSecond);
+		ZoneOffset zoneOffset = rules.getOffset(instant);
+		
+		long start = Long.MIN_VALUE;
+		long end = Long.MAX_VALUE;
+		if(!rules.isFixedOffset()) {
+			//The transition at exactly this second already applies, so it is the start of the window.
+			ZoneOffsetTransition previous = rules.previousTransition(instant.plusSeconds(1));
+			if(previous != null)
+				start = previous.toEpochSecond();
+			ZoneOffsetTransition next = rules.nextTransition(instant);
+			if(next != null)
+				end = next.toEpochSecond();
+		}
+		
+		//RFC 5424 only allows whole minutes, historic offsets with seconds are cut down.
+		int minutes = zoneOffset.getTotalSeconds() / 60;
+		byte[] suffix;
+		if(minutes == 0) {
+			suffix = new byte[] {'Z'};
+		} else {
+			int abs = Math.abs(minutes);
+			suffix = new byte[6];
+			suffix[0] = (byte) (minutes < 0 ? '-' : '+');
+			MUtils.writePadded(abs / 60, suffix, 1, 2);
+			suffix[3] = ':';
+			MUtils.writePadded(abs % 60, suffix, 4, 2);
+		}
+		return new OffsetWindow(start, end, minutes * 60, suffix);
+	}
+}
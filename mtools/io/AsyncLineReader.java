@@ -0,0 +1,222 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.io;
+
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Reads lines from a {@link MConsole} on its own daemon thread and hands them to futures.
+ * A line is only read while somebody is waiting for one.  If every waiting future was cancelled
+ * or timed out by the time the line arrives, the line is kept for the next request instead of being lost.
+ * Used by {@link MConsole#getInputStringAsync()}.
+ * @author Noah
+ *
+ */
+final class AsyncLineReader {
+	private static ScheduledExecutorService timer;
+	
+	private final MConsole console;
+	private final ArrayDeque<CompletableFuture<String>> pending = new ArrayDeque<CompletableFuture<String>>();
+	private final ArrayDeque<String> unclaimed = new ArrayDeque<String>();
+	private RuntimeException failure;
+	private Thread thread;
+	
+	AsyncLineReader(MConsole console) {
+		this.console = console;
+	}
+	
+	/**
+	 * Returns a future for the next line.
+	 * @return
+	 */
+	synchronized CompletableFuture<String> request() {
+		CompletableFuture<String> future = new CompletableFuture<String>();
+		if(!unclaimed.isEmpty()) {
+			future.complete(unclaimed.poll());
+			return future;
+		}
+		if(failure != null) {
+			future.completeExceptionally(failure);
+			return future;
+		}
+		
+		pending.add(future);
+		if(thread == null) {
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					readLoop();
+				}
+			}, "MConsole input");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		notifyAll();
+		return future;
+	}
+	
+	/**
+	 * Returns a future for the next line that fails with a {@link TimeoutException} if no line arrives in time.
+	 * @param timeout
+	 * @param unit
+	 * @return
+	 */
+	CompletableFuture<String> request(long timeout, TimeUnit unit) {
+		final CompletableFuture<String> future = request();
+		if(future.isDone())
+			return future;
+		
+		final ScheduledFuture<?> timeoutTask = timer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				future.completeExceptionally(new TimeoutException("No console input within the timeout."));
+			}
+		}, timeout, unit);
+		future.whenComplete(new BiConsumer<String, Throwable>() {
+			@Override
+			public void accept(String line, Throwable t) {
+				timeoutTask.cancel(false);
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * Cancels every future that is still waiting.  A line that is being read right now is kept for the next request.
+	 */
+	void cancelAll() {
+		CompletableFuture<?>[] waiting;
+		synchronized(this) {
+			waiting = pending.toArray(new CompletableFuture<?>[pending.size()]);
+			pending.clear();
+		}
+		for(int i = 0; i < waiting.length; i++) {
+			waiting[i].cancel(false);
+		}
+	}
+	
+	private void readLoop() {
+		while(true) {
+			synchronized(this) {
+				//Finished futures were cancelled or timed out, no need to read a line for them.
+				while(!pending.isEmpty() && pending.peek().isDone()) {
+					pending.poll();
+				}
+				while(pending.isEmpty()) {
+					try {
+						wait();
+					} catch(InterruptedException e) {
+						return;
+					}
+					while(!pending.isEmpty() && pending.peek().isDone()) {
+						pending.poll();
+					}
+				}
+			}
+			
+			String line;
+			try {
+				line = console.getInputString();
+			} catch(RuntimeException e) {
+				fail(e);
+				return;
+			}
+			deliver(line);
+		}
+	}
+	
+	private void deliver(String line) {
+		while(true) {
+			CompletableFuture<String> future;
+			synchronized(this) {
+				do {
+					future = pending.poll();
+					if(future == null) {
+						unclaimed.add(line);
+						return;
+					}
+				} while(future.isDone());
+			}
+			
+			//Completed outside the lock since callbacks run on this thread.
+			//Fails if the future was cancelled in the meantime, then the line goes to the next one.
+			if(future.complete(line))
+				return;
+		}
+	}
+	
+	private void fail(RuntimeException e) {
+		CompletableFuture<?>[] waiting;
+		synchronized(this) {
+			if(e instanceof NoSuchElementException)
+				failure = new NoSuchElementException("The console input has ended.");
+			else
+				failure = e;
+			waiting = pending.toArray(new CompletableFuture<?>[pending.size()]);
+			pending.clear();
+		}
+		for(int i = 0; i < waiting.length; i++) {
+			waiting[i].completeExceptionally(failure);
+		}
+	}
+	
+	private static synchronized ScheduledExecutorService timer() {
+		if(timer == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = Executors.defaultThreadFactory().newThread(r);
+					t.setName("MConsole input timeout");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			executor.setRemoveOnCancelPolicy(true);
+			timer = executor;
+		}
+		return timer;
+	}
+}
@@ -0,0 +1,481 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads an {@link InputStream} through a large byte buffer and splits it into whitespace
+ * separated tokens by hand.  Numbers are parsed straight from the buffer into primitives,
+ * without creating a String or a boxed value.
+ * Used by {@link MConsole} in bulk input mode.
+ * @author Noah
+ *
+ */
+final class BulkInput {
+	static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+	
+	//Powers of ten that are exact as a double and a float.
+	private static final double[] DOUBLE_POWERS = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+	private static final float[] FLOAT_POWERS = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+	
+	//Long.MIN_VALUE / 10, one more digit overflows unless it is at most 8.
+	private static final long LONG_LIMIT = -922337203685477580L;
+	
+	private final InputStream in;
+	private final byte[] buffer;
+	private int pos;
+	private int limit;
+	private boolean eof;
+	
+	//Parse state of the last number, see scanNumber().
+	private long mantissa;
+	private int digits;
+	private int exponent;
+	private boolean negative;
+	private boolean simple;
+	private int tokenStart;
+	private int tokenEnd;
+	
+	BulkInput(InputStream in) {
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+	
+	BulkInput(InputStream in, int bufferSize) {
+		if(bufferSize < 64)
+			throw new IllegalArgumentException("The buffer must hold at least 64 bytes.");
+		this.in = in;
+		buffer = new byte[bufferSize];
+	}
+	
+	/**
+	 * Returns whether there is another token before the end of the input.
+	 * @return
+	 */
+	boolean hasNext() {
+		return skipWhitespace();
+	}
+	
+	/**
+	 * Returns the next token as a String.
+	 * @return
+	 */
+	String next() {
+		readToken();
+		return new String(buffer, tokenStart, tokenEnd - tokenStart, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Returns the rest of the current line without the line break, or null at the end of the input.
+	 * @return
+	 */
+	String nextLine() {
+		if(pos == limit && !fill())
+			return null;
+		
+		StringBuilder line = null;
+		while(true) {
+			int start = pos;
+			while(pos < limit && buffer[pos] != '\n') {
+				pos++;
+			}
+			
+			int end = pos;
+			boolean found = pos < limit;
+			if(found)
+				pos++;
+			
+			if(line == null && found) {
+				if(end > start && buffer[end - 1] == '\r')
+					end--;
+				return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+			}
+			
+			if(line == null)
+				line = new StringBuilder();
+			line.append(new String(buffer, start, end - start, StandardCharsets.UTF_8));
+			if(found || !fill()) {
+				if(line.length() > 0 && line.charAt(line.length() - 1) == '\r')
+					line.setLength(line.length() - 1);
+				return line.toString();
+			}
+		}
+	}
+	
+	/**
+	 * Parses the next token as an int.
+	 * @return
+	 */
+	int nextInt() {
+		long value = nextLong();
+		if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			throw new NumberFormatException("Value out of range for an int: " + value);
+		return (int) value;
+	}
+	
+	/**
+	 * Parses the next token as a long.
+	 * @return
+	 */
+	long nextLong() {
+		if(!skipWhitespace())
+			throw new NoSuchElementException();
+		
+		//Parses straight from the buffer in one pass when the token ends inside it.
+		int i = pos;
+		boolean minus = buffer[i] == '-';
+		if(minus || buffer[i] == '+')
+			i++;
+		int first = i;
+		long value = 0;
+		while(i < limit) {
+			int digit = buffer[i] - '0';
+			if(digit < 0 || digit > 9 || value < LONG_LIMIT || (value == LONG_LIMIT && digit > 8))
+				break;
+			value = value * 10 - digit;
+			i++;
+		}
+		if(i < limit && i > first && (buffer[i] & 0xFF) <= ' ') {
+			if(minus) {
+				pos = i;
+				return value;
+			}
+			if(value != Long.MIN_VALUE) {
+				pos = i;
+				return -value;
+			}
+		}
+		
+		return parseLongToken();
+	}
+	
+	/**
+	 * The slow path of nextLong(), for tokens that cross the end of the buffer or are not valid.
+	 * @return
+	 */
+	private long parseLongToken() {
+		readToken();
+		int i = tokenStart;
+		boolean minus = false;
+		if(buffer[i] == '-' || buffer[i] == '+') {
+			minus = buffer[i] == '-';
+			i++;
+		}
+		if(i == tokenEnd)
+			throw tokenError();
+		
+		//Accumulated negatively so Long.MIN_VALUE fits.
+		long value = 0;
+		for(; i < tokenEnd; i++) {
+			int digit = buffer[i] - '0';
+			if(digit < 0 || digit > 9)
+				throw tokenError();
+			if(value < LONG_LIMIT || (value == LONG_LIMIT && digit > 8))
+				throw tokenError();
+			value = value * 10 - digit;
+		}
+		
+		if(minus)
+			return value;
+		if(value == Long.MIN_VALUE)
+			throw tokenError();
+		return -value;
+	}
+	
+	/**
+	 * Parses the next token as a double.
+	 * @return
+	 */
+	double nextDouble() {
+		readToken();
+		scanNumber();
+		if(simple && digits <= 15 && exponent >= -22 && exponent <= 22) {
+			//Both operands are exact, so the one rounding step gives the correctly rounded result.
+			double value = mantissa;
+			if(exponent >= 0)
+				value *= DOUBLE_POWERS[exponent];
+			else
+				value /= DOUBLE_POWERS[-exponent];
+			return negative ? -value : value;
+		}
+		return Double.parseDouble(tokenString());
+	}
+	
+	/**
+	 * Parses the next token as a float.
+	 * @return
+	 */
+	float nextFloat() {
+		readToken();
+		scanNumber();
+		if(simple && mantissa <= (1 << 24) && exponent >= -10 && exponent <= 10) {
+			float value = mantissa;
+			if(exponent >= 0)
+				value *= FLOAT_POWERS[exponent];
+			else
+				value /= FLOAT_POWERS[-exponent];
+			return negative ? -value : value;
+		}
+		return Float.parseFloat(tokenString());
+	}
+	
+	/**
+	 * Fills the array with ints until it is full or the input ends.
+	 * @return The number of values read.
+	 */
+	int readInts(int[] dest, int offset, int length) {
+		checkRange(dest.length, offset, length);
+		int count = 0;
+		while(count < length && skipWhitespace()) {
+			dest[offset + count++] = nextInt();
+		}
+		return count;
+	}
+	
+	/**
+	 * Fills the array with longs until it is full or the input ends.
+	 * @return The number of values read.
+	 */
+	int readLongs(long[] dest, int offset, int length) {
+		checkRange(dest.length, offset, length);
+		int count = 0;
+		while(count < length && skipWhitespace()) {
+			dest[offset + count++] = nextLong();
+		}
+		return count;
+	}
+	
+	/**
+	 * Fills the array with floats until it is full or the input ends.
+	 * @return The number of values read.
+	 */
+	int readFloats(float[] dest, int offset, int length) {
+		checkRange(dest.length, offset, length);
+		int count = 0;
+		while(count < length && skipWhitespace()) {
+			dest[offset + count++] = nextFloat();
+		}
+		return count;
+	}
+	
+	/**
+	 * Fills the array with doubles until it is full or the input ends.
+	 * @return The number of values read.
+	 */
+	int readDoubles(double[] dest, int offset, int length) {
+		checkRange(dest.length, offset, length);
+		int count = 0;
+		while(count < length && skipWhitespace()) {
+			dest[offset + count++] = nextDouble();
+		}
+		return count;
+	}
+	
+	/**
+	 * Splits a decimal number in the current token into mantissa and exponent.
+	 * simple is false if the token does not fit the fast path, such as too many digits,
+	 * hex, NaN or Infinity, and has to go through the JDK parser.
+	 */
+	private void scanNumber() {
+		int i = tokenStart;
+		negative = false;
+		if(buffer[i] == '-' || buffer[i] == '+') {
+			negative = buffer[i] == '-';
+			i++;
+		}
+		
+		mantissa = 0;
+		digits = 0;
+		exponent = 0;
+		simple = true;
+		boolean anyDigit = false;
+		boolean point = false;
+		for(; i < tokenEnd; i++) {
+			int b = buffer[i];
+			if(b >= '0' && b <= '9') {
+				anyDigit = true;
+				if(mantissa == 0 && b == '0') {
+					//Leading zeros do not count as digits.
+				} else if(digits < 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					digits++;
+				} else {
+					simple = false;
+				}
+				if(point)
+					exponent--;
+			} else if(b == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		
+		if(!anyDigit) {
+			simple = false;
+			return;
+		}
+		
+		if(i < tokenEnd && (buffer[i] == 'e' || buffer[i] == 'E')) {
+			i++;
+			boolean minus = false;
+			if(i < tokenEnd && (buffer[i] == '-' || buffer[i] == '+')) {
+				minus = buffer[i] == '-';
+				i++;
+			}
+			if(i == tokenEnd) {
+				simple = false;
+				return;
+			}
+			int e = 0;
+			for(; i < tokenEnd; i++) {
+				int digit = buffer[i] - '0';
+				if(digit < 0 || digit > 9 || e > 10000) {
+					simple = false;
+					return;
+				}
+				e = e * 10 + digit;
+			}
+			exponent += minus ? -e : e;
+		}
+		
+		if(i != tokenEnd)
+			simple = false;
+	}
+	
+	/**
+	 * Marks the next token between tokenStart and tokenEnd.  A token longer than the buffer
+	 * is not supported since it would have to be copied elsewhere.
+	 */
+	private void readToken() {
+		if(!skipWhitespace())
+			throw new NoSuchElementException();
+		
+		int i = pos;
+		while(true) {
+			while(i < limit && (buffer[i] & 0xFF) > ' ') {
+				i++;
+			}
+			if(i < limit || eof)
+				break;
+			
+			//The token reaches the end of the buffer, moves it to the front and reads more.
+			int length = i - pos;
+			if(length == buffer.length)
+				throw new NumberFormatException("Token longer than " + buffer.length + " bytes.");
+			System.arraycopy(buffer, pos, buffer, 0, length);
+			pos = 0;
+			limit = length;
+			i = length;
+			if(!read())
+				break;
+		}
+		
+		tokenStart = pos;
+		tokenEnd = i;
+		pos = i;
+	}
+	
+	/**
+	 * Moves past whitespace.
+	 * @return false at the end of the input.
+	 */
+	private boolean skipWhitespace() {
+		while(true) {
+			while(pos < limit) {
+				if((buffer[pos] & 0xFF) > ' ')
+					return true;
+				pos++;
+			}
+			if(!fill())
+				return false;
+		}
+	}
+	
+	/**
+	 * Replaces the consumed buffer with new input.
+	 * @return false at the end of the input.
+	 */
+	private boolean fill() {
+		pos = 0;
+		limit = 0;
+		return read();
+	}
+	
+	/**
+	 * Reads more input after limit.
+	 * @return false at the end of the input.
+	 */
+	private boolean read() {
+		if(eof)
+			return false;
+		
+		try {
+			int n;
+			do {
+				n = in.read(buffer, limit, buffer.length - limit);
+			} while(n == 0);
+			
+			if(n < 0) {
+				eof = true;
+				return false;
+			}
+			limit += n;
+			return true;
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private String tokenString() {
+		return new String(buffer, tokenStart, tokenEnd - tokenStart, StandardCharsets.US_ASCII);
+	}
+	
+	private NumberFormatException tokenError() {
+		return new NumberFormatException("For input string: \"" + tokenString() + "\"");
+	}
+	
+	private static void checkRange(int arrayLength, int offset, int length) {
+		if(offset < 0 || length < 0 || offset + length > arrayLength || offset + length < 0)
+			throw new IndexOutOfBoundsException("Offset: " + offset + ", Length: " + length + ", Array length: " + arrayLength);
+	}
+}
@@ -0,0 +1,171 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.io;
+
+import java.util.List;
+
+/**
+ * A fixed capacity ring of lines with O(1) pushes at either end.
+ * When the ring is full a push drops the line at the opposite end.
+ * All methods are synchronized so several threads can push at once.
+ * @author Noah
+ *
+ */
+final class LineRing {
+	private String[] buffer;
+	//Index of line 0 in the buffer.
+	private int head;
+	private int size;
+	
+	LineRing(int capacity) {
+		buffer = new String[capacity];
+		head = 0;
+		size = 0;
+	}
+	
+	synchronized int size() {
+		return size;
+	}
+	
+	/**
+	 * Makes the line line 0.  Drops the last line if the ring is full.
+	 * @param line
+	 */
+	synchronized void pushFront(String line) {
+		head = (head - 1 + buffer.length) % buffer.length;
+		buffer[head] = line;
+		if(size < buffer.length)
+			size++;
+	}
+	
+	/**
+	 * Adds the line after the last one.  Drops line 0 if the ring is full.
+	 * @param line
+	 */
+	synchronized void pushBack(String line) {
+		if(size == buffer.length) {
+			buffer[head] = line;
+			head = (head + 1) % buffer.length;
+		} else {
+			buffer[(head + size) % buffer.length] = line;
+			size++;
+		}
+	}
+	
+	/**
+	 * Inserts a line, everything after it moves down by one.  Drops the last line if the ring is full.
+	 * This is O(n) except at either end.
+	 * @param index
+	 * @param line
+	 */
+	synchronized void insert(int index, String line) {
+		if(index < 0 || index > size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		
+		if(index == 0) {
+			pushFront(line);
+			return;
+		}
+		
+		if(index == buffer.length)
+			return;
+		
+		if(size < buffer.length)
+			size++;
+		for(int i = size - 1; i > index; i--) {
+			buffer[(head + i) % buffer.length] = buffer[(head + i - 1) % buffer.length];
+		}
+		buffer[(head + index) % buffer.length] = line;
+	}
+	
+	/**
+	 * Removes a line, everything after it moves up by one.  This is O(n).
+	 * @param index
+	 */
+	synchronized void remove(int index) {
+		checkIndex(index);
+		for(int i = index; i < size - 1; i++) {
+			buffer[(head + i) % buffer.length] = buffer[(head + i + 1) % buffer.length];
+		}
+		buffer[(head + size - 1) % buffer.length] = null;
+		size--;
+	}
+	
+	synchronized void clear() {
+		for(int i = 0; i < buffer.length; i++) {
+			buffer[i] = null;
+		}
+		head = 0;
+		size = 0;
+	}
+	
+	/**
+	 * Changes the capacity.  If the ring shrinks the lines at the end are dropped.
+	 * @param capacity
+	 */
+	synchronized void setCapacity(int capacity) {
+		String[] resized = new String[capacity];
+		int kept = Math.min(size, capacity);
+		for(int i = 0; i < kept; i++) {
+			resized[i] = buffer[(head + i) % buffer.length];
+		}
+		buffer = resized;
+		head = 0;
+		size = kept;
+	}
+	
+	/**
+	 * Appends every line to the list, in order or in reverse.
+	 * @param target
+	 * @param forward
+	 */
+	synchronized void copyTo(List<String> target, boolean forward) {
+		if(forward) {
+			for(int i = 0; i < size; i++) {
+				target.add(buffer[(head + i) % buffer.length]);
+			}
+		} else {
+			for(int i = size - 1; i >= 0; i--) {
+				target.add(buffer[(head + i) % buffer.length]);
+			}
+		}
+	}
+	
+	private void checkIndex(int index) {
+		if(index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+	}
+}
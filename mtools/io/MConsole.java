@@ -36,23 +36,90 @@
 
 package mtools.io;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
 import java.util.Scanner;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
 
 /**
  * This class is simply for abstracting {@link Scanner} and
+ * <p>
+ * For large piped input there is a bulk input mode, see {@link #enableBulkInput()}, that reads through
+ * a large byte buffer and parses numbers straight into primitives instead of going through the Scanner.
+ * <p>
+ * {@link #getInputStringAsync()} reads the next line on a background thread, so the calling thread can keep
+ * refreshing an {@link MDisplay} while it waits for a command.
+ * <p>
+ * To run a menu driven tool without a person at the keyboard, read the answers from a script with
+ * {@link #fromScript(String)} or {@link #fromLines(String...)}, and turn on {@link MTerminal#enableBatchMode(java.io.PrintStream)}
+ * so displays and menus are not drawn and nothing waits on the clear process.
  * @author Noah
  *
  */
 
 public class MConsole {
 	
+	private InputStream inputStream;
 	private Scanner consoleInput;
+	private BulkInput bulkInput;
+	private AsyncLineReader asyncReader;
 	
 	/**
 	 * Simply initializes the Scanner.
 	 */
 	public MConsole() {
-		consoleInput = new Scanner(System.in);
+		this(System.in);
+	}
+	
+	/**
+	 * Reads from the passed stream instead of System.in.
+	 * @param in
+	 */
+	public MConsole(InputStream in) {
+		inputStream = in;
+		consoleInput = new Scanner(in);
+	}
+	
+	/**
+	 * Returns a console that reads its input from a script file, one answer per line, instead of the keyboard.
+	 * Reads in bulk input mode, see {@link #enableBulkInput()}.  Reading past the end of the script
+	 * throws a {@link NoSuchElementException}.
+	 * @param path
+	 * @return
+	 * @throws FileNotFoundException
+	 */
+	public static MConsole fromScript(String path) throws FileNotFoundException {
+		MConsole console = new MConsole(new FileInputStream(path));
+		console.enableBulkInput();
+		return console;
+	}
+	
+	/**
+	 * Returns a console that answers with the passed lines, in order, instead of reading the keyboard.
+	 * Reads in bulk input mode, see {@link #enableBulkInput()}.
+	 * @param lines
+	 * @return
+	 */
+	public static MConsole fromLines(String... lines) {
+		StringBuilder script = new StringBuilder();
+		for(int i = 0; i < lines.length; i++) {
+			script.append(lines[i]).append('\n');
+		}
+		MConsole console = new MConsole(new ByteArrayInputStream(script.toString().getBytes(StandardCharsets.UTF_8)));
+		console.enableBulkInput();
+		return console;
 	}
 	
 	/**
@@ -60,6 +127,12 @@ public class MConsole {
 	 * @return String
 	 */
 	public String getInputString() {
+		if(bulkInput != null) {
+			String line = bulkInput.nextLine();
+			if(line == null)
+				throw new NoSuchElementException("No line found");
+			return line;
+		}
 		return consoleInput.nextLine();
 	}
 	
@@ -69,7 +142,7 @@ public class MConsole {
 	 * @throws IndexOutOfBoundsException
 	 */
 	public int getInputInt() throws IndexOutOfBoundsException {
-		return Integer.valueOf(consoleInput.nextLine());
+		return Integer.parseInt(getInputString());
 	}
 	
 	/**
@@ -78,7 +151,243 @@ public class MConsole {
 	 * @throws IndexOutOfBoundsException
 	 */
 	public float getInputFloat() throws IndexOutOfBoundsException {
-		return Float.valueOf(consoleInput.nextLine());
+		return Float.parseFloat(getInputString());
+	}
+	
+	/**
+	 * Returns a future that completes with the next line of console input, read on a background daemon thread.
+	 * Requests are answered in order, one line each.  Callbacks added to the future run on the input thread
+	 * unless one of the async variants of the future is used.
+	 * Cancelling the future does not lose input, a line that arrives after that goes to the next request.
+	 * If the input ends the future fails with a {@link java.util.NoSuchElementException}.
+	 * Do not read from the console directly while an asynchronous request is pending.
+	 * @return
+	 */
+	public CompletableFuture<String> getInputStringAsync() {
+		return asyncReader().request();
+	}
+	
+	/**
+	 * Same as {@link #getInputStringAsync()}, but the future fails with a {@link java.util.concurrent.TimeoutException}
+	 * if no line arrives within the timeout.
+	 * @param timeout
+	 * @param unit
+	 * @return
+	 */
+	public CompletableFuture<String> getInputStringAsync(long timeout, TimeUnit unit) {
+		if(timeout < 0)
+			throw new IllegalArgumentException("The timeout cannot be negative.");
+		return asyncReader().request(timeout, unit);
+	}
+	
+	/**
+	 * Cancels every asynchronous input request that is still waiting.
+	 */
+	public void cancelInputRequests() {
+		AsyncLineReader reader;
+		synchronized(this) {
+			reader = asyncReader;
+		}
+		if(reader != null)
+			reader.cancelAll();
+	}
+	
+	private synchronized AsyncLineReader asyncReader() {
+		if(asyncReader == null)
+			asyncReader = new AsyncLineReader(this);
+		return asyncReader;
+	}
+	
+	/**
+	 * Switches to the bulk input mode, which cannot be undone.
+	 * The input is read in 64 KB blocks and split into whitespace separated tokens by hand,
+	 * the next* and read* methods parse them without boxing.  The getInput* methods keep working line by line.
+	 * Has to be called before anything is read through the Scanner, since the Scanner keeps its own buffer.
+	 */
+	public void enableBulkInput() {
+		if(bulkInput == null)
+			bulkInput = new BulkInput(inputStream);
+	}
+	
+	/**
+	 * Returns whether the bulk input mode is on.
+	 * @return
+	 */
+	public boolean isBulkInput() {
+		return bulkInput != null;
+	}
+	
+	/**
+	 * Returns whether there is another token in the input.  Bulk input mode only.
+	 * @return
+	 */
+	public boolean hasNextToken() {
+		return bulk().hasNext();
+	}
+	
+	/**
+	 * Returns the next whitespace separated token.  Bulk input mode only.
+	 * @return
+	 * @throws NoSuchElementException at the end of the input.
+	 */
+	public String nextToken() {
+		return bulk().next();
+	}
+	
+	/**
+	 * Parses the next token as an int.  Bulk input mode only.
+	 * @return
+	 * @throws NumberFormatException if the token is not an int.
+	 * @throws NoSuchElementException at the end of the input.
+	 */
+	public int nextInt() {
+		return bulk().nextInt();
+	}
+	
+	/**
+	 * Parses the next token as a long.  Bulk input mode only.
+	 * @return
+	 * @throws NumberFormatException if the token is not a long.
+	 * @throws NoSuchElementException at the end of the input.
+	 */
+	public long nextLong() {
+		return bulk().nextLong();
+	}
+	
+	/**
+	 * Parses the next token as a float.  Bulk input mode only.
+	 * @return
+	 * @throws NumberFormatException if the token is not a number.
+	 * @throws NoSuchElementException at the end of the input.
+	 */
+	public float nextFloat() {
+		return bulk().nextFloat();
+	}
+	
+	/**
+	 * Parses the next token as a double.  Bulk input mode only.
+	 * @return
+	 * @throws NumberFormatException if the token is not a number.
+	 * @throws NoSuchElementException at the end of the input.
+	 */
+	public double nextDouble() {
+		return bulk().nextDouble();
+	}
+	
+	/**
+	 * Fills the array with ints from the input until it is full or the input ends.  Bulk input mode only.
+	 * @param dest
+	 * @return The number of values read.
+	 */
+	public int readInts(int[] dest) {
+		return bulk().readInts(dest, 0, dest.length);
+	}
+	
+	/**
+	 * Fills part of the array with ints from the input until it is full or the input ends.  Bulk input mode only.
+	 * @param dest
+	 * @param offset
+	 * @param length
+	 * @return The number of values read.
+	 */
+	public int readInts(int[] dest, int offset, int length) {
+		return bulk().readInts(dest, offset, length);
+	}
+	
+	/**
+	 * Fills the array with longs from the input until it is full or the input ends.  Bulk input mode only.
+	 * @param dest
+	 * @return The number of values read.
+	 */
+	public int readLongs(long[] dest) {
+		return bulk().readLongs(dest, 0, dest.length);
+	}
+	
+	/**
+	 * Fills the array with floats from the input until it is full or the input ends.  Bulk input mode only.
+	 * @param dest
+	 * @return The number of values read.
+	 */
+	public int readFloats(float[] dest) {
+		return bulk().readFloats(dest, 0, dest.length);
+	}
+	
+	/**
+	 * Fills the array with doubles from the input until it is full or the input ends.  Bulk input mode only.
+	 * @param dest
+	 * @return The number of values read.
+	 */
+	public int readDoubles(double[] dest) {
+		return bulk().readDoubles(dest, 0, dest.length);
+	}
+	
+	/**
+	 * Returns the remaining tokens parsed as ints.  Bulk input mode only.
+	 * The stream reads from the console as it goes and is not thread safe.
+	 * @return
+	 */
+	public IntStream ints() {
+		final BulkInput in = bulk();
+		PrimitiveIterator.OfInt it = new PrimitiveIterator.OfInt() {
+			@Override
+			public boolean hasNext() {
+				return in.hasNext();
+			}
+			
+			@Override
+			public int nextInt() {
+				return in.nextInt();
+			}
+		};
+		return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+	
+	/**
+	 * Returns the remaining tokens parsed as longs.  Bulk input mode only.
+	 * The stream reads from the console as it goes and is not thread safe.
+	 * @return
+	 */
+	public LongStream longs() {
+		final BulkInput in = bulk();
+		PrimitiveIterator.OfLong it = new PrimitiveIterator.OfLong() {
+			@Override
+			public boolean hasNext() {
+				return in.hasNext();
+			}
+			
+			@Override
+			public long nextLong() {
+				return in.nextLong();
+			}
+		};
+		return StreamSupport.longStream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+	
+	/**
+	 * Returns the remaining tokens parsed as doubles.  Bulk input mode only.
+	 * The stream reads from the console as it goes and is not thread safe.
+	 * @return
+	 */
+	public DoubleStream doubles() {
+		final BulkInput in = bulk();
+		PrimitiveIterator.OfDouble it = new PrimitiveIterator.OfDouble() {
+			@Override
+			public boolean hasNext() {
+				return in.hasNext();
+			}
+			
+			@Override
+			public double nextDouble() {
+				return in.nextDouble();
+			}
+		};
+		return StreamSupport.doubleStream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+	
+	private BulkInput bulk() {
+		if(bulkInput == null)
+			throw new IllegalStateException("Bulk input mode is not enabled, see enableBulkInput().");
+		return bulkInput;
 	}
 	
 	/**
@@ -98,23 +407,10 @@ public class MConsole {
 	
 	/**
 	 * clears the console on Windows and Linux.  Should work on Mac, but untested.
+	 * Uses ANSI escape sequences where they are supported, see {@link MTerminal#clear()}.
 	 */
 	public void clear() {
-		try {
-			String os = System.getProperty("os.name");
-			
-			if(os.contains("Windows")) {
-				ProcessBuilder pb = new ProcessBuilder("cmd", "/c", "cls");
-				Process startProcess = pb.inheritIO().start();
-				startProcess.waitFor();
-			} else {
-				ProcessBuilder pb = new ProcessBuilder("clear");
-				Process startProcess = pb.inheritIO().start();
-				startProcess.waitFor();
-			}
-		} catch(Exception e) {
-			System.out.println(e);
-		}
+		MTerminal.clear();
 	}
 	
 	
@@ -36,7 +36,11 @@
 
 package mtools.io;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class is to be used to display sequential text/message 
@@ -46,15 +50,43 @@ import java.util.ArrayList;
  * that displays at the top if you need one.  By default, the banner
  * is disabled and will not show.
  * If you need a menu system, use {@link MMenu}
+ * The display is drawn with {@link MTerminal}, which only rewrites the lines that changed
+ * since the last refresh.
+ * <p>
+ * For a feed of events there is a scrolling mode, see {@link #setScrolling(boolean)}, where the lines
+ * are kept in a fixed size ring that several threads can push lines into at once.  Together with
+ * {@link #startAutoRefresh()} the display redraws itself when lines change, at most
+ * {@link #setMaxFrameRate(int)} times per second.
+ * <p>
+ * {@link #openFile(String)} shows a text file instead of the lines, such as a log written by
+ * {@link mtools.logging.MFileLogger}.  The file is memory mapped and only the lines in the window
+ * are read, so files of several gigabytes open instantly.  See {@link #pageDown()}, {@link #goToLine(long)}
+ * and {@link #goToTimestamp(Instant)}.
  * @author Noah
  *
  */
 public class MDisplay {
 	private ArrayList<String> lines;
+	//Holds the lines instead of the array list in scrolling mode, null otherwise.
+	private LineRing ring;
 	private String banner;
 	private boolean bannerFlag;
 	private int maxLines;
 	private boolean isDisplayTopToBottom;
+	private boolean ansiRendering = MTerminal.isAnsiSupported();
+	private final ArrayList<String> frame = new ArrayList<String>();
+	
+	//The file shown instead of the lines, null if there is none.
+	private MappedTextFile file;
+	private String fileName;
+	//Start of the first line in the window.
+	private long fileTop;
+	
+	private volatile int maxFrameRate = 30;
+	private Thread refreshThread;
+	private final Object refreshSignal = new Object();
+	private boolean dirty;
+	private boolean refreshing;
 	
 	/**
 	 * Default constructor.  Sets the maximum lines of console display
@@ -103,6 +135,7 @@ public class MDisplay {
 	public void setBanner(String s) {
 		banner = s;
 		bannerFlag = true;
+		markDirty();
 	}
 	
 	/**
@@ -111,6 +144,7 @@ public class MDisplay {
 	public void clearBanner() {
 		banner = null;
 		bannerFlag = false;
+		markDirty();
 	}
 	
 	/**
@@ -122,6 +156,7 @@ public class MDisplay {
 	 */
 	public void setBannerDisplayFlag(boolean flag) {
 		bannerFlag = flag;
+		markDirty();
 	}
 	
 	/**
@@ -137,12 +172,15 @@ public class MDisplay {
 			maxLines = 15;
 		}
 		
-		//cutting off the lines that extend past the maximum amount of lines value
-		if(lines.size() > maxLines) {
+		if(ring != null) {
+			ring.setCapacity(maxLines);
+		} else if(lines.size() > maxLines) {
+			//cutting off the lines that extend past the maximum amount of lines value
 			while(lines.size() > maxLines) {
 				lines.remove(maxLines);
 			}
 		}
+		markDirty();
 	}
 	
 	/**
@@ -161,19 +199,83 @@ public class MDisplay {
 	 * @return
 	 */
 	public int getSize() {
+		if(ring != null)
+			return ring.size();
 		return lines.size();
 	}
 	
+	/**
+	 * Switches the scrolling mode on or off.  The current lines are kept.
+	 * In scrolling mode the lines are kept in a ring of the maximum amount of lines.
+	 * {@link #pushLineTop(String)} and {@link #pushLineBottom(String)} add a line in constant time,
+	 * dropping the line at the other end once the display is full, and any number of threads can
+	 * add lines at the same time.  {@link #addLine(String)} behaves like {@link #pushLineBottom(String)}.
+	 * {@link #getArrayList()} is not available in scrolling mode.
+	 * @param flag
+	 */
+	public synchronized void setScrolling(boolean flag) {
+		if(flag && ring == null) {
+			LineRing newRing = new LineRing(maxLines);
+			for(int i = 0; i < lines.size(); i++) {
+				newRing.pushBack(lines.get(i));
+			}
+			lines.clear();
+			ring = newRing;
+		} else if(!flag && ring != null) {
+			ring.copyTo(lines, true);
+			ring = null;
+		}
+	}
+	
+	/**
+	 * Returns whether the display is in scrolling mode.
+	 * @return
+	 */
+	public boolean isScrolling() {
+		return ring != null;
+	}
+	
 	/**
 	 * Adds a line of text that is indexed numerically, and increases
 	 * sequentially, starting from 0.  If the amount of configured lines
 	 * is greater than or equal to the maximum amount of lines, then this
-	 * command will be ignored.
+	 * command will be ignored.  In scrolling mode line 0 is dropped instead.
 	 * @param line
 	 */
 	public void addLine(String line) {
-		if(lines.size() < maxLines)
+		if(ring != null) {
+			ring.pushBack(line);
+		} else if(lines.size() < maxLines) {
 			lines.add(line);
+		}
+		markDirty();
+	}
+	
+	/**
+	 * Makes the passed line line 0 and shifts everything else down by one,
+	 * dropping the last line if the display is full.
+	 * This is constant time in scrolling mode.
+	 * @param line
+	 */
+	public void pushLineTop(String line) {
+		insertLine(line, 0);
+	}
+	
+	/**
+	 * Adds the passed line after the last line.  If the display is full, line 0 is dropped
+	 * and everything else shifts up by one.
+	 * This is constant time in scrolling mode.
+	 * @param line
+	 */
+	public void pushLineBottom(String line) {
+		if(ring != null) {
+			ring.pushBack(line);
+		} else {
+			if(lines.size() >= maxLines)
+				lines.remove(0);
+			lines.add(line);
+		}
+		markDirty();
 	}
 	
 	/**
@@ -185,6 +287,12 @@ public class MDisplay {
 	 * @param index
 	 */
 	public void insertLine(String line, int index) {
+		if(ring != null) {
+			ring.insert(index, line);
+			markDirty();
+			return;
+		}
+		
 		lines.add(index, line);
 		
 		//cutting off the lines that extend past the maximum amount of lines value
@@ -193,6 +301,7 @@ public class MDisplay {
 				lines.remove(maxLines);
 			}
 		}
+		markDirty();
 	}
 	
 	/**
@@ -201,14 +310,22 @@ public class MDisplay {
 	 * @param index
 	 */
 	public void removeLine(int index) {
-		lines.remove(index);
+		if(ring != null)
+			ring.remove(index);
+		else
+			lines.remove(index);
+		markDirty();
 	}
 	
 	/**
 	 * Clears all lines.
 	 */
 	public void clear() {
-		lines.clear();
+		if(ring != null)
+			ring.clear();
+		else
+			lines.clear();
+		markDirty();
 	}
 	
 	/**
@@ -218,6 +335,7 @@ public class MDisplay {
 	 */
 	public void setDisplayForward() {
 		isDisplayTopToBottom = true;
+		markDirty();
 	}
 	
 	/**
@@ -234,54 +352,319 @@ public class MDisplay {
 	 */
 	public void setDisplayReverse() {
 		isDisplayTopToBottom = false;
+		markDirty();
 	}
 	
 	/**
-	 * Returns the array list that contains all of the lines.	
+	 * Returns the array list that contains all of the lines.
+	 * Throws an {@link IllegalStateException} in scrolling mode.
 	 * @return
 	 */
 	public ArrayList<String> getArrayList() {
+		if(ring != null)
+			throw new IllegalStateException("The lines are not kept in an array list in scrolling mode.");
 		return lines;
 	}
 	
 	/**
-	 * Updates various variables and the displays what is currently configured
-	 * on the console.
+	 * Determines if the display is drawn with ANSI escape sequences, which only rewrites
+	 * the lines that changed, or by clearing the console with an external process and printing
+	 * every line.  Defaults to ANSI everywhere except Windows.  See {@link MTerminal}.
+	 * @param flag
 	 */
-	public void display() {
+	public void setAnsiRendering(boolean flag) {
+		ansiRendering = flag;
+	}
+	
+	/**
+	 * Returns whether the display is drawn with ANSI escape sequences.
+	 * @return
+	 */
+	public boolean isAnsiRendering() {
+		return ansiRendering;
+	}
+	
+	/**
+	 * Shows a text file instead of the lines, starting at its first line.  The window is as
+	 * tall as the maximum amount of lines.  The lines of the display are kept and show again after {@link #closeFile()}.
+	 * The file is shown as it was when it was opened.
+	 * @param path
+	 * @throws IOException if the file cannot be opened.
+	 */
+	public synchronized void openFile(String path) throws IOException {
+		MappedTextFile opened = new MappedTextFile(Paths.get(path));
+		closeFile();
+		file = opened;
+		fileName = path;
+		fileTop = 0;
+		markDirty();
+	}
+	
+	/**
+	 * Closes the file opened with {@link #openFile(String)}, the display shows its lines again.
+	 */
+	public synchronized void closeFile() {
+		if(file == null)
+			return;
 		
-		//Clears the console
 		try {
-			String os = System.getProperty("os.name");
+			file.close();
+		} catch(IOException e) {
+			System.err.println("Cannot close " + fileName + "!!!");
+			e.printStackTrace();
+		}
+		file = null;
+		fileName = null;
+		markDirty();
+	}
+	
+	/**
+	 * Returns whether a file is shown.
+	 * @return
+	 */
+	public synchronized boolean isFileOpen() {
+		return file != null;
+	}
+	
+	/**
+	 * Moves the file window down by a number of lines, without going past the last line.
+	 * @param count
+	 */
+	public synchronized void scrollDown(int count) {
+		MappedTextFile f = openedFile();
+		long last = f.lastLineStart();
+		for(int i = 0; i < count && fileTop < last; i++) {
+			fileTop = f.nextLineStart(fileTop);
+		}
+		markDirty();
+	}
+	
+	/**
+	 * Moves the file window up by a number of lines, without going past the first line.
+	 * @param count
+	 */
+	public synchronized void scrollUp(int count) {
+		MappedTextFile f = openedFile();
+		for(int i = 0; i < count && fileTop > 0; i++) {
+			fileTop = f.previousLineStart(fileTop);
+		}
+		markDirty();
+	}
+	
+	/**
+	 * Moves the file window down by one window.
+	 */
+	public void pageDown() {
+		scrollDown(maxLines);
+	}
+	
+	/**
+	 * Moves the file window up by one window.
+	 */
+	public void pageUp() {
+		scrollUp(maxLines);
+	}
+	
+	/**
+	 * Moves the file window to the first line of the file.
+	 */
+	public synchronized void goToStart() {
+		openedFile();
+		fileTop = 0;
+		markDirty();
+	}
+	
+	/**
+	 * Moves the file window so the last line of the file is at the bottom.
+	 */
+	public synchronized void goToEnd() {
+		fileTop = openedFile().lastLineStart();
+		scrollUp(maxLines - 1);
+	}
+	
+	/**
+	 * Moves the file window so it starts at a line.
+	 * The first jump far into a file has to count the lines up to it, later jumps before that point are quick.
+	 * @param line Starting at 0.  Past the end of the file moves to the last line.
+	 */
+	public synchronized void goToLine(long line) {
+		if(line < 0)
+			throw new IllegalArgumentException("The line cannot be negative.");
+		fileTop = openedFile().lineOffset(line);
+		markDirty();
+	}
+	
+	/**
+	 * Moves the file window to the first log record at or after the time, found with a binary search,
+	 * so it only works for files in time order like the ones the loggers write.
+	 * Understands the text and JSON layouts of {@link mtools.logging.MFileLogger}.
+	 * @param time
+	 * @return false if every record is older, the window then moves to the end of the file.
+	 */
+	public synchronized boolean goToTimestamp(Instant time) {
+		MappedTextFile f = openedFile();
+		long offset = f.findTimestamp(time);
+		if(offset >= f.size()) {
+			goToEnd();
+			return false;
+		}
+		fileTop = offset;
+		markDirty();
+		return true;
+	}
+	
+	private MappedTextFile openedFile() {
+		if(file == null)
+			throw new IllegalStateException("No file is open.");
+		return file;
+	}
+	
+	/**
+	 * Sets how many times per second the automatic refresh redraws the display at most.
+	 * Changes that come in faster than that are drawn together in the next frame.
+	 * The default is 30.  Anything less than 1 results in the default.
+	 * @param fps
+	 */
+	public void setMaxFrameRate(int fps) {
+		if(fps > 0)
+			maxFrameRate = fps;
+		else
+			maxFrameRate = 30;
+	}
+	
+	/**
+	 * Returns the maximum number of automatic redraws per second.
+	 * @return
+	 */
+	public int getMaxFrameRate() {
+		return maxFrameRate;
+	}
+	
+	/**
+	 * Starts a background thread that redraws the display whenever its lines or banner change,
+	 * at most {@link #getMaxFrameRate()} times per second.  Does nothing if it is already running.
+	 * Only the scrolling mode is safe to change from several threads while the refresh runs.
+	 */
+	public void startAutoRefresh() {
+		synchronized(refreshSignal) {
+			if(refreshThread != null)
+				return;
+			
+			refreshing = true;
+			dirty = true;
+			refreshThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					refreshLoop();
+				}
+			}, "MDisplay refresh");
+			refreshThread.setDaemon(true);
+			refreshThread.start();
+		}
+	}
+	
+	/**
+	 * Stops the automatic refresh and waits for the last frame to finish.
+	 */
+	public void stopAutoRefresh() {
+		Thread thread;
+		synchronized(refreshSignal) {
+			thread = refreshThread;
+			if(thread == null)
+				return;
+			refreshing = false;
+			refreshThread = null;
+			refreshSignal.notifyAll();
+		}
+		
+		try {
+			thread.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void markDirty() {
+		synchronized(refreshSignal) {
+			if(refreshThread != null && !dirty) {
+				dirty = true;
+				refreshSignal.notifyAll();
+			}
+		}
+	}
+	
+	private void refreshLoop() {
+		long lastFrame = System.nanoTime() - 1_000_000_000L;
+		while(true) {
+			synchronized(refreshSignal) {
+				while(refreshing && !dirty) {
+					try {
+						refreshSignal.wait();
+					} catch(InterruptedException e) {
+						return;
+					}
+				}
+				if(!refreshing)
+					return;
+			}
 			
-			if(os.contains("Windows")) {
-				ProcessBuilder pb = new ProcessBuilder("cmd", "/c", "cls");
-				Process startProcess = pb.inheritIO().start();
-				startProcess.waitFor();
-			} else {
-				ProcessBuilder pb = new ProcessBuilder("clear");
-				Process startProcess = pb.inheritIO().start();
-				startProcess.waitFor();
+			//Waits out the rest of the frame, anything that changes meanwhile goes into this frame.
+			long wait = lastFrame + 1_000_000_000L / maxFrameRate - System.nanoTime();
+			if(wait > 0)
+				LockSupport.parkNanos(wait);
+			
+			synchronized(refreshSignal) {
+				dirty = false;
 			}
-		} catch(Exception e) {
-			System.out.println(e);
+			lastFrame = System.nanoTime();
+			display();
 		}
-		//end of console clearing
+	}
+	
+	/**
+	 * Updates various variables and the displays what is currently configured
+	 * on the console.
+	 */
+	public synchronized void display() {
+		frame.clear();
 		
 		if(banner != null && bannerFlag == true) {
-			System.out.println(banner);
-			System.out.println();
+			frame.add(banner);
+			frame.add("");
 		}
 		
 		//Sets the print orientation on the console
-		if(isDisplayTopToBottom) {
+		if(file != null) {
+			//Files are always shown in their own order.
+			file.readLines(fileTop, maxLines, frame);
+			frame.add("");
+			frame.add(fileStatus());
+		} else if(ring != null) {
+			ring.copyTo(frame, isDisplayTopToBottom);
+		} else if(isDisplayTopToBottom) {
 			for(int i = 0; i<lines.size(); i++) {
-				System.out.println(lines.get(i));
+				frame.add(lines.get(i));
 			}
 		} else {
 			for(int i = lines.size() - 1; i >= 0; i--) {
-				System.out.println(lines.get(i));
+				frame.add(lines.get(i));
 			}
 		}
+		
+		if(ansiRendering)
+			MTerminal.render(frame);
+		else
+			MTerminal.renderWithProcessClear(frame);
+	}
+	
+	private String fileStatus() {
+		StringBuilder status = new StringBuilder(fileName);
+		long line = file.knownLineNumber(fileTop);
+		if(line >= 0)
+			status.append("  line ").append(line);
+		long size = file.size();
+		long percent = size == 0 ? 100 : fileTop * 100 / size;
+		status.append("  ").append(percent).append("% of ").append(size).append(" bytes");
+		return status.toString();
 	}
 }
@@ -44,19 +44,56 @@ import java.util.ArrayList;
  * and displays numbered options below that.  By default,
  * the banner is disabled and will not show.  If you need
  * to display something that isn't menu oriented, use {@link MDisplay}
+ * The menu is drawn with {@link MTerminal}, which only rewrites the lines that changed
+ * since the last refresh.
+ * <p>
+ * Long menus are split into pages that fit the console, see {@link #setPageSize(int)}, and only the
+ * current page is drawn.  {@link #setFilter(String)} narrows the menu down to the items that contain
+ * the filter text.  Items keep their number while filtered, so the number typed in still selects the same item.
  * @author Noah
  *
  */
 public class MMenu {
-	private ArrayList<String> menuItems;
+	
+	/**
+	 * The menu items.  Counts every change, replacing an item included, so the search index can tell
+	 * when the list was changed through {@link MMenu#getArrayList()}.
+	 */
+	private static final class ItemList extends ArrayList<String> {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		public String set(int i, String item) {
+			String old = super.set(i, item);
+			modCount++;
+			return old;
+		}
+		
+		int getModCount() {
+			return modCount;
+		}
+	}
+	
+	private final ItemList menuItems = new ItemList();
 	private String banner;
 	private boolean bannerFlag;
+	private boolean ansiRendering = MTerminal.isAnsiSupported();
+	private final ArrayList<String> frame = new ArrayList<String>();
+	
+	//Built on the first search, then kept up to date as items change.
+	private MenuIndex index;
+	//The change count of the items the index was last brought up to date with.
+	private int indexedModCount;
+	private String filter = "";
+	//Item indexes that match the filter, null when they have to be searched again.
+	private int[] matches;
+	private int pageSize;
+	private int page;
 	
 	/**
 	 * Default constructor.
 	 */
 	public MMenu() {
-		menuItems = new ArrayList<String>();
 		banner = null;
 		bannerFlag = false;
 	}
@@ -66,7 +103,6 @@ public class MMenu {
 	 * @param b
 	 */
 	public MMenu(String b) {
-		menuItems = new ArrayList<String>();
 		banner = b;
 		bannerFlag = true;
 	}
@@ -113,7 +149,13 @@ public class MMenu {
 	 * @param s
 	 */
 	public void addMenuItem(String s) {
+		boolean inSync = isIndexInSync();
 		menuItems.add(s);
+		if(inSync) {
+			index.insert(menuItems.size() - 1, s);
+			indexedModCount = menuItems.getModCount();
+		}
+		matches = null;
 	}
 	
 	/**
@@ -123,7 +165,13 @@ public class MMenu {
 	 * @param index
 	 */
 	public void insertMenuItem(String s, int index) {
+		boolean inSync = isIndexInSync();
 		menuItems.add(index, s);
+		if(inSync) {
+			this.index.insert(index, s);
+			indexedModCount = menuItems.getModCount();
+		}
+		matches = null;
 	}
 	
 	/**
@@ -131,7 +179,13 @@ public class MMenu {
 	 * @param index
 	 */
 	public void deleteMenuItem(int index) {
+		boolean inSync = isIndexInSync();
 		menuItems.remove(index);
+		if(inSync) {
+			this.index.remove(index);
+			indexedModCount = menuItems.getModCount();
+		}
+		matches = null;
 	}
 	
 	/**
@@ -139,44 +193,244 @@ public class MMenu {
 	 */
 	public void clearMenu() {
 		menuItems.clear();
+		if(index != null) {
+			index.clear();
+			indexedModCount = menuItems.getModCount();
+		}
+		matches = null;
+		page = 0;
 	}
 	
 	/**
-	 * Returns the array list that contains all of the menu items.	
+	 * Returns the array list that contains all of the menu items.
+	 * Items added, removed or replaced through the list are picked up by the next search, the index is rebuilt then.
+	 * Call {@link #rebuildSearchIndex()} after replacing items through a {@link ArrayList#subList(int, int)}, which the list can't see.
 	 * @return
 	 */
 	public ArrayList<String> getArrayList() {
 		return menuItems;
 	}
 	
+	/**
+	 * Only shows the items that contain the text, ignoring case.  An empty string or null shows every item.
+	 * Typing a filter one character at a time is cheap, each longer filter only checks the items that matched before.
+	 * Goes back to the first page.
+	 * @param text
+	 */
+	public void setFilter(String text) {
+		String normalized = text == null ? "" : MenuIndex.normalize(text);
+		if(normalized.equals(filter))
+			return;
+		
+		if(normalized.length() == 0) {
+			matches = null;
+		} else {
+			syncIndex();
+			if(matches != null && filter.length() > 0 && normalized.contains(filter))
+				matches = index.narrow(normalized, matches);
+			else
+				matches = index.search(normalized);
+		}
+		filter = normalized;
+		page = 0;
+	}
+	
+	/**
+	 * Removes the filter, every item is shown again.
+	 */
+	public void clearFilter() {
+		setFilter(null);
+	}
+	
+	/**
+	 * Returns the current filter in lower case, an empty string if there is none.
+	 * @return
+	 */
+	public String getFilter() {
+		return filter;
+	}
+	
+	/**
+	 * Returns the number of items that match the filter, or the size of the menu without a filter.
+	 * @return
+	 */
+	public int getMatchCount() {
+		if(filter.length() == 0)
+			return menuItems.size();
+		return matches().length;
+	}
+	
+	/**
+	 * Returns the menu index of a matching item.
+	 * @param i Between 0 and {@link #getMatchCount()}.
+	 * @return
+	 */
+	public int getMatchIndex(int i) {
+		if(filter.length() == 0) {
+			if(i < 0 || i >= menuItems.size())
+				throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + menuItems.size());
+			return i;
+		}
+		return matches()[i];
+	}
+	
+	/**
+	 * Indexes every item again.  Only needed after items were replaced through a sub list of {@link #getArrayList()}.
+	 */
+	public void rebuildSearchIndex() {
+		if(index != null) {
+			index.rebuild(menuItems);
+			indexedModCount = menuItems.getModCount();
+		}
+		matches = null;
+	}
+	
+	/**
+	 * Sets how many items are shown per page.  0, the default, fits the page to the height
+	 * of the console, see {@link MTerminal#getRows()}.
+	 * @param items
+	 */
+	public void setPageSize(int items) {
+		if(items < 0)
+			throw new IllegalArgumentException("The page size cannot be negative.");
+		pageSize = items;
+	}
+	
+	/**
+	 * Returns how many items fit on a page right now.
+	 * @return
+	 */
+	public int getPageSize() {
+		if(pageSize > 0)
+			return pageSize;
+		
+		//Leaves room for the banner, the page line and the input line.
+		int rows = MTerminal.getRows() - 3;
+		if(banner != null && bannerFlag)
+			rows -= 2;
+		return Math.max(1, rows);
+	}
+	
+	/**
+	 * Returns the number of pages, at least 1.
+	 * @return
+	 */
+	public int getPageCount() {
+		int size = getPageSize();
+		return Math.max(1, (getMatchCount() + size - 1) / size);
+	}
+	
+	/**
+	 * Returns the page that is shown, starting at 0.
+	 * @return
+	 */
+	public int getPage() {
+		return page;
+	}
+	
+	/**
+	 * Sets the page that is shown.  Out of range pages are moved to the first or last page.
+	 * @param page
+	 */
+	public void setPage(int page) {
+		this.page = Math.max(0, Math.min(page, getPageCount() - 1));
+	}
+	
+	/**
+	 * Moves to the next page, if there is one.
+	 */
+	public void nextPage() {
+		setPage(page + 1);
+	}
+	
+	/**
+	 * Moves to the previous page, if there is one.
+	 */
+	public void previousPage() {
+		setPage(page - 1);
+	}
+	
+	private int[] matches() {
+		syncIndex();
+		if(matches == null)
+			matches = index.search(filter);
+		return matches;
+	}
+	
+	/**
+	 * Builds the index on the first search, and rebuilds it if the items were changed through the array list.
+	 */
+	private void syncIndex() {
+		if(isIndexInSync())
+			return;
+		
+		if(index == null)
+			index = new MenuIndex();
+		index.rebuild(menuItems);
+		indexedModCount = menuItems.getModCount();
+		matches = null;
+	}
+	
+	/**
+	 * Returns true if the index exists and no item was changed behind its back.
+	 */
+	private boolean isIndexInSync() {
+		return index != null && indexedModCount == menuItems.getModCount();
+	}
+	
+	/**
+	 * Determines if the menu is drawn with ANSI escape sequences, which only rewrites
+	 * the lines that changed, or by clearing the console with an external process and printing
+	 * every line.  Defaults to ANSI everywhere except Windows.  See {@link MTerminal}.
+	 * @param flag
+	 */
+	public void setAnsiRendering(boolean flag) {
+		ansiRendering = flag;
+	}
+	
+	/**
+	 * Returns whether the menu is drawn with ANSI escape sequences.
+	 * @return
+	 */
+	public boolean isAnsiRendering() {
+		return ansiRendering;
+	}
+	
 	/**
 	 * Clears the console and then displays the window at its current configuration.
 	 */
 	public void display() {
-		try {
-			String os = System.getProperty("os.name");
-			
-			if(os.contains("Windows")) {
-				ProcessBuilder pb = new ProcessBuilder("cmd", "/c", "cls");
-				Process startProcess = pb.inheritIO().start();
-				startProcess.waitFor();
-			} else {
-				ProcessBuilder pb = new ProcessBuilder("clear");
-				Process startProcess = pb.inheritIO().start();
-				startProcess.waitFor();
-			}
-		} catch(Exception e) {
-			System.out.println(e);
-		}
+		frame.clear();
 		
 		if(banner != null && bannerFlag == true) {
-			System.out.println(banner);
-			System.out.println();
+			frame.add(banner);
+			frame.add("");
 		}
 		
-		for(int i = 0; i<menuItems.size(); i++) {
-			System.out.println(i + ". " + menuItems.get(i));
+		//Only the items on the current page are drawn.
+		int count = getMatchCount();
+		int size = getPageSize();
+		int pages = Math.max(1, (count + size - 1) / size);
+		if(page >= pages)
+			page = pages - 1;
+		int end = Math.min(count, (page + 1) * size);
+		for(int i = page * size; i < end; i++) {
+			int item = getMatchIndex(i);
+			frame.add(item + ". " + menuItems.get(item));
 		}
+		
+		if(pages > 1 || filter.length() > 0) {
+			frame.add("");
+			String status = "Page " + (page + 1) + " of " + pages;
+			if(filter.length() > 0)
+				status += ", " + count + " of " + menuItems.size() + " items match \"" + filter + "\"";
+			frame.add(status);
+		}
+		
+		if(ansiRendering)
+			MTerminal.render(frame);
+		else
+			MTerminal.renderWithProcessClear(frame);
 	}
 	
 }
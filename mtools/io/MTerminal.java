@@ -0,0 +1,290 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.io;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Draws frames of text on the console with ANSI escape sequences instead of clearing it with an external process.
+ * The last frame that was drawn is kept, and the next frame only rewrites the lines that changed.
+ * Every frame goes out as a single write, so a status screen can be redrawn many times per second.
+ * This is what {@link MDisplay}, {@link MMenu} and {@link MConsole#clear()} use.
+ * <p>
+ * The previous frame belongs to the console, not to the object that drew it, so displays and menus can
+ * take turns on the same console.  Anything else printed to the console moves the text around behind the
+ * renderer's back, call {@link #invalidate()} afterwards so the next frame is drawn in full.  Lines longer than
+ * the console is wide, and frames taller than it is high, make the console wrap or scroll and have the same effect.
+ * <p>
+ * For scripted runs, see {@link MConsole#fromScript(String)}, {@link #enableBatchMode(PrintStream)} stops
+ * drawing altogether: frames are dropped or written to a log as plain text, and nothing clears the console.
+ * @author Noah
+ *
+ */
+public class MTerminal {
+	
+	private static final String CSI = "\u001B[";
+	
+	private static final boolean WINDOWS = System.getProperty("os.name", "").contains("Windows");
+	
+	//null when the content of the console is unknown.
+	private static String[] previousFrame = null;
+	private static final StringBuilder frame = new StringBuilder(4096);
+	
+	private static boolean batchMode;
+	//Where frames go in batch mode, null to drop them.
+	private static PrintStream batchLog;
+	
+	static final int DEFAULT_ROWS = 24;
+	//The height is looked up again after this long, in case the console was resized.
+	private static final long ROWS_CACHE_NANOS = 2_000_000_000L;
+	private static int rows;
+	private static long rowsCheckedNanos;
+	
+	/**
+	 * Returns true if the console is expected to understand ANSI escape sequences.
+	 * That's everything except Windows, where older consoles print the sequences as text.
+	 * @return
+	 */
+	public static boolean isAnsiSupported() {
+		return !WINDOWS;
+	}
+	
+	/**
+	 * Stops drawing on the console.  Frames are written to the log as plain text followed by a "----" line,
+	 * or dropped if the log is null.  Clearing the console does nothing, no process is started,
+	 * and {@link #getRows()} reports 24 rows without asking the console.
+	 * @param frameLog
+	 */
+	public static synchronized void enableBatchMode(PrintStream frameLog) {
+		batchMode = true;
+		batchLog = frameLog;
+	}
+	
+	/**
+	 * Draws on the console again, starting with a full frame.
+	 */
+	public static synchronized void disableBatchMode() {
+		batchMode = false;
+		batchLog = null;
+		previousFrame = null;
+	}
+	
+	/**
+	 * Returns whether batch mode is on.
+	 * @return
+	 */
+	public static synchronized boolean isBatchMode() {
+		return batchMode;
+	}
+	
+	/**
+	 * Writes a frame to the batch log, if there is one.
+	 * @param lines
+	 */
+	private static void logFrame(List<String> lines) {
+		if(batchLog == null)
+			return;
+		
+		frame.setLength(0);
+		String separator = System.lineSeparator();
+		for(int i = 0; i < lines.size(); i++) {
+			frame.append(lines.get(i)).append(separator);
+		}
+		frame.append("----").append(separator);
+		batchLog.print(frame);
+	}
+	
+	/**
+	 * Returns the height of the console in rows.
+	 * Uses the LINES environment variable if it is set, otherwise asks "stty size" everywhere except Windows.
+	 * Falls back to 24 rows.  The result is cached for 2 seconds.
+	 * @return
+	 */
+	public static synchronized int getRows() {
+		if(batchMode)
+			return DEFAULT_ROWS;
+		
+		long now = System.nanoTime();
+		if(rows > 0 && now - rowsCheckedNanos < ROWS_CACHE_NANOS)
+			return rows;
+		
+		rows = detectRows();
+		rowsCheckedNanos = now;
+		return rows;
+	}
+	
+	private static int detectRows() {
+		String lines = System.getenv("LINES");
+		if(lines != null) {
+			try {
+				int value = Integer.parseInt(lines.trim());
+				if(value > 0)
+					return value;
+			} catch(NumberFormatException e) {
+				//Falls through to stty.
+			}
+		}
+		
+		File tty = new File("/dev/tty");
+		if(!WINDOWS && tty.exists()) {
+			try {
+				Process process = new ProcessBuilder("stty", "size").redirectInput(tty).redirectErrorStream(true).start();
+				BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+				String size = reader.readLine();
+				reader.close();
+				process.waitFor();
+				if(size != null) {
+					//"rows columns"
+					String[] parts = size.trim().split("\\s+");
+					int value = Integer.parseInt(parts[0]);
+					if(value > 0)
+						return value;
+				}
+			} catch(Exception e) {
+				//Not a terminal, falls back to the default.
+			}
+		}
+		return DEFAULT_ROWS;
+	}
+	
+	/**
+	 * Draws a frame from the top left corner of the console.
+	 * Only the lines that differ from the previous frame are rewritten, and everything below
+	 * the frame is cleared.  The cursor is left on the line below the frame.
+	 * @param lines
+	 */
+	public static synchronized void render(List<String> lines) {
+		if(batchMode) {
+			logFrame(lines);
+			return;
+		}
+		
+		frame.setLength(0);
+		
+		if(previousFrame == null)
+			frame.append(CSI).append("H").append(CSI).append("2J");
+		
+		int count = lines.size();
+		for(int i = 0; i < count; i++) {
+			String line = lines.get(i);
+			if(previousFrame != null && i < previousFrame.length && Objects.equals(line, previousFrame[i]))
+				continue;
+			
+			//Moves to the start of the row, writes the line and clears what is left of the old one.
+			frame.append(CSI).append(i + 1).append(";1H").append(String.valueOf(line)).append(CSI).append('K');
+		}
+		
+		//Clears whatever is below the frame, such as a shorter previous frame or echoed input.
+		frame.append(CSI).append(count + 1).append(";1H").append(CSI).append('J');
+		
+		System.out.print(frame);
+		System.out.flush();
+		
+		previousFrame = lines.toArray(new String[count]);
+	}
+	
+	/**
+	 * Forgets the previous frame, so the next one clears the console and is drawn in full.
+	 */
+	public static synchronized void invalidate() {
+		previousFrame = null;
+	}
+	
+	/**
+	 * Clears the console.
+	 * Uses ANSI escape sequences if they are supported, otherwise runs "cls".
+	 */
+	public static synchronized void clear() {
+		if(batchMode)
+			return;
+		
+		if(isAnsiSupported()) {
+			System.out.print(CSI + "H" + CSI + "2J");
+			System.out.flush();
+			previousFrame = new String[0];
+		} else {
+			clearWithProcess();
+			previousFrame = null;
+		}
+	}
+	
+	/**
+	 * Clears the console with {@link #clearWithProcess()} and then prints the frame in a single write.
+	 * For consoles that don't understand ANSI escape sequences.
+	 * @param lines
+	 */
+	static synchronized void renderWithProcessClear(List<String> lines) {
+		if(batchMode) {
+			logFrame(lines);
+			return;
+		}
+		
+		clearWithProcess();
+		previousFrame = null;
+		
+		frame.setLength(0);
+		String separator = System.lineSeparator();
+		for(int i = 0; i < lines.size(); i++) {
+			frame.append(lines.get(i)).append(separator);
+		}
+		System.out.print(frame);
+		System.out.flush();
+	}
+	
+	/**
+	 * Clears the console by running "clear", or "cmd /c cls" on Windows, and waiting for it.
+	 */
+	static void clearWithProcess() {
+		try {
+			if(WINDOWS) {
+				ProcessBuilder pb = new ProcessBuilder("cmd", "/c", "cls");
+				Process startProcess = pb.inheritIO().start();
+				startProcess.waitFor();
+			} else {
+				ProcessBuilder pb = new ProcessBuilder("clear");
+				Process startProcess = pb.inheritIO().start();
+				startProcess.waitFor();
+			}
+		} catch(Exception e) {
+			System.out.println(e);
+		}
+	}
+}
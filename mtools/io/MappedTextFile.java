@@ -0,0 +1,323 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read only view of a text file through memory mapping, for files far larger than the heap.
+ * Opening only maps the file, nothing is read until a line is asked for.
+ * The file is mapped in 1 GB segments, so it can be larger than a single mapping allows.
+ * <p>
+ * Line numbers go through a sparse index that remembers where every 1024th line starts.
+ * It is only extended as far as a jump to a line needs, so memory stays at 8 bytes per 1024 lines scanned.
+ * Failing to map a part of the file throws an {@link UncheckedIOException}.
+ * Used by the file mode of {@link MDisplay}.
+ * @author Noah
+ *
+ */
+final class MappedTextFile {
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+	private static final int CHECKPOINT_SHIFT = 10;
+	//Longer lines are cut off when they are read for display.
+	static final int MAX_LINE_BYTES = 4096;
+	//How far past the index a line number is still worked out for the status line.
+	private static final long CHEAP_SCAN_BYTES = 1 << 20;
+	
+	private final FileChannel channel;
+	private final long size;
+	private final MappedByteBuffer[] segments;
+	
+	//checkpoints[k] is where line k * 1024 starts.
+	private long[] checkpoints = new long[16];
+	private int checkpointCount = 1;
+	//Everything before scannedOffset has been counted, it is the start of line scannedLines.
+	private long scannedOffset;
+	private long scannedLines;
+	
+	private final byte[] lineBuffer = new byte[MAX_LINE_BYTES];
+	
+	MappedTextFile(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		size = channel.size();
+		segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+	}
+	
+	long size() {
+		return size;
+	}
+	
+	void close() throws IOException {
+		Arrays.fill(segments, null);
+		channel.close();
+	}
+	
+	private int byteAt(long offset) {
+		int segment = (int) (offset >>> SEGMENT_SHIFT);
+		MappedByteBuffer buffer = segments[segment];
+		if(buffer == null) {
+			long start = (long) segment << SEGMENT_SHIFT;
+			try {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_MASK + 1, size - start));
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			segments[segment] = buffer;
+		}
+		return buffer.get((int) (offset & SEGMENT_MASK));
+	}
+	
+	/**
+	 * Returns the start of the line after the one at the offset, or the size of the file if it is the last line.
+	 * @param offset
+	 * @return
+	 */
+	long nextLineStart(long offset) {
+		for(long i = offset; i < size; i++) {
+			if(byteAt(i) == '\n')
+				return i + 1;
+		}
+		return size;
+	}
+	
+	/**
+	 * Returns the start of the line that the offset is in.
+	 * @param offset
+	 * @return
+	 */
+	long lineStart(long offset) {
+		long i = Math.min(offset, size);
+		while(i > 0 && byteAt(i - 1) != '\n') {
+			i--;
+		}
+		return i;
+	}
+	
+	/**
+	 * Returns the start of the line before the one at the offset, 0 for the first line.
+	 * @param offset A line start.
+	 * @return
+	 */
+	long previousLineStart(long offset) {
+		if(offset == 0)
+			return 0;
+		return lineStart(offset - 1);
+	}
+	
+	/**
+	 * Returns the start of the last line that has any text.
+	 * @return
+	 */
+	long lastLineStart() {
+		long end = size;
+		if(end > 0 && byteAt(end - 1) == '\n')
+			end--;
+		return lineStart(end);
+	}
+	
+	/**
+	 * Returns where a line starts, scanning the file up to it if the index does not reach that far yet.
+	 * @param line Starting at 0.
+	 * @return The offset, or the start of the last line if the file has fewer lines.
+	 */
+	long lineOffset(long line) {
+		extendIndex(line, size);
+		
+		int checkpoint = (int) Math.min(line >>> CHECKPOINT_SHIFT, checkpointCount - 1);
+		long offset = checkpoints[checkpoint];
+		for(long i = (long) checkpoint << CHECKPOINT_SHIFT; i < line; i++) {
+			long next = nextLineStart(offset);
+			if(next >= size)
+				return offset;
+			offset = next;
+		}
+		return offset;
+	}
+	
+	/**
+	 * Counts lines until either limit is reached, remembering every 1024th line start.
+	 * @param lineLimit
+	 * @param offsetLimit
+	 */
+	private void extendIndex(long lineLimit, long offsetLimit) {
+		while(scannedLines < lineLimit && scannedOffset < offsetLimit && scannedOffset < size) {
+			scannedOffset = nextLineStart(scannedOffset);
+			scannedLines++;
+			if((scannedLines & ((1 << CHECKPOINT_SHIFT) - 1)) == 0 && scannedOffset < size) {
+				if(checkpointCount == checkpoints.length)
+					checkpoints = Arrays.copyOf(checkpoints, checkpointCount * 2);
+				checkpoints[checkpointCount++] = scannedOffset;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of the line that starts at the offset if the index already reaches it, or nearly, -1 otherwise.
+	 * Never scans more than 1024 lines or 1 MB, so it is cheap enough for every redraw.
+	 * @param offset A line start.
+	 * @return
+	 */
+	long knownLineNumber(long offset) {
+		if(offset > scannedOffset && offset - scannedOffset <= CHEAP_SCAN_BYTES)
+			extendIndex(Long.MAX_VALUE, offset);
+		if(offset > scannedOffset)
+			return -1;
+		
+		int low = 0;
+		int high = checkpointCount - 1;
+		while(low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if(checkpoints[mid] <= offset)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		
+		long line = (long) low << CHECKPOINT_SHIFT;
+		long i = checkpoints[low];
+		while(i < offset) {
+			i = nextLineStart(i);
+			line++;
+		}
+		return line;
+	}
+	
+	/**
+	 * Decodes the line that starts at the offset, without the line break.
+	 * @param offset
+	 * @return
+	 */
+	String readLine(long offset) {
+		int length = 0;
+		for(long i = offset; i < size && length < lineBuffer.length; i++) {
+			byte b = (byte) byteAt(i);
+			if(b == '\n')
+				break;
+			lineBuffer[length++] = b;
+		}
+		if(length > 0 && lineBuffer[length - 1] == '\r')
+			length--;
+		return new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Adds up to count lines, starting with the one at the offset.
+	 * @param offset
+	 * @param count
+	 * @param lines
+	 */
+	void readLines(long offset, int count, List<String> lines) {
+		for(int i = 0; i < count && offset < size; i++) {
+			lines.add(readLine(offset));
+			offset = nextLineStart(offset);
+		}
+	}
+	
+	/**
+	 * Finds the first line with a timestamp at or after the passed time with a binary search over the file,
+	 * so the file has to be in time order, as written by the loggers.
+	 * Lines without a timestamp, such as stack trace lines, belong to the record above them.
+	 * @param time
+	 * @return The offset of that line, or the size of the file if every record is older.
+	 */
+	long findTimestamp(Instant time) {
+		long low = 0;
+		long high = size;
+		while(low < high) {
+			long start = lineStart((low + high) >>> 1);
+			
+			long stamped = start;
+			Instant stamp = null;
+			while(stamped < high && (stamp = timestampAt(stamped)) == null) {
+				stamped = nextLineStart(stamped);
+			}
+			
+			if(stamp == null || !stamp.isBefore(time))
+				high = start;
+			else
+				low = nextLineStart(stamped);
+		}
+		
+		//The search can stop on a stack trace line of the last older record, which still belongs to it.
+		while(low < size && timestampAt(low) == null) {
+			low = nextLineStart(low);
+		}
+		return low;
+	}
+	
+	/**
+	 * Reads the timestamp a log line starts with, either the text layout of {@link mtools.logging.MFileLogger}
+	 * ("timestamp, Severity ...") or its JSON layout ({"timestamp":"...").
+	 * @param offset
+	 * @return null if the line does not start with a timestamp.
+	 */
+	private Instant timestampAt(long offset) {
+		String line = readLine(offset);
+		int start = 0;
+		int end;
+		if(line.startsWith("{")) {
+			String key = "\"timestamp\":\"";
+			start = line.indexOf(key);
+			if(start < 0)
+				return null;
+			start += key.length();
+			end = line.indexOf('"', start);
+		} else {
+			end = line.indexOf(',');
+		}
+		if(end <= start)
+			return null;
+		
+		String text = line.substring(start, end).trim();
+		try {
+			return OffsetDateTime.parse(text).toInstant();
+		} catch(DateTimeParseException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Search index over the items of a {@link MMenu}.  Every item is indexed by the
+ * three character sequences (trigrams) of its lower case text, so a search only checks
+ * the items that share the rarest trigram of the query instead of every item.
+ * Queries shorter than three characters check every item.
+ * The index is kept in step with the menu as items are inserted and deleted.
+ * @author Noah
+ *
+ */
+final class MenuIndex {
+	
+	private static final class Entry {
+		final String text;
+		int index;
+		
+		Entry(String text, int index) {
+			this.text = text;
+			this.index = index;
+		}
+	}
+	
+	private final ArrayList<Entry> entries = new ArrayList<Entry>();
+	private final HashMap<String, HashSet<Entry>> trigrams = new HashMap<String, HashSet<Entry>>();
+	
+	/**
+	 * Returns the text the way it is indexed and searched.
+	 * @param s
+	 * @return
+	 */
+	static String normalize(String s) {
+		return String.valueOf(s).toLowerCase(Locale.ROOT);
+	}
+	
+	int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Adds an item at the index, the items after it move up by one.
+	 * @param index
+	 * @param item
+	 */
+	void insert(int index, String item) {
+		Entry entry = new Entry(normalize(item), index);
+		entries.add(index, entry);
+		for(int i = index + 1; i < entries.size(); i++) {
+			entries.get(i).index = i;
+		}
+		
+		String text = entry.text;
+		for(int i = 0; i + 3 <= text.length(); i++) {
+			String gram = text.substring(i, i + 3);
+			HashSet<Entry> posting = trigrams.get(gram);
+			if(posting == null) {
+				posting = new HashSet<Entry>();
+				trigrams.put(gram, posting);
+			}
+			posting.add(entry);
+		}
+	}
+	
+	/**
+	 * Removes the item at the index, the items after it move down by one.
+	 * @param index
+	 */
+	void remove(int index) {
+		Entry entry = entries.remove(index);
+		for(int i = index; i < entries.size(); i++) {
+			entries.get(i).index = i;
+		}
+		
+		String text = entry.text;
+		for(int i = 0; i + 3 <= text.length(); i++) {
+			String gram = text.substring(i, i + 3);
+			HashSet<Entry> posting = trigrams.get(gram);
+			if(posting != null) {
+				posting.remove(entry);
+				if(posting.isEmpty())
+					trigrams.remove(gram);
+			}
+		}
+	}
+	
+	void clear() {
+		entries.clear();
+		trigrams.clear();
+	}
+	
+	/**
+	 * Indexes the items from scratch.
+	 * @param items
+	 */
+	void rebuild(List<String> items) {
+		clear();
+		for(int i = 0; i < items.size(); i++) {
+			insert(i, items.get(i));
+		}
+	}
+	
+	/**
+	 * Finds the items that contain the query.
+	 * @param query Already normalized.
+	 * @return The indexes of the matching items in ascending order.
+	 */
+	int[] search(String query) {
+		if(query.length() < 3) {
+			int[] matches = new int[entries.size()];
+			int count = 0;
+			for(int i = 0; i < entries.size(); i++) {
+				if(entries.get(i).text.contains(query))
+					matches[count++] = i;
+			}
+			return Arrays.copyOf(matches, count);
+		}
+		
+		//Every match contains every trigram of the query, so the smallest posting is enough.
+		HashSet<Entry> smallest = null;
+		for(int i = 0; i + 3 <= query.length(); i++) {
+			HashSet<Entry> posting = trigrams.get(query.substring(i, i + 3));
+			if(posting == null)
+				return new int[0];
+			if(smallest == null || posting.size() < smallest.size())
+				smallest = posting;
+		}
+		
+		int[] matches = new int[smallest.size()];
+		int count = 0;
+		for(Entry entry : smallest) {
+			if(entry.text.contains(query))
+				matches[count++] = entry.index;
+		}
+		matches = Arrays.copyOf(matches, count);
+		Arrays.sort(matches);
+		return matches;
+	}
+	
+	/**
+	 * Narrows earlier matches down to the ones that contain the query.
+	 * Used while typing, when the query only grows.
+	 * @param query Already normalized.
+	 * @param previous Result of an earlier search for a part of the query.
+	 * @return The indexes of the matching items in ascending order.
+	 */
+	int[] narrow(String query, int[] previous) {
+		int[] matches = new int[previous.length];
+		int count = 0;
+		for(int i = 0; i < previous.length; i++) {
+			if(entries.get(previous[i]).text.contains(query))
+				matches[count++] = previous[i];
+		}
+		return Arrays.copyOf(matches, count);
+	}
+}
@@ -0,0 +1,232 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Collects encoded records into blocks and writes every full block as its own gzip member, followed by an entry in the index file.
+ * Used by {@link MFileLogger#setCompression(int, long)}, always from one thread at a time.
+ * <p>
+ * A file of gzip members is a valid gzip file, "zcat" or {@link java.util.zip.GZIPInputStream} read it from the start.
+ * Every member starts with a fresh deflate stream, so {@link CompressedLogReader} can inflate any block on its own.
+ * A record is never split over two blocks, a record bigger than a block gets a block to itself.
+ * <p>
+ * The index file starts with the magic "MTIX", the version and the block size, followed by one entry per block:
+ * the offset of the member in the log file, its length, the length of the records in it, the lowest and highest
+ * timestamp of the records in microseconds and the number of records.  The index is written after the block,
+ * so a crash can at worst lose the index entry of the last block, never leave an entry without its block.
+ * A member that fails half way, such as on a full disk, is cut off the file again so the members after it can still be read.
+ * @author Noah
+ *
+ */
+final class CompressedBlockWriter {
+	
+	static final int INDEX_MAGIC = 0x4D544958;
+	static final int INDEX_VERSION = 1;
+	static final int INDEX_HEADER_SIZE = 12;
+	static final int INDEX_ENTRY_SIZE = 36;
+	static final int GZIP_HEADER_SIZE = 10;
+	static final int GZIP_TRAILER_SIZE = 8;
+	
+	private static final byte[] GZIP_HEADER = {
+		0x1f, (byte) 0x8b, Deflater.DEFLATED, 0,	//Magic, method and no flags.
+		0, 0, 0, 0,									//No modification time.
+		0, (byte) 0xff								//No extra flags, unknown OS.
+	};
+	
+	private final FileOutputStream out;
+	private final FileChannel channel;
+	private final DataOutputStream index;
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private final CRC32 crc = new CRC32();
+	private final byte[] block;
+	private int blockLength;
+	private byte[] member;
+	private final long flushIntervalNanos;
+	
+	private long minMicros;
+	private long maxMicros;
+	private int records;
+	private long blockStartNanos;
+	
+	/**
+	 * @param out The log file, members are written where it ends.
+	 * @param indexFile The index file, it is replaced.
+	 * @param blockSize The size of the uncompressed records in a block.
+	 * @param flushIntervalMillis The longest a record waits in an unfinished block.
+	 * @throws IOException
+	 */
+	CompressedBlockWriter(FileOutputStream out, String indexFile, int blockSize, long flushIntervalMillis) throws IOException {
+		this.out = out;
+		channel = out.getChannel();
+		block = new byte[blockSize];
+		member = new byte[GZIP_HEADER_SIZE + blockSize + blockSize / 8 + 64];
+		flushIntervalNanos = flushIntervalMillis * 1_000_000L;
+		
+		index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 4096));
+		index.writeInt(INDEX_MAGIC);
+		index.writeInt(INDEX_VERSION);
+		index.writeInt(blockSize);
+		index.flush();
+	}
+	
+	/**
+	 * Adds one encoded record to the current block, finishing the block first if the record doesn't fit.
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @param epochMicros The timestamp of the record, for the index.
+	 * @throws IOException
+	 */
+	void write(byte[] bytes, int offset, int length, long epochMicros) throws IOException {
+		if(length > block.length - blockLength)
+			finishBlock();
+		
+		if(length > block.length) {
+			writeMember(bytes, offset, length, epochMicros, epochMicros, 1);
+			return;
+		}
+		
+		if(records == 0) {
+			minMicros = epochMicros;
+			maxMicros = epochMicros;
+			blockStartNanos = System.nanoTime();
+		} else if(epochMicros < minMicros) {
+			//Priority records can overtake older ones, so the block keeps its range rather than its first and last timestamp.
+			minMicros = epochMicros;
+		} else if(epochMicros > maxMicros) {
+			maxMicros = epochMicros;
+		}
+		
+		System.arraycopy(bytes, offset, block, blockLength, length);
+		blockLength += length;
+		records++;
+	}
+	
+	/**
+	 * Finishes the current block if its oldest record has waited for the flush interval.
+	 * @throws IOException
+	 */
+	void flushIfDue() throws IOException {
+		if(records > 0 && System.nanoTime() - blockStartNanos >= flushIntervalNanos)
+			finishBlock();
+	}
+	
+	/**
+	 * Compresses and writes the current block, if it has any records.
+	 * @throws IOException
+	 */
+	void finishBlock() throws IOException {
+		if(records == 0)
+			return;
+		
+		writeMember(block, 0, blockLength, minMicros, maxMicros, records);
+		blockLength = 0;
+		records = 0;
+	}
+	
+	/**
+	 * Finishes the current block and closes the index file.  The log file is left to the caller.
+	 * @throws IOException
+	 */
+	void close() throws IOException {
+		try {
+			finishBlock();
+		} finally {
+			deflater.end();
+			index.close();
+		}
+	}
+	
+	private void writeMember(byte[] data, int offset, int length, long min, long max, int count) throws IOException {
+		System.arraycopy(GZIP_HEADER, 0, member, 0, GZIP_HEADER_SIZE);
+		int size = GZIP_HEADER_SIZE;
+		
+		deflater.reset();
+		deflater.setInput(data, offset, length);
+		deflater.finish();
+		while(!deflater.finished()) {
+			if(size + GZIP_TRAILER_SIZE >= member.length) {
+				byte[] bigger = new byte[member.length * 2];
+				System.arraycopy(member, 0, bigger, 0, size);
+				member = bigger;
+			}
+			size += deflater.deflate(member, size, member.length - GZIP_TRAILER_SIZE - size);
+		}
+		
+		crc.reset();
+		crc.update(data, offset, length);
+		size = writeIntLE(member, size, (int) crc.getValue());
+		size = writeIntLE(member, size, length);
+		
+		//Taken from the file rather than counted, so a failed member can't shift the offsets of the ones after it.
+		long fileOffset = channel.position();
+		try {
+			//The whole member in one write, a reader never sees half a header.
+			out.write(member, 0, size);
+		} catch(IOException e) {
+			try {
+				channel.truncate(fileOffset);
+			} catch(IOException truncateFailed) {
+				e.addSuppressed(truncateFailed);
+			}
+			throw e;
+		}
+		
+		index.writeLong(fileOffset);
+		index.writeInt(size);
+		index.writeInt(length);
+		index.writeLong(min);
+		index.writeLong(max);
+		index.writeInt(count);
+		index.flush();
+	}
+	
+	private static int writeIntLE(byte[] dest, int offset, int value) {
+		dest[offset] = (byte) value;
+		dest[offset + 1] = (byte) (value >>> 8);
+		dest[offset + 2] = (byte) (value >>> 16);
+		dest[offset + 3] = (byte) (value >>> 24);
+		return offset + 4;
+	}
+}
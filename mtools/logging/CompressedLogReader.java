@@ -0,0 +1,348 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a log file written by {@link MFileLogger} with compression on, see {@link MFileLogger#setCompression(int, long)}.
+ * The index file next to it tells where every block is and which timestamps it covers,
+ * so a time range is read by inflating only the blocks that overlap it.
+ * <p>
+ * The index is read when the reader is opened, {@link #refresh()} picks up the blocks written since.
+ * A log file that is still being written can be read, the block that isn't finished yet is not visible.
+ * @author Noah
+ *
+ */
+public class CompressedLogReader implements Closeable {
+	
+	private final String indexFile;
+	private final FileChannel channel;
+	private final Inflater inflater = new Inflater(true);
+	private final CRC32 crc = new CRC32();
+	private ByteBuffer member = ByteBuffer.allocate(1 << 16);
+	
+	private int blockSize;
+	private int blockCount;
+	private long[] offsets = new long[64];
+	private int[] compressedLengths = new int[64];
+	private int[] lengths = new int[64];
+	private long[] minMicros = new long[64];
+	private long[] maxMicros = new long[64];
+	private int[] recordCounts = new int[64];
+	
+	/**
+	 * Opens a compressed log file and reads its index, which is expected at the file name plus ".idx".
+	 * @param fileName
+	 * @throws IOException If either file can't be read or the index is not an index.
+	 */
+	public CompressedLogReader(String fileName) throws IOException {
+		this(fileName, fileName + ".idx");
+	}
+	
+	/**
+	 * Opens a compressed log file with the index somewhere else.
+	 * @param fileName
+	 * @param indexFile
+	 * @throws IOException If either file can't be read or the index is not an index.
+	 */
+	public CompressedLogReader(String fileName, String indexFile) throws IOException {
+		this.indexFile = indexFile;
+		channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		try {
+			refresh();
+		} catch(IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Reads the entries that were added to the index since it was last read.
+	 * @throws IOException
+	 */
+	public synchronized void refresh() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 1 << 16));
+		try {
+			if(in.readInt() != CompressedBlockWriter.INDEX_MAGIC)
+				throw new IOException(indexFile + " is not a log index.");
+			int version = in.readInt();
+			if(version != CompressedBlockWriter.INDEX_VERSION)
+				throw new IOException("Unknown log index version " + version + ".");
+			blockSize = in.readInt();
+			
+			long skip = (long) blockCount * CompressedBlockWriter.INDEX_ENTRY_SIZE;
+			while(skip > 0) {
+				long skipped = in.skip(skip);
+				if(skipped <= 0)
+					throw new EOFException(indexFile + " got shorter.");
+				skip -= skipped;
+			}
+			
+			long fileSize = channel.size();
+			while(true) {
+				long offset;
+				int compressedLength, length, count;
+				long min, max;
+				try {
+					offset = in.readLong();
+					compressedLength = in.readInt();
+					length = in.readInt();
+					min = in.readLong();
+					max = in.readLong();
+					count = in.readInt();
+				} catch(EOFException e) {
+					//The end, or an entry that is still being written.
+					break;
+				}
+				if(offset + compressedLength > fileSize)
+					break;
+				addEntry(offset, compressedLength, length, min, max, count);
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	private void addEntry(long offset, int compressedLength, int length, long min, long max, int count) {
+		if(blockCount == offsets.length) {
+			int capacity = blockCount * 2;
+			offsets = Arrays.copyOf(offsets, capacity);
+			compressedLengths = Arrays.copyOf(compressedLengths, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			minMicros = Arrays.copyOf(minMicros, capacity);
+			maxMicros = Arrays.copyOf(maxMicros, capacity);
+			recordCounts = Arrays.copyOf(recordCounts, capacity);
+		}
+		offsets[blockCount] = offset;
+		compressedLengths[blockCount] = compressedLength;
+		lengths[blockCount] = length;
+		minMicros[blockCount] = min;
+		maxMicros[blockCount] = max;
+		recordCounts[blockCount] = count;
+		blockCount++;
+	}
+	
+	/**
+	 * Returns the block size the file was written with.
+	 * @return
+	 */
+	public synchronized int getBlockSize() {
+		return blockSize;
+	}
+	
+	/**
+	 * Returns the number of finished blocks in the index.
+	 * @return
+	 */
+	public synchronized int getBlockCount() {
+		return blockCount;
+	}
+	
+	/**
+	 * Returns the number of records in a block.
+	 * @param block
+	 * @return
+	 */
+	public synchronized int getRecordCount(int block) {
+		checkBlock(block);
+		return recordCounts[block];
+	}
+	
+	/**
+	 * Returns the earliest timestamp in a block, in microseconds since the epoch.
+	 * @param block
+	 * @return
+	 */
+	public synchronized long getBlockStartMicros(int block) {
+		checkBlock(block);
+		return minMicros[block];
+	}
+	
+	/**
+	 * Returns the latest timestamp in a block, in microseconds since the epoch.
+	 * @param block
+	 * @return
+	 */
+	public synchronized long getBlockEndMicros(int block) {
+		checkBlock(block);
+		return maxMicros[block];
+	}
+	
+	/**
+	 * Returns the total size of the records in all finished blocks, uncompressed.
+	 * @return
+	 */
+	public synchronized long getUncompressedSize() {
+		long size = 0;
+		for(int i = 0; i < blockCount; i++) {
+			size += lengths[i];
+		}
+		return size;
+	}
+	
+	/**
+	 * Returns the first block with records at or after the given time, or the block count if there is none.
+	 * The index is scanned rather than searched, priority records can make a block end later than the one after it.
+	 * @param time
+	 * @return
+	 */
+	public synchronized int findBlock(Instant time) {
+		long micros = toMicros(time);
+		for(int i = 0; i < blockCount; i++) {
+			if(maxMicros[i] >= micros)
+				return i;
+		}
+		return blockCount;
+	}
+	
+	/**
+	 * Inflates one block.
+	 * @param block
+	 * @return The records in the block, one after the other, each ending with a line break.
+	 * @throws IOException If the block can't be read or is damaged.
+	 */
+	public synchronized byte[] readBlock(int block) throws IOException {
+		checkBlock(block);
+		
+		int compressedLength = compressedLengths[block];
+		if(member.capacity() < compressedLength)
+			member = ByteBuffer.allocate(compressedLength);
+		member.clear();
+		member.limit(compressedLength);
+		long position = offsets[block];
+		while(member.hasRemaining()) {
+			if(channel.read(member, position + member.position()) < 0)
+				throw new EOFException("Block " + block + " is cut off.");
+		}
+		
+		byte[] bytes = member.array();
+		if((bytes[0] & 0xFF) != 0x1f || (bytes[1] & 0xFF) != 0x8b)
+			throw new IOException("Block " + block + " is not a gzip member.");
+		
+		byte[] data = new byte[lengths[block]];
+		inflater.reset();
+		inflater.setInput(bytes, CompressedBlockWriter.GZIP_HEADER_SIZE,
+				compressedLength - CompressedBlockWriter.GZIP_HEADER_SIZE - CompressedBlockWriter.GZIP_TRAILER_SIZE);
+		try {
+			int length = 0;
+			while(length < data.length && !inflater.finished()) {
+				int n = inflater.inflate(data, length, data.length - length);
+				if(n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				length += n;
+			}
+			if(length != data.length)
+				throw new IOException("Block " + block + " is damaged.");
+		} catch(DataFormatException e) {
+			throw new IOException("Block " + block + " is damaged.", e);
+		}
+		
+		crc.reset();
+		crc.update(data, 0, data.length);
+		int trailer = compressedLength - CompressedBlockWriter.GZIP_TRAILER_SIZE;
+		int expected = (bytes[trailer] & 0xFF) | (bytes[trailer + 1] & 0xFF) << 8 | (bytes[trailer + 2] & 0xFF) << 16 | (bytes[trailer + 3] & 0xFF) << 24;
+		if((int) crc.getValue() != expected)
+			throw new IOException("Block " + block + " fails its checksum.");
+		
+		return data;
+	}
+	
+	/**
+	 * Hands every line of the blocks that overlap a time range to the consumer, in the order they were written.
+	 * Only those blocks are read.  The first and last of them can hold lines just outside the range,
+	 * and stack trace lines are passed on like any other line.
+	 * @param from The start of the range, null for the start of the file.
+	 * @param to The end of the range, null for the end of the file.
+	 * @param lines
+	 * @return The number of blocks that were read.
+	 * @throws IOException If a block can't be read or is damaged.
+	 */
+	public synchronized int readLines(Instant from, Instant to, Consumer<String> lines) throws IOException {
+		long fromMicros = from == null ? Long.MIN_VALUE : toMicros(from);
+		long toMicros = to == null ? Long.MAX_VALUE : toMicros(to);
+		
+		int read = 0;
+		for(int i = 0; i < blockCount; i++) {
+			if(maxMicros[i] < fromMicros || minMicros[i] > toMicros)
+				continue;
+			
+			byte[] data = readBlock(i);
+			read++;
+			int start = 0;
+			for(int end = 0; end < data.length; end++) {
+				if(data[end] == '\n') {
+					lines.accept(new String(data, start, end - start, StandardCharsets.UTF_8));
+					start = end + 1;
+				}
+			}
+			if(start < data.length)
+				lines.accept(new String(data, start, data.length - start, StandardCharsets.UTF_8));
+		}
+		return read;
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		inflater.end();
+		channel.close();
+	}
+	
+	private void checkBlock(int block) {
+		if(block < 0 || block >= blockCount)
+			throw new IndexOutOfBoundsException("Block " + block + " of " + blockCount);
+	}
+	
+	private static long toMicros(Instant time) {
+		return time.getEpochSecond() * 1_000_000L + time.getNano() / 1000;
+	}
+}
@@ -0,0 +1,109 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of whether a logger can write.  After a failure the logger is degraded: it stops trying for a while,
+ * waiting twice as long after every failed retry, up to a minute.  A successful retry makes it healthy again.
+ * Failures go to {@link LogStatus}.  Callers must hold the lock of their logger.
+ * @author Noah
+ *
+ */
+final class FailureGuard {
+	
+	private static final long FIRST_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+	private static final long MAX_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos(1);
+	
+	private final String source;
+	private volatile boolean degraded = false;
+	private long backoffNanos;
+	private long retryNanos;
+	private long failures;
+	private volatile long failedRecords;
+	
+	FailureGuard(String source) {
+		this.source = source;
+	}
+	
+	/**
+	 * Returns true if the logger should try to write: always while healthy, and once the backoff has passed while degraded.
+	 * @return
+	 */
+	boolean canAttempt() {
+		return !degraded || System.nanoTime() - retryNanos >= 0;
+	}
+	
+	/**
+	 * Reports a failed write and waits longer before the next try.
+	 * @param message
+	 * @param e
+	 */
+	void failed(String message, Throwable e) {
+		failures++;
+		backoffNanos = degraded ? Math.min(MAX_BACKOFF_NANOS, backoffNanos * 2) : FIRST_BACKOFF_NANOS;
+		retryNanos = System.nanoTime() + backoffNanos;
+		degraded = true;
+		LogStatus.error(source, message, e);
+	}
+	
+	/**
+	 * Reports a successful write, making a degraded logger healthy again.
+	 */
+	void succeeded() {
+		if(!degraded)
+			return;
+		degraded = false;
+		LogStatus.recovered(source, "Recovered after " + failures + " failures, " + failedRecords + " records went to the fallback or were lost so far.");
+		failures = 0;
+	}
+	
+	/**
+	 * Counts a record that couldn't be written.
+	 */
+	void recordFailed() {
+		failedRecords++;
+	}
+	
+	boolean isDegraded() {
+		return degraded;
+	}
+	
+	long getFailedRecordCount() {
+		return failedRecords;
+	}
+}
@@ -0,0 +1,453 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts what is in {@link MFileLogger} files written in the text layout, such as errors per minute by PID,
+ * using every core of the machine.
+ * The files are split into chunks of lines that are memory-mapped and parsed in parallel on a fork/join pool,
+ * every task keeping its own counts, which are merged at the end.  See {@link LogStatistics} for what is counted.
+ * <p>
+ * A record line looks like "2024-03-10T14:05:09.123456Z, Severity 3, PID 42, MSGID x, message", the MSGID is optional
+ * and the timestamp can have any offset.  Stack trace lines count as part of the record before them.
+ * Compressed files have to be unpacked first.
+ * <p>
+ * It can also be run from the command line, run it without arguments for the options:
+ * <pre>
+ * java -cp mtools.jar mtools.logging.LogAnalyzer -s 3 -b 60 Log.txt
+ * </pre>
+ * @author Noah
+ *
+ */
+public class LogAnalyzer {
+	
+	private static final long MIN_CHUNK_SIZE = 1 << 20;
+	private static final long MAX_CHUNK_SIZE = 8L << 20;
+	//How far a chunk maps past its end, for its last line.  Longer lines are only read this far, which covers the prefix that is parsed.
+	private static final int LINE_OVERHANG = 1 << 16;
+	private static final int DEFAULT_MESSAGE_LIMIT = 100_000;
+	//Every pool thread copies its chunk out of the mapping into one of these, arrays are a lot faster to scan than a buffer.
+	private static final ThreadLocal<byte[]> CHUNK_BUFFER = ThreadLocal.withInitial(() -> new byte[(int) MAX_CHUNK_SIZE + LINE_OVERHANG + 1]);
+	
+	private int severityThreshold = LogSeverity.DEBUG;
+	private long fromMicros = Long.MIN_VALUE;
+	private long toMicros = Long.MAX_VALUE;
+	private long bucketMicros = 60_000_000L;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private int messageLimit = DEFAULT_MESSAGE_LIMIT;
+	
+	/**
+	 * Only counts records at this severity or worse, such as {@link LogSeverity#ERROR} for ERROR, CRITICAL, ALERT and EMERGENCY.
+	 * The default is {@link LogSeverity#DEBUG}, everything.
+	 * @param severity
+	 */
+	public void setSeverityThreshold(int severity) {
+		LogSeverity.checkForValidSeverity(severity);
+		severityThreshold = severity;
+	}
+	
+	/**
+	 * Only counts records from the start, inclusive, to the end, exclusive.  Pass null for either to leave it open.
+	 * @param from
+	 * @param to
+	 */
+	public void setTimeRange(Instant from, Instant to) {
+		fromMicros = from == null ? Long.MIN_VALUE : toMicros(from);
+		toMicros = to == null ? Long.MAX_VALUE : toMicros(to);
+	}
+	
+	/**
+	 * Sets the width of the histogram buckets.  The default is 1 minute.
+	 * Will throw an {@link IllegalArgumentException} if it is shorter than a microsecond.
+	 * @param width
+	 */
+	public void setBucketWidth(Duration width) {
+		long micros = width.toNanos() / 1000;
+		if(micros < 1)
+			throw new IllegalArgumentException("The bucket width must be at least a microsecond.");
+		bucketMicros = micros;
+	}
+	
+	/**
+	 * Sets the number of threads that parse the files.  The default is the number of processors.
+	 * @param threads
+	 */
+	public void setParallelism(int threads) {
+		if(threads < 1)
+			throw new IllegalArgumentException("There has to be at least one thread.");
+		parallelism = threads;
+	}
+	
+	/**
+	 * Sets the most distinct messages that are counted, 100,000 by default.  See {@link LogStatistics#getUncountedMessageCount()}.
+	 * The limit applies to every chunk of the file on its own, so once a file has more distinct messages than that,
+	 * the message counts are lower bounds rather than exact.
+	 * @param limit
+	 */
+	public void setMessageLimit(int limit) {
+		if(limit < 1)
+			throw new IllegalArgumentException("The message limit must be at least 1.");
+		messageLimit = limit;
+	}
+	
+	/**
+	 * Reads the files and counts their records.
+	 * @param fileNames
+	 * @return
+	 * @throws IOException If a file can't be read.
+	 */
+	public LogStatistics analyze(String... fileNames) throws IOException {
+		long start = System.nanoTime();
+		
+		List<FileChannel> channels = new ArrayList<FileChannel>();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			List<Chunk> chunks = new ArrayList<Chunk>();
+			long total = 0;
+			for(String fileName : fileNames) {
+				FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+				channels.add(channel);
+				total += channel.size();
+			}
+			
+			//A few chunks per thread so a slow one doesn't hold up the rest.
+			long chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, total / ((long) parallelism * 4) + 1));
+			for(FileChannel channel : channels) {
+				long size = channel.size();
+				for(long offset = 0; offset < size; offset += chunkSize) {
+					chunks.add(new Chunk(channel, offset, Math.min(size, offset + chunkSize), size));
+				}
+			}
+			
+			LogStatistics statistics = chunks.isEmpty() ? newStatistics() : pool.invoke(new ChunkTask(chunks, 0, chunks.size()));
+			statistics.elapsedNanos = System.nanoTime() - start;
+			return statistics;
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdown();
+			for(FileChannel channel : channels) {
+				channel.close();
+			}
+		}
+	}
+	
+	private LogStatistics newStatistics() {
+		return new LogStatistics(bucketMicros, messageLimit);
+	}
+	
+	/**
+	 * The lines that start in a range of a file.
+	 */
+	private static final class Chunk {
+		final FileChannel channel;
+		final long start;
+		final long end;
+		final long fileSize;
+		
+		Chunk(FileChannel channel, long start, long end, long fileSize) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.fileSize = fileSize;
+		}
+	}
+	
+	/**
+	 * Splits the chunks in half until one is left, parses it and merges the counts on the way back.
+	 */
+	private final class ChunkTask extends RecursiveTask<LogStatistics> {
+		private static final long serialVersionUID = 1L;
+		
+		private final List<Chunk> chunks;
+		private final int from;
+		private final int to;
+		
+		ChunkTask(List<Chunk> chunks, int from, int to) {
+			this.chunks = chunks;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected LogStatistics compute() {
+			if(to - from == 1) {
+				try {
+					return new ChunkParser(newStatistics()).parse(chunks.get(from));
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			
+			int mid = (from + to) >>> 1;
+			ChunkTask right = new ChunkTask(chunks, mid, to);
+			right.fork();
+			LogStatistics left = new ChunkTask(chunks, from, mid).compute();
+			left.merge(right.join());
+			return left;
+		}
+	}
+	
+	/**
+	 * Parses the lines of one chunk.  Keeps the last PID and buckets it looked up, since neighbouring lines mostly share them.
+	 */
+	private final class ChunkParser {
+		private final LogStatistics stats;
+		
+		private final TextLineParser parser = new TextLineParser();
+		
+		private byte[] lastPid = new byte[0];
+		private String lastPidString;
+		private long[] lastPidCount;
+		private HashMap<Long, long[]> lastPidHistogram;
+		
+		private long lastBucket = Long.MIN_VALUE;
+		private long[] lastBucketCount;
+		private long lastPidBucket = Long.MIN_VALUE;
+		private long[] lastPidBucketCount;
+		
+		private long micros;
+		
+		ChunkParser(LogStatistics stats) {
+			this.stats = stats;
+		}
+		
+		LogStatistics parse(Chunk chunk) throws IOException {
+			//Maps one byte before the chunk to tell if it starts on a line, and a little after it to finish the last line.
+			long mapStart = Math.max(0, chunk.start - 1);
+			long mapEnd = Math.min(chunk.fileSize, chunk.end + LINE_OVERHANG);
+			MappedByteBuffer mapped = chunk.channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+			int limit = mapped.limit();
+			byte[] buffer = CHUNK_BUFFER.get();
+			mapped.get(buffer, 0, limit);
+			int end = (int) (chunk.end - mapStart);
+			
+			stats.byteCount += chunk.end - chunk.start;
+			int line = (int) (chunk.start - mapStart);
+			if(chunk.start > 0) {
+				//The line that started in the previous chunk belongs to it.
+				while(line <= limit && buffer[line - 1] != '\n') {
+					line++;
+					if(line > end)
+						return stats;
+				}
+			}
+			
+			while(line < end) {
+				int lineEnd = line;
+				while(lineEnd < limit && buffer[lineEnd] != '\n') {
+					lineEnd++;
+				}
+				int contentEnd = lineEnd;
+				if(contentEnd > line && buffer[contentEnd - 1] == '\r')
+					contentEnd--;
+				
+				parseLine(buffer, line, contentEnd);
+				line = lineEnd + 1;
+			}
+			return stats;
+		}
+		
+		private void parseLine(byte[] buffer, int start, int end) {
+			if(start == end)
+				return;
+			if(TextLineParser.isContinuation(buffer, start, end)) {
+				stats.continuationLines++;
+				return;
+			}
+			if(!parser.parse(buffer, start, end)) {
+				stats.malformedLines++;
+				return;
+			}
+			
+			micros = parser.micros;
+			if(parser.severity > severityThreshold || micros < fromMicros || micros >= toMicros) {
+				stats.skippedCount++;
+				return;
+			}
+			
+			count(buffer, parser.severity, parser.pidStart, parser.pidEnd, parser.messageStart, end);
+		}
+		
+		private void count(byte[] buffer, int severity, int pidStart, int pidEnd, int messageStart, int end) {
+			stats.recordCount++;
+			stats.severityCounts[severity]++;
+			if(micros < stats.firstMicros)
+				stats.firstMicros = micros;
+			if(micros > stats.lastMicros)
+				stats.lastMicros = micros;
+			
+			if(!sameBytes(buffer, pidStart, pidEnd, lastPid)) {
+				lastPid = new byte[pidEnd - pidStart];
+				for(int i = 0; i < lastPid.length; i++) {
+					lastPid[i] = buffer[pidStart + i];
+				}
+				lastPidString = new String(lastPid, StandardCharsets.UTF_8);
+				lastPidCount = stats.pidCounts.get(lastPidString);
+				if(lastPidCount == null) {
+					lastPidCount = new long[1];
+					stats.pidCounts.put(lastPidString, lastPidCount);
+				}
+				lastPidHistogram = stats.pidHistograms.get(lastPidString);
+				if(lastPidHistogram == null) {
+					lastPidHistogram = new HashMap<Long, long[]>();
+					stats.pidHistograms.put(lastPidString, lastPidHistogram);
+				}
+				lastPidBucket = Long.MIN_VALUE;
+			}
+			lastPidCount[0]++;
+			
+			long bucket = Math.floorDiv(micros, bucketMicros);
+			if(bucket != lastBucket) {
+				lastBucket = bucket;
+				lastBucketCount = counter(stats.histogram, bucket);
+			}
+			lastBucketCount[0]++;
+			if(bucket != lastPidBucket) {
+				lastPidBucket = bucket;
+				lastPidBucketCount = counter(lastPidHistogram, bucket);
+			}
+			lastPidBucketCount[0]++;
+			
+			stats.messages.add(buffer, messageStart, end);
+		}
+		
+		private long[] counter(HashMap<Long, long[]> counts, long key) {
+			long[] count = counts.get(key);
+			if(count == null) {
+				count = new long[1];
+				counts.put(key, count);
+			}
+			return count;
+		}
+	}
+	
+	private static boolean sameBytes(byte[] buffer, int start, int end, byte[] bytes) {
+		if(end - start != bytes.length)
+			return false;
+		for(int i = 0; i < bytes.length; i++) {
+			if(buffer[start + i] != bytes[i])
+				return false;
+		}
+		return true;
+	}
+	
+	private static long toMicros(Instant time) {
+		return time.getEpochSecond() * 1_000_000L + time.getNano() / 1000;
+	}
+	
+	/**
+	 * Analyzes log files from the command line and prints a report.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		LogAnalyzer analyzer = new LogAnalyzer();
+		List<String> files = new ArrayList<String>();
+		int top = 10;
+		boolean byPid = false;
+		
+		try {
+			for(int i = 0; i < args.length; i++) {
+				switch(args[i]) {
+				case "-s":
+					analyzer.setSeverityThreshold(Integer.parseInt(args[++i]));
+					break;
+				case "-b":
+					analyzer.setBucketWidth(Duration.ofSeconds(Long.parseLong(args[++i])));
+					break;
+				case "-from":
+					analyzer.fromMicros = toMicros(Instant.parse(args[++i]));
+					break;
+				case "-to":
+					analyzer.toMicros = toMicros(Instant.parse(args[++i]));
+					break;
+				case "-top":
+					top = Integer.parseInt(args[++i]);
+					break;
+				case "-t":
+					analyzer.setParallelism(Integer.parseInt(args[++i]));
+					break;
+				case "-pid":
+					byPid = true;
+					break;
+				default:
+					if(args[i].startsWith("-"))
+						throw new IllegalArgumentException("Unknown option " + args[i]);
+					files.add(args[i]);
+				}
+			}
+		} catch(ArrayIndexOutOfBoundsException | IllegalArgumentException | DateTimeParseException e) {
+			System.err.println(e.getMessage() == null ? "Missing value of " + args[args.length - 1] : e.getMessage());
+			files.clear();
+		}
+		
+		if(files.isEmpty()) {
+			System.err.println("Usage: LogAnalyzer [options] file...");
+			System.err.println("  -s <0-7>         Only records at this severity or worse");
+			System.err.println("  -b <seconds>     Histogram bucket width, 60 by default");
+			System.err.println("  -from <instant>  Only records from this time on, such as 2024-03-10T14:00:00Z");
+			System.err.println("  -to <instant>    Only records before this time");
+			System.err.println("  -top <n>         Number of top messages, 10 by default");
+			System.err.println("  -t <threads>     Number of threads, the number of processors by default");
+			System.err.println("  -pid             Print the histogram of every PID as well");
+			System.exit(1);
+		}
+		
+		try {
+			analyzer.analyze(files.toArray(new String[files.size()])).printReport(System.out, top, byPid);
+		} catch(IOException e) {
+			System.err.println("Cannot read log file!!!");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
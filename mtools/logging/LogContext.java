@@ -0,0 +1,181 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.util.Arrays;
+
+/**
+ * Per thread key/value pairs that are attached to every record written in the {@link LogLayout#JSON} layout.
+ * Set a value once (a request ID, a user name, etc.) and every record logged from the same thread
+ * carries it until it is removed.  The text layouts ignore the context.
+ * @author Noah
+ *
+ */
+public class LogContext {
+	
+	private static final ThreadLocal<LogContext> CURRENT = new ThreadLocal<LogContext>();
+	
+	String[] keys;
+	String[] values;
+	int size;
+	
+	private LogContext() {
+		keys = new String[4];
+		values = new String[4];
+		size = 0;
+	}
+	
+	/**
+	 * Sets a context value for the current thread.
+	 * Passing a null value removes the key.
+	 * @param key
+	 * @param value
+	 */
+	public static void put(String key, String value) {
+		if(key == null)
+			throw new IllegalArgumentException("Context keys cannot be null.");
+		
+		if(value == null) {
+			remove(key);
+			return;
+		}
+		
+		LogContext context = CURRENT.get();
+		if(context == null) {
+			context = new LogContext();
+			CURRENT.set(context);
+		}
+		
+		for(int i = 0; i < context.size; i++) {
+			if(context.keys[i].equals(key)) {
+				context.values[i] = value;
+				return;
+			}
+		}
+		
+		if(context.size == context.keys.length) {
+			context.keys = Arrays.copyOf(context.keys, context.size * 2);
+			context.values = Arrays.copyOf(context.values, context.size * 2);
+		}
+		
+		context.keys[context.size] = key;
+		context.values[context.size] = value;
+		context.size++;
+	}
+	
+	/**
+	 * Returns the context value of the current thread for the passed key, or null if it isn't set.
+	 * @param key
+	 * @return
+	 */
+	public static String get(String key) {
+		LogContext context = CURRENT.get();
+		if(context == null)
+			return null;
+		
+		for(int i = 0; i < context.size; i++) {
+			if(context.keys[i].equals(key))
+				return context.values[i];
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Removes a context value from the current thread.
+	 * @param key
+	 */
+	public static void remove(String key) {
+		LogContext context = CURRENT.get();
+		if(context == null)
+			return;
+		
+		for(int i = 0; i < context.size; i++) {
+			if(context.keys[i].equals(key)) {
+				context.size--;
+				context.keys[i] = context.keys[context.size];
+				context.values[i] = context.values[context.size];
+				context.keys[context.size] = null;
+				context.values[context.size] = null;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Removes all context values from the current thread.
+	 */
+	public static void clear() {
+		LogContext context = CURRENT.get();
+		if(context == null)
+			return;
+		
+		for(int i = 0; i < context.size; i++) {
+			context.keys[i] = null;
+			context.values[i] = null;
+		}
+		context.size = 0;
+	}
+	
+	/**
+	 * Returns the context of the current thread, or null if nothing was ever set on this thread.
+	 * The returned object is live, it must only be read by the calling thread.
+	 * @return
+	 */
+	static LogContext current() {
+		LogContext context = CURRENT.get();
+		if(context == null || context.size == 0)
+			return null;
+		return context;
+	}
+	
+	/**
+	 * Returns a copy of the context of the current thread that can be handed to another thread,
+	 * or null if the current thread has no context values.
+	 * @return
+	 */
+	static LogContext snapshot() {
+		LogContext context = current();
+		if(context == null)
+			return null;
+		
+		LogContext copy = new LogContext();
+		copy.keys = Arrays.copyOf(context.keys, context.size);
+		copy.values = Arrays.copyOf(context.values, context.size);
+		copy.size = context.size;
+		return copy;
+	}
+}
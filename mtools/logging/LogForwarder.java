@@ -0,0 +1,441 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a {@link MFileLogger} file into syslog, such as the records written while the collector was down.
+ * The file is read from an offset or a point in time, every record is turned back into a {@link LogRecord}
+ * with its original timestamp, severity, PID and MSGID, and handed to {@link MSysLogger#append(LogRecord)} in batches at a set rate.
+ * Stack trace lines are sent as part of the message of their record.  Only the text layout is read.
+ * <p>
+ * After every batch the offset of the next record is written to a checkpoint file, the log file name plus ".fwd" by default.
+ * A forwarder started on a file with a checkpoint carries on from there instead of its start position,
+ * so it can be stopped with {@link #stop()} and started again without sending anything twice.
+ * If the process dies in the middle of a batch, that batch is sent again.
+ * <p>
+ * The target should be synchronous.  An asynchronous one is waited for until its queue is empty before the checkpoint is written,
+ * but it drops records if the rate is more than it can send.
+ * @author Noah
+ *
+ */
+public class LogForwarder implements Runnable {
+	
+	private static final int DEFAULT_BATCH_SIZE = 100;
+	private static final int DEFAULT_RATE = 1000;
+	private static final int READ_SIZE = 1 << 16;
+	
+	private final String fileName;
+	private final MSysLogger target;
+	private String checkpointFile;
+	private long startOffset = 0;
+	private Instant startTime;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int rate = DEFAULT_RATE;
+	
+	private volatile boolean stopped = false;
+	private volatile long offset;
+	private volatile long forwardedCount;
+	private volatile long skippedLines;
+	
+	/**
+	 * @param fileName The log file to read.
+	 * @param target Where the records go.
+	 */
+	public LogForwarder(String fileName, MSysLogger target) {
+		this.fileName = fileName;
+		this.target = target;
+		checkpointFile = fileName + ".fwd";
+	}
+	
+	/**
+	 * Sets where the position is kept.  Pass null to not keep it.
+	 * @param checkpointFile
+	 */
+	public void setCheckpointFile(String checkpointFile) {
+		this.checkpointFile = checkpointFile;
+	}
+	
+	/**
+	 * Starts at the first record at or after a byte offset when there is no checkpoint.  The default is the start of the file.
+	 * @param offset
+	 */
+	public void setStartOffset(long offset) {
+		if(offset < 0)
+			throw new IllegalArgumentException("The offset can't be negative.");
+		startOffset = offset;
+		startTime = null;
+	}
+	
+	/**
+	 * Starts at the first record at or after a point in time when there is no checkpoint.
+	 * The file is binary searched, which assumes the timestamps go up through the file.  The few records
+	 * the writer thread of {@link MFileLogger} moves ahead on its priority lane can land on either side.
+	 * @param time
+	 */
+	public void setStartTime(Instant time) {
+		startTime = time;
+	}
+	
+	/**
+	 * Sets the most records sent per second, 1000 by default.  Pass 0 to send as fast as possible.
+	 * @param recordsPerSecond
+	 */
+	public void setRate(int recordsPerSecond) {
+		if(recordsPerSecond < 0)
+			throw new IllegalArgumentException("The rate can't be negative.");
+		rate = recordsPerSecond;
+	}
+	
+	/**
+	 * Sets the number of records sent between checkpoints, 100 by default.
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		if(batchSize < 1)
+			throw new IllegalArgumentException("The batch size must be at least 1.");
+		this.batchSize = batchSize;
+	}
+	
+	/**
+	 * Makes a running forwarder stop after the batch it is sending and its checkpoint.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+	
+	/**
+	 * Returns the offset of the next record to be sent.
+	 * @return
+	 */
+	public long getOffset() {
+		return offset;
+	}
+	
+	/**
+	 * Returns the number of records sent so far.
+	 * @return
+	 */
+	public long getForwardedCount() {
+		return forwardedCount;
+	}
+	
+	/**
+	 * Returns the number of lines that were skipped because they didn't belong to a record,
+	 * such as lines in the JSON layout.
+	 * @return
+	 */
+	public long getSkippedLineCount() {
+		return skippedLines;
+	}
+	
+	/**
+	 * Forwards the file, reporting errors on the console.
+	 */
+	@Override
+	public void run() {
+		try {
+			forward();
+		} catch(IOException e) {
+			System.err.println("Cannot forward log file!!!");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Sends the records from the checkpoint or the start position to the end of the file, or until {@link #stop()} is called.
+	 * A record is only sent once the line break after it is in the file, a record that is still being written is left for the next run.
+	 * @return The number of records that were sent.
+	 * @throws IOException If the file can't be read, the checkpoint can't be written or is past the end of the file.
+	 */
+	public long forward() throws IOException {
+		stopped = false;
+		long sentBefore = forwardedCount;
+		
+		try(FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			long position = readCheckpoint();
+			if(position < 0)
+				position = startTime == null ? recordStart(channel, startOffset) : findTime(channel, startTime);
+			else if(position > channel.size())
+				throw new IOException("The checkpoint is past the end of " + fileName + ", the file was replaced.");
+			offset = position;
+			
+			LineReader lines = new LineReader(channel, position);
+			TextLineParser parser = new TextLineParser();
+			ArrayList<LogRecord> batch = new ArrayList<LogRecord>(batchSize);
+			PendingRecord pending = null;
+			long startNanos = System.nanoTime();
+			long sent = 0;
+			
+			while(!stopped) {
+				boolean more = lines.next();
+				if(more && !parser.parse(lines.buffer, lines.start, lines.end)) {
+					//Stack traces, and lines of messages with line breaks, belong to the record before them.
+					if(pending != null)
+						pending.message.append('\n').append(new String(lines.buffer, lines.start, lines.end - lines.start, StandardCharsets.UTF_8));
+					else
+						skippedLines++;
+					continue;
+				}
+				
+				if(pending != null) {
+					batch.add(pending.toRecord());
+					if(batch.size() == batchSize || !more) {
+						//The next record starts on this line, or after the last line of the file.
+						sent = sendBatch(batch, more ? lines.lineOffset : lines.nextOffset, startNanos, sent);
+						batch.clear();
+					}
+				}
+				if(!more)
+					break;
+				
+				pending = new PendingRecord(parser, lines);
+			}
+			
+			//Stopped with a record in hand, it is sent again by the next run.
+		}
+		return forwardedCount - sentBefore;
+	}
+	
+	/**
+	 * Sends a batch at the set rate and writes the checkpoint after it.
+	 * @return The number of records sent since the start, for pacing.
+	 */
+	private long sendBatch(ArrayList<LogRecord> batch, long nextOffset, long startNanos, long sent) throws IOException {
+		for(int i = 0; i < batch.size(); i++) {
+			target.append(batch.get(i));
+		}
+		
+		while(target.getQueueSize() > 0) {
+			LockSupport.parkNanos(1_000_000L);
+		}
+		
+		forwardedCount += batch.size();
+		offset = nextOffset;
+		writeCheckpoint(nextOffset);
+		sent += batch.size();
+		
+		if(rate > 0) {
+			long due = startNanos + sent * 1_000_000_000L / rate;
+			long wait;
+			while((wait = due - System.nanoTime()) > 0 && !stopped) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+		return sent;
+	}
+	
+	private long readCheckpoint() throws IOException {
+		if(checkpointFile == null)
+			return -1;
+		Path path = Paths.get(checkpointFile);
+		if(!Files.exists(path))
+			return -1;
+		
+		String text = new String(Files.readAllBytes(path), StandardCharsets.US_ASCII).trim();
+		try {
+			return Long.parseLong(text);
+		} catch(NumberFormatException e) {
+			throw new IOException(checkpointFile + " is not a checkpoint.", e);
+		}
+	}
+	
+	/**
+	 * Replaces the checkpoint in one step, so a crash leaves either the old one or the new one.
+	 */
+	private void writeCheckpoint(long position) throws IOException {
+		if(checkpointFile == null)
+			return;
+		
+		Path path = Paths.get(checkpointFile);
+		Path temp = Paths.get(checkpointFile + ".tmp");
+		Files.write(temp, (position + "\n").getBytes(StandardCharsets.US_ASCII));
+		try {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(AtomicMoveNotSupportedException e) {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	/**
+	 * Returns the offset of the first record that starts at or after the position, or the end of the file.
+	 */
+	private static long recordStart(FileChannel channel, long position) throws IOException {
+		return firstRecord(channel, position, new TextLineParser());
+	}
+	
+	private static long firstRecord(FileChannel channel, long position, TextLineParser parser) throws IOException {
+		long size = channel.size();
+		if(position >= size)
+			return size;
+		
+		LineReader lines = new LineReader(channel, position);
+		//A position in the middle of a line belongs to the next one.
+		if(position > 0) {
+			ByteBuffer previous = ByteBuffer.allocate(1);
+			channel.read(previous, position - 1);
+			if(previous.get(0) != '\n' && !lines.next())
+				return size;
+		}
+		
+		while(lines.next()) {
+			if(parser.parse(lines.buffer, lines.start, lines.end))
+				return lines.lineOffset;
+		}
+		return size;
+	}
+	
+	/**
+	 * Binary searches the file for the first record at or after the time.
+	 */
+	private static long findTime(FileChannel channel, Instant time) throws IOException {
+		long micros = time.getEpochSecond() * 1_000_000L + time.getNano() / 1000;
+		TextLineParser parser = new TextLineParser();
+		long size = channel.size();
+		
+		long low = 0;
+		long high = size;
+		while(low < high) {
+			long mid = (low + high) >>> 1;
+			long record = firstRecord(channel, mid, parser);
+			if(record >= size || parser.micros >= micros)
+				high = mid;
+			else
+				low = record + 1;
+		}
+		return firstRecord(channel, low, parser);
+	}
+	
+	/**
+	 * The first line of a record and the lines that belong to it.
+	 */
+	private static final class PendingRecord {
+		final long epochMicros;
+		final int severity;
+		final String processID;
+		final String msgID;
+		final StringBuilder message;
+		
+		PendingRecord(TextLineParser parser, LineReader lines) {
+			byte[] buffer = lines.buffer;
+			epochMicros = parser.micros;
+			severity = parser.severity;
+			processID = new String(buffer, parser.pidStart, parser.pidEnd - parser.pidStart, StandardCharsets.UTF_8);
+			msgID = parser.msgIdStart < 0 ? "-" : new String(buffer, parser.msgIdStart, parser.msgIdEnd - parser.msgIdStart, StandardCharsets.UTF_8);
+			message = new StringBuilder(new String(buffer, parser.messageStart, lines.end - parser.messageStart, StandardCharsets.UTF_8));
+		}
+		
+		LogRecord toRecord() {
+			return new LogRecord(epochMicros, severity, processID, msgID, message.toString(), null, null);
+		}
+	}
+	
+	/**
+	 * Reads complete lines from a file.  A last line without a line break is not returned.
+	 */
+	private static final class LineReader {
+		private final FileChannel channel;
+		private long readPosition;
+		private long bufferOffset;
+		private int position;
+		private int scanned;
+		private int limit;
+		
+		byte[] buffer = new byte[READ_SIZE];
+		//The current line, without the line break.
+		int start;
+		int end;
+		//Where the current line starts in the file, and where the line after it starts.
+		long lineOffset;
+		long nextOffset;
+		
+		LineReader(FileChannel channel, long position) {
+			this.channel = channel;
+			readPosition = position;
+			bufferOffset = position;
+			nextOffset = position;
+		}
+		
+		/**
+		 * Moves to the next line.  Returns false at the end of the file.
+		 */
+		boolean next() throws IOException {
+			while(true) {
+				for(; scanned < limit; scanned++) {
+					if(buffer[scanned] == '\n') {
+						start = position;
+						end = scanned > position && buffer[scanned - 1] == '\r' ? scanned - 1 : scanned;
+						lineOffset = bufferOffset + position;
+						nextOffset = bufferOffset + scanned + 1;
+						position = ++scanned;
+						return true;
+					}
+				}
+				
+				//Keeps the start of the line and makes room for the rest of it.
+				if(position > 0) {
+					System.arraycopy(buffer, position, buffer, 0, limit - position);
+					bufferOffset += position;
+					scanned -= position;
+					limit -= position;
+					position = 0;
+				}
+				if(limit == buffer.length)
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				
+				int read = channel.read(ByteBuffer.wrap(buffer, limit, buffer.length - limit), readPosition);
+				if(read <= 0)
+					return false;
+				readPosition += read;
+				limit += read;
+			}
+		}
+	}
+}
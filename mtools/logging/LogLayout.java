@@ -0,0 +1,66 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+/**
+ * The output layouts supported by {@link MFileLogger} and {@link MSysLogger}.
+ * @author Noah
+ *
+ */
+public class LogLayout {
+	/**
+	 * The plain text layout.  For {@link MFileLogger} this is the "timestamp, Severity N, PID x, message" line.
+	 * For {@link MSysLogger} the MSG part of the syslog message is the log message itself.
+	 */
+	public static final int TEXT = 0;
+	
+	/**
+	 * One JSON object per record (JSON lines).  For {@link MSysLogger} the JSON object is
+	 * used as the MSG part of the syslog message, the syslog header is left as is.
+	 */
+	public static final int JSON = 1;
+	
+	/**
+	 * Checks for a valid layout.
+	 * Does nothing if the layout is legal.
+	 * Throws an {@link IllegalArgumentException} if the layout is illegal.
+	 * @param layout
+	 */
+	static void checkForValidLayout(int layout) {
+		if(layout < 0 || layout > 1)
+			throw new IllegalArgumentException("Layout must be either LogLayout.TEXT or LogLayout.JSON.");
+	}
+}
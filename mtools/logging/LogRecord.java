@@ -0,0 +1,120 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import mtools.MUtils;
+
+/**
+ * A single log record as it is handed from a logging thread to a writer thread.
+ * The timestamp is taken when the record is created, not when it is written.
+ * @author Noah
+ *
+ */
+public class LogRecord {
+	final long epochMicros;
+	final int severity;
+	final String processID;
+	final String msgID;
+	final String message;
+	final Throwable thrown;
+	final LogContext context;
+	
+	LogRecord(long epochMicros, int severity, String processID, String msgID, String message, Throwable thrown, LogContext context) {
+		this.epochMicros = epochMicros;
+		this.severity = severity;
+		this.processID = processID;
+		this.msgID = msgID;
+		this.message = message;
+		this.thrown = thrown;
+		this.context = context;
+	}
+	
+	/**
+	 * Returns the current UTC time in microseconds since the epoch from the shared clock, see {@link MUtils#currentTimeMicros()}.
+	 * @return
+	 */
+	static long currentEpochMicros() {
+		return MUtils.currentTimeMicros();
+	}
+	
+	/**
+	 * Returns the time the record was created in microseconds since the epoch.
+	 * @return
+	 */
+	public long getEpochMicros() {
+		return epochMicros;
+	}
+	
+	/**
+	 * Returns the severity level.  See the {@link LogSeverity} class for severity level definitions.
+	 * @return
+	 */
+	public int getSeverity() {
+		return severity;
+	}
+	
+	/**
+	 * Returns the process ID.
+	 * @return
+	 */
+	public String getProcessID() {
+		return processID;
+	}
+	
+	/**
+	 * Returns the message ID, or the NILVALUE ("-") if there is none.
+	 * @return
+	 */
+	public String getMsgID() {
+		return msgID;
+	}
+	
+	/**
+	 * Returns the log message.
+	 * @return
+	 */
+	public String getMessage() {
+		return message;
+	}
+	
+	/**
+	 * Returns the exception attached to the record, or null if there is none.
+	 * @return
+	 */
+	public Throwable getThrown() {
+		return thrown;
+	}
+}
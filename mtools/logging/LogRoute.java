@@ -0,0 +1,136 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+/**
+ * A rule of a {@link MRoutingLogger}: records that match it are written to its file.
+ * A record matches if its severity is the threshold or worse (a lower number), its facility
+ * is the route's facility, and its logger name is the route's logger name or below it
+ * ("db" matches "db" and "db.pool", not "dbx").  Routes can leave the facility and the logger name open.
+ * @author Noah
+ *
+ */
+public class LogRoute {
+	
+	/**
+	 * Matches every facility.
+	 */
+	public static final int ANY_FACILITY = -1;
+	
+	private final String fileName;
+	private final int threshold;
+	private final int facility;
+	private final String loggerName;
+	
+	/**
+	 * A route for every record of the severity or worse.
+	 * @param fileName
+	 * @param threshold See {@link LogSeverity}, {@link LogSeverity#DEBUG} takes everything.
+	 */
+	public LogRoute(String fileName, int threshold) {
+		this(fileName, threshold, ANY_FACILITY, null);
+	}
+	
+	/**
+	 * @param fileName
+	 * @param threshold See {@link LogSeverity}, {@link LogSeverity#DEBUG} takes everything.
+	 * @param facility See {@link FacilityNumbers}, or {@link #ANY_FACILITY}.
+	 * @param loggerName null for every logger.
+	 */
+	public LogRoute(String fileName, int threshold, int facility, String loggerName) {
+		if(fileName == null)
+			throw new IllegalArgumentException("The file name cannot be null.");
+		LogSeverity.checkForValidSeverity(threshold);
+		if(facility != ANY_FACILITY)
+			FacilityNumbers.checkForValidFacility(facility);
+		
+		this.fileName = fileName;
+		this.threshold = threshold;
+		this.facility = facility;
+		this.loggerName = loggerName;
+	}
+	
+	/**
+	 * Returns whether a record goes to this route.
+	 * @param severity
+	 * @param facility
+	 * @param loggerName May be null.
+	 * @return
+	 */
+	public boolean matches(int severity, int facility, String loggerName) {
+		if(severity > threshold)
+			return false;
+		if(this.facility != ANY_FACILITY && this.facility != facility)
+			return false;
+		if(this.loggerName == null)
+			return true;
+		if(loggerName == null || !loggerName.startsWith(this.loggerName))
+			return false;
+		return loggerName.length() == this.loggerName.length() || loggerName.charAt(this.loggerName.length()) == '.';
+	}
+	
+	/**
+	 * Returns the file the route writes to.
+	 * @return
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+	
+	/**
+	 * Returns the least severe severity the route takes.
+	 * @return
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+	
+	/**
+	 * Returns the facility the route takes, or {@link #ANY_FACILITY}.
+	 * @return
+	 */
+	public int getFacility() {
+		return facility;
+	}
+	
+	/**
+	 * Returns the logger name the route takes, null for every logger.
+	 * @return
+	 */
+	public String getLoggerName() {
+		return loggerName;
+	}
+}
@@ -0,0 +1,311 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a representative part of the low-severity records when there are more than the disk or the syslog server can take.
+ * Set it on a logger with {@link MFileLogger#setSampler(LogSampler)} or {@link MSysLogger#setSampler(LogSampler)},
+ * one sampler per logger.  Nothing is sampled out until one of the setters below is called.
+ * <p>
+ * Each severity can be sampled at a fixed rate, either exactly one record in N with {@link #setEveryNth(int, int)}
+ * or every record with a probability with {@link #setProbability(int, double)}.  On top of that,
+ * {@link #setAdaptive(int, double, long)} sheds more of the low-severity records as the logger falls behind,
+ * that is as its queue fills up or as writing a record takes longer.
+ * <p>
+ * Records that are sampled out are counted per severity.  Every report interval the logger writes the counts
+ * since the last report as a NOTICE record with the message ID "SAMPLED", such as "Sampled out DEBUG=1200 INFORMATION=300",
+ * and once more when it is closed.  Adding those up gives the totals back from the log itself.
+ * @author Noah
+ *
+ */
+public final class LogSampler {
+	
+	/**
+	 * The message ID of the records that report the sampled out counts.
+	 */
+	public static final String REPORT_MSG_ID = "SAMPLED";
+	
+	private static final String[] SEVERITY_NAMES = {
+		"EMERGENCY", "ALERT", "CRITICAL", "ERROR", "WARNING", "NOTICE", "INFORMATION", "DEBUG"
+	};
+	private static final long DEFAULT_REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+	//How often the load of the logger is looked at.  Reading the queue size takes the queue's lock.
+	private static final long ADAPT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final double DEFAULT_MINIMUM_RATE = 0.01;
+	//No severity is shed adaptively.
+	private static final int ADAPTIVE_OFF = 8;
+	
+	//Copied on every change so the logging path can read them without locking.
+	private volatile int[] everyNth = {1, 1, 1, 1, 1, 1, 1, 1};
+	private volatile double[] probability = {1, 1, 1, 1, 1, 1, 1, 1};
+	private final AtomicLongArray seen = new AtomicLongArray(8);
+	
+	private volatile int adaptiveSeverity = ADAPTIVE_OFF;
+	private volatile double queueFillLimit = 1;
+	private volatile long latencyLimitNanos = 0;
+	private volatile double minimumRate = DEFAULT_MINIMUM_RATE;
+	private volatile double adaptiveRate = 1;
+	private volatile long adaptedNanos;
+	//The average time to write a record in synchronous mode.  Only updated by the logger while it holds its lock.
+	private volatile long syncRecordNanos;
+	
+	private final LongAdder[] sampledOut = new LongAdder[8];
+	//The counts that went into the last report.  Guarded by the lock on this object.
+	private final long[] reported = new long[8];
+	private volatile long reportIntervalNanos = DEFAULT_REPORT_INTERVAL_NANOS;
+	private volatile long reportedNanos = System.nanoTime();
+	
+	public LogSampler() {
+		for(int i = 0; i < sampledOut.length; i++) {
+			sampledOut[i] = new LongAdder();
+		}
+	}
+	
+	/**
+	 * Keeps exactly one record in every n of this severity, counted across all threads.
+	 * Replaces a probability set for the same severity.  Pass 1 to keep them all.
+	 * @param severity
+	 * @param n
+	 */
+	public synchronized void setEveryNth(int severity, int n) {
+		LogSeverity.checkForValidSeverity(severity);
+		if(n < 1)
+			throw new IllegalArgumentException("N must be at least 1.");
+		
+		int[] nth = everyNth.clone();
+		double[] p = probability.clone();
+		nth[severity] = n;
+		p[severity] = 1;
+		probability = p;
+		everyNth = nth;
+	}
+	
+	/**
+	 * Keeps each record of this severity with the given probability, decided with the thread's own random number generator.
+	 * Cheaper than {@link #setEveryNth(int, int)} with many logging threads, as they share nothing,
+	 * but only keeps about that share.  Replaces an N set for the same severity.  Pass 1 to keep them all.
+	 * @param severity
+	 * @param probability Between 0 and 1.
+	 */
+	public synchronized void setProbability(int severity, double probability) {
+		LogSeverity.checkForValidSeverity(severity);
+		if(!(probability >= 0 && probability <= 1))
+			throw new IllegalArgumentException("The probability must be between 0 and 1.");
+		
+		int[] nth = everyNth.clone();
+		double[] p = this.probability.clone();
+		nth[severity] = 1;
+		p[severity] = probability;
+		this.probability = p;
+		everyNth = nth;
+	}
+	
+	/**
+	 * Sheds records of this severity and less severe ones as the logger falls behind, on top of the fixed rates.
+	 * The load is how far the queue of the asynchronous mode is past the queue fill, or how far the average time to write
+	 * a record is past the latency, whichever is further.  Below a load of 1 everything is kept, above it 1 / load<sup>2</sup>
+	 * of the records are, so at twice the queue fill a quarter of them are kept.  It never goes below the minimum rate,
+	 * see {@link #setMinimumRate(double)}.  In synchronous mode there is no queue and only the latency counts.
+	 * @param severity Usually {@link LogSeverity#INFORMATION} or {@link LogSeverity#DEBUG}.
+	 * @param queueFill The part of the queue, between 0 and 1, that can fill up before records are shed.
+	 * @param latencyMicros The average time to write a record before records are shed, 0 to only look at the queue.
+	 */
+	public synchronized void setAdaptive(int severity, double queueFill, long latencyMicros) {
+		LogSeverity.checkForValidSeverity(severity);
+		if(!(queueFill > 0 && queueFill <= 1))
+			throw new IllegalArgumentException("The queue fill must be more than 0 and at most 1.");
+		if(latencyMicros < 0)
+			throw new IllegalArgumentException("The latency can't be negative.");
+		
+		queueFillLimit = queueFill;
+		latencyLimitNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+		adaptiveRate = 1;
+		adaptiveSeverity = severity;
+	}
+	
+	/**
+	 * Stops shedding records adaptively, the fixed rates still apply.
+	 */
+	public synchronized void disableAdaptive() {
+		adaptiveSeverity = ADAPTIVE_OFF;
+		adaptiveRate = 1;
+	}
+	
+	/**
+	 * Sets the smallest share of records that adaptive shedding keeps, 0.01 by default.
+	 * @param rate More than 0 and at most 1.
+	 */
+	public void setMinimumRate(double rate) {
+		if(!(rate > 0 && rate <= 1))
+			throw new IllegalArgumentException("The minimum rate must be more than 0 and at most 1.");
+		minimumRate = rate;
+	}
+	
+	/**
+	 * Sets how often the logger writes the sampled out counts, 10 seconds by default.  Pass 0 to never write them,
+	 * they can still be read with {@link #getSampledOutCount(int)}.
+	 * @param millis
+	 */
+	public void setReportInterval(long millis) {
+		if(millis < 0)
+			throw new IllegalArgumentException("The interval can't be negative.");
+		reportIntervalNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+	
+	/**
+	 * Returns the share of records adaptive shedding currently keeps, 1 if it keeps them all or is off.
+	 * @return
+	 */
+	public double getAdaptiveRate() {
+		return adaptiveRate;
+	}
+	
+	/**
+	 * Returns the number of records of this severity sampled out since the start.
+	 * @param severity
+	 * @return
+	 */
+	public long getSampledOutCount(int severity) {
+		LogSeverity.checkForValidSeverity(severity);
+		return sampledOut[severity].sum();
+	}
+	
+	/**
+	 * Returns the number of records sampled out since the start.
+	 * @return
+	 */
+	public long getSampledOutCount() {
+		long total = 0;
+		for(int i = 0; i < sampledOut.length; i++) {
+			total += sampledOut[i].sum();
+		}
+		return total;
+	}
+	
+	/**
+	 * Decides if a record is kept, and counts it if it isn't.  The severity must be valid.
+	 * @param severity
+	 * @param writer The writer thread of the logger, null in synchronous mode.
+	 * @return
+	 */
+	boolean sample(int severity, LogWriterThread writer) {
+		int n = everyNth[severity];
+		if(n > 1 && seen.getAndIncrement(severity) % n != 0) {
+			sampledOut[severity].increment();
+			return false;
+		}
+		
+		double p = probability[severity];
+		if(severity >= adaptiveSeverity)
+			p *= adaptiveRate(writer);
+		if(p < 1 && ThreadLocalRandom.current().nextDouble() >= p) {
+			sampledOut[severity].increment();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the share of records to keep for the current load, looking at the load at most every 10 milliseconds.
+	 * Threads racing to look at it all get about the same answer.
+	 */
+	private double adaptiveRate(LogWriterThread writer) {
+		long now = System.nanoTime();
+		if(now - adaptedNanos < ADAPT_INTERVAL_NANOS)
+			return adaptiveRate;
+		adaptedNanos = now;
+		
+		double load = 0;
+		long recordNanos = syncRecordNanos;
+		if(writer != null) {
+			load = writer.getQueueFill() / queueFillLimit;
+			recordNanos = writer.getRecordNanos();
+		}
+		long latencyLimit = latencyLimitNanos;
+		if(latencyLimit > 0)
+			load = Math.max(load, recordNanos / (double)latencyLimit);
+		
+		double rate = load <= 1 ? 1 : Math.max(minimumRate, 1 / (load * load));
+		adaptiveRate = rate;
+		return rate;
+	}
+	
+	/**
+	 * Takes the time it took to write a record in synchronous mode into the average.
+	 * Callers must hold the lock on the logger.
+	 * @param nanos
+	 */
+	void writeTook(long nanos) {
+		syncRecordNanos += (nanos - syncRecordNanos) >> 3;
+	}
+	
+	/**
+	 * Returns the text of the record that reports the counts since the last report,
+	 * or null if the report isn't due yet or nothing was sampled out.
+	 * @param force True to report even if the interval hasn't passed, when the logger is closed.
+	 * @return
+	 */
+	String takeReport(boolean force) {
+		long interval = reportIntervalNanos;
+		long now = System.nanoTime();
+		if(interval == 0 || (!force && now - reportedNanos < interval))
+			return null;
+		
+		synchronized(this) {
+			if(!force && now - reportedNanos < interval)
+				return null;
+			reportedNanos = now;
+			
+			StringBuilder text = null;
+			for(int i = 0; i < sampledOut.length; i++) {
+				long total = sampledOut[i].sum();
+				long count = total - reported[i];
+				if(count <= 0)
+					continue;
+				reported[i] = total;
+				if(text == null)
+					text = new StringBuilder("Sampled out");
+				text.append(' ').append(SEVERITY_NAMES[i]).append('=').append(count);
+			}
+			return text == null ? null : text.toString();
+		}
+	}
+}
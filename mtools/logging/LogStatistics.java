@@ -0,0 +1,320 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.io.PrintStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * What a {@link LogAnalyzer} found: record counts by severity and by PID, a time histogram overall and per PID,
+ * and the most frequent messages.  Everything except the line counts only covers the records that passed the filters.
+ * @author Noah
+ *
+ */
+public class LogStatistics {
+	
+	private static final String[] SEVERITY_NAMES = {
+		"EMERGENCY", "ALERT", "CRITICAL", "ERROR", "WARNING", "NOTICE", "INFORMATION", "DEBUG"
+	};
+	
+	final long bucketMicros;
+	long recordCount;
+	long skippedCount;
+	long continuationLines;
+	long malformedLines;
+	long byteCount;
+	final long[] severityCounts = new long[8];
+	long firstMicros = Long.MAX_VALUE;
+	long lastMicros = Long.MIN_VALUE;
+	final HashMap<String, long[]> pidCounts = new HashMap<String, long[]>();
+	final HashMap<Long, long[]> histogram = new HashMap<Long, long[]>();
+	final HashMap<String, HashMap<Long, long[]>> pidHistograms = new HashMap<String, HashMap<Long, long[]>>();
+	final MessageCounter messages;
+	long elapsedNanos;
+	
+	LogStatistics(long bucketMicros, int messageLimit) {
+		this.bucketMicros = bucketMicros;
+		messages = new MessageCounter(messageLimit);
+	}
+	
+	/**
+	 * Adds the counts of another part of the files to this one.
+	 * @param other
+	 */
+	void merge(LogStatistics other) {
+		recordCount += other.recordCount;
+		skippedCount += other.skippedCount;
+		continuationLines += other.continuationLines;
+		malformedLines += other.malformedLines;
+		byteCount += other.byteCount;
+		for(int i = 0; i < severityCounts.length; i++) {
+			severityCounts[i] += other.severityCounts[i];
+		}
+		firstMicros = Math.min(firstMicros, other.firstMicros);
+		lastMicros = Math.max(lastMicros, other.lastMicros);
+		
+		mergeCounts(pidCounts, other.pidCounts);
+		mergeCounts(histogram, other.histogram);
+		for(Map.Entry<String, HashMap<Long, long[]>> entry : other.pidHistograms.entrySet()) {
+			HashMap<Long, long[]> mine = pidHistograms.get(entry.getKey());
+			if(mine == null)
+				pidHistograms.put(entry.getKey(), entry.getValue());
+			else
+				mergeCounts(mine, entry.getValue());
+		}
+		messages.addAll(other.messages);
+	}
+	
+	private static <K> void mergeCounts(HashMap<K, long[]> into, HashMap<K, long[]> from) {
+		for(Map.Entry<K, long[]> entry : from.entrySet()) {
+			long[] count = into.get(entry.getKey());
+			if(count == null)
+				into.put(entry.getKey(), entry.getValue());
+			else
+				count[0] += entry.getValue()[0];
+		}
+	}
+	
+	/**
+	 * Returns the number of records that passed the filters.
+	 * @return
+	 */
+	public long getRecordCount() {
+		return recordCount;
+	}
+	
+	/**
+	 * Returns the number of records that were read but left out by the severity or time filter.
+	 * @return
+	 */
+	public long getSkippedCount() {
+		return skippedCount;
+	}
+	
+	/**
+	 * Returns the number of stack trace lines, which belong to the record before them.
+	 * @return
+	 */
+	public long getContinuationLineCount() {
+		return continuationLines;
+	}
+	
+	/**
+	 * Returns the number of lines that are neither a record nor part of a stack trace,
+	 * such as JSON records or messages with line breaks in them.
+	 * @return
+	 */
+	public long getMalformedLineCount() {
+		return malformedLines;
+	}
+	
+	/**
+	 * Returns the number of bytes that were read.
+	 * @return
+	 */
+	public long getByteCount() {
+		return byteCount;
+	}
+	
+	/**
+	 * Returns how long the analysis took, in nanoseconds.
+	 * @return
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+	
+	/**
+	 * Returns the number of records with the given severity.
+	 * @param severity
+	 * @return
+	 */
+	public long getSeverityCount(int severity) {
+		LogSeverity.checkForValidSeverity(severity);
+		return severityCounts[severity];
+	}
+	
+	/**
+	 * Returns the earliest timestamp, or null if there were no records.
+	 * @return
+	 */
+	public Instant getFirstTimestamp() {
+		return recordCount == 0 ? null : toInstant(firstMicros);
+	}
+	
+	/**
+	 * Returns the latest timestamp, or null if there were no records.
+	 * @return
+	 */
+	public Instant getLastTimestamp() {
+		return recordCount == 0 ? null : toInstant(lastMicros);
+	}
+	
+	/**
+	 * Returns the width of the histogram buckets.
+	 * @return
+	 */
+	public Duration getBucketWidth() {
+		return Duration.ofNanos(bucketMicros * 1000);
+	}
+	
+	/**
+	 * Returns the number of records per PID, the most frequent PID first.
+	 * @return
+	 */
+	public Map<String, Long> getPidCounts() {
+		List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(pidCounts.entrySet());
+		entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+		
+		LinkedHashMap<String, Long> counts = new LinkedHashMap<String, Long>();
+		for(Map.Entry<String, long[]> entry : entries) {
+			counts.put(entry.getKey(), entry.getValue()[0]);
+		}
+		return Collections.unmodifiableMap(counts);
+	}
+	
+	/**
+	 * Returns the number of records per bucket, by the start of the bucket.  Empty buckets are left out.
+	 * @return
+	 */
+	public SortedMap<Instant, Long> getHistogram() {
+		return toHistogram(histogram);
+	}
+	
+	/**
+	 * Returns the number of records of one PID per bucket, by the start of the bucket.  Empty buckets are left out.
+	 * @param processID
+	 * @return
+	 */
+	public SortedMap<Instant, Long> getHistogram(String processID) {
+		HashMap<Long, long[]> buckets = pidHistograms.get(processID);
+		if(buckets == null)
+			return Collections.unmodifiableSortedMap(new TreeMap<Instant, Long>());
+		return toHistogram(buckets);
+	}
+	
+	private SortedMap<Instant, Long> toHistogram(HashMap<Long, long[]> buckets) {
+		TreeMap<Instant, Long> sorted = new TreeMap<Instant, Long>();
+		for(Map.Entry<Long, long[]> entry : buckets.entrySet()) {
+			sorted.put(toInstant(entry.getKey() * bucketMicros), entry.getValue()[0]);
+		}
+		return Collections.unmodifiableSortedMap(sorted);
+	}
+	
+	/**
+	 * Returns the most frequent messages with their counts, most frequent first.
+	 * Messages are compared with every run of digits replaced by '#'.
+	 * @param count The most messages to return.
+	 * @return
+	 */
+	public List<Map.Entry<String, Long>> getTopMessages(int count) {
+		return Collections.unmodifiableList(messages.top(count));
+	}
+	
+	/**
+	 * Returns the number of records whose message wasn't counted because there were too many distinct messages.
+	 * If it isn't 0, the counts of the most frequent messages can be too low, see {@link LogAnalyzer#setMessageLimit(int)}.
+	 * @return
+	 */
+	public long getUncountedMessageCount() {
+		return messages.getOtherCount();
+	}
+	
+	/**
+	 * Prints a report of everything, with the given number of top messages.
+	 * @param out
+	 * @param topMessages
+	 * @param byPid Prints the histogram of every PID as well.
+	 */
+	public void printReport(PrintStream out, int topMessages, boolean byPid) {
+		double seconds = elapsedNanos / 1e9;
+		out.printf("%,d bytes in %.2f s (%.1f MB/s)%n", byteCount, seconds, seconds > 0 ? byteCount / seconds / 1e6 : 0.0);
+		out.printf("Records: %,d, skipped %,d, stack trace lines %,d, malformed lines %,d%n", recordCount, skippedCount, continuationLines, malformedLines);
+		if(recordCount == 0)
+			return;
+		out.println("From " + getFirstTimestamp() + " to " + getLastTimestamp());
+		
+		out.println();
+		out.println("Severity:");
+		for(int i = 0; i < severityCounts.length; i++) {
+			if(severityCounts[i] > 0)
+				out.printf("  %-12s %,14d%n", SEVERITY_NAMES[i], severityCounts[i]);
+		}
+		
+		out.println();
+		out.println("PID:");
+		for(Map.Entry<String, Long> entry : getPidCounts().entrySet()) {
+			out.printf("  %-12s %,14d%n", entry.getKey(), entry.getValue());
+		}
+		
+		out.println();
+		out.println("Per " + getBucketWidth() + ":");
+		for(Map.Entry<Instant, Long> entry : getHistogram().entrySet()) {
+			out.printf("  %-30s %,14d%n", entry.getKey(), entry.getValue());
+		}
+		
+		if(byPid) {
+			for(String pid : getPidCounts().keySet()) {
+				out.println();
+				out.println("PID " + pid + " per " + getBucketWidth() + ":");
+				for(Map.Entry<Instant, Long> entry : getHistogram(pid).entrySet()) {
+					out.printf("  %-30s %,14d%n", entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		
+		out.println();
+		out.println("Top messages:");
+		for(Map.Entry<String, Long> entry : getTopMessages(topMessages)) {
+			out.printf("  %,14d  %s%n", entry.getValue(), entry.getKey());
+		}
+		if(getUncountedMessageCount() > 0)
+			out.printf("  %,14d  (too many distinct messages, not counted)%n", getUncountedMessageCount());
+	}
+	
+	private static Instant toInstant(long micros) {
+		return Instant.ofEpochSecond(Math.floorDiv(micros, 1_000_000L), Math.floorMod(micros, 1_000_000L) * 1000);
+	}
+}
@@ -0,0 +1,163 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the loggers report their own failures, such as a full disk or an unreachable syslog server.
+ * A failure is printed with its stack trace the first time, after that the same failure from the same logger
+ * is only counted, and printed again with the count once the report interval has passed.
+ * When the disk fills up, every log call fails the same way, and this keeps that from turning
+ * into a stack trace per call that buries everything else on the console.
+ * <p>
+ * See {@link MFileLogger#setFallbackAppender(LogAppender)} for what happens to the records while a logger is failing.
+ * @author Noah
+ *
+ */
+public final class LogStatus {
+	
+	private static final long DEFAULT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+	
+	/**
+	 * The reports of one failure of one logger.
+	 */
+	private static final class Failure {
+		long reportedNanos;
+		long suppressed;
+	}
+	
+	private static final HashMap<String, Failure> failures = new HashMap<String, Failure>();
+	private static final AtomicLong errorCount = new AtomicLong();
+	private static PrintStream out = System.err;
+	private static long intervalNanos = DEFAULT_INTERVAL_NANOS;
+	
+	private LogStatus() {
+	}
+	
+	/**
+	 * Sets how often the same failure is printed, 10 seconds by default.
+	 * @param millis
+	 */
+	public static synchronized void setReportInterval(long millis) {
+		if(millis < 0)
+			throw new IllegalArgumentException("The interval can't be negative.");
+		intervalNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+	
+	/**
+	 * Sets where the reports are printed, {@link System#err} by default.  Pass null to only count them.
+	 * @param stream
+	 */
+	public static synchronized void setOutput(PrintStream stream) {
+		out = stream;
+	}
+	
+	/**
+	 * Returns the number of failures reported since the start, printed or not.
+	 * @return
+	 */
+	public static long getErrorCount() {
+		return errorCount.get();
+	}
+	
+	/**
+	 * Reports a failure.
+	 * @param source The logger, such as "MFileLogger Log.txt".
+	 * @param message What failed, without the exclamation marks.
+	 * @param e May be null.
+	 */
+	static void error(String source, String message, Throwable e) {
+		errorCount.incrementAndGet();
+		long now = System.nanoTime();
+		
+		synchronized(LogStatus.class) {
+			String key = source + ": " + message;
+			Failure failure = failures.get(key);
+			if(failure == null) {
+				failure = new Failure();
+				failures.put(key, failure);
+			} else if(now - failure.reportedNanos < intervalNanos) {
+				failure.suppressed++;
+				return;
+			}
+			
+			long suppressed = failure.suppressed;
+			failure.reportedNanos = now;
+			failure.suppressed = 0;
+			if(out == null)
+				return;
+			
+			if(suppressed > 0)
+				out.println(key + "!!! (" + suppressed + " more times since the last report)");
+			else
+				out.println(key + "!!!");
+			if(e != null)
+				e.printStackTrace(out);
+		}
+	}
+	
+	/**
+	 * Reports that a logger works again, with the number of failures that weren't printed.
+	 * @param source
+	 * @param message
+	 */
+	static void recovered(String source, String message) {
+		synchronized(LogStatus.class) {
+			long suppressed = 0;
+			String prefix = source + ": ";
+			for(Iterator<Map.Entry<String, Failure>> it = failures.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Failure> entry = it.next();
+				if(entry.getKey().startsWith(prefix)) {
+					suppressed += entry.getValue().suppressed;
+					it.remove();
+				}
+			}
+			
+			if(out == null)
+				return;
+			if(suppressed > 0)
+				out.println(prefix + message + " (" + suppressed + " failures since the last report)");
+			else
+				out.println(prefix + message);
+		}
+	}
+}
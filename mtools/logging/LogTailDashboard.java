@@ -0,0 +1,342 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import mtools.io.MDisplay;
+
+/**
+ * A console dashboard that shows what the {@link MLog} loggers are logging right now.
+ * It attaches to {@link MLog} as an appender and draws the most recent records through an {@link MDisplay},
+ * together with the records per second of every severity and the queue and drop counts of both loggers.
+ * <p>
+ * The logging threads only store a reference to the record in a ring, without locking.
+ * Formatting and drawing happen on the dashboard's own thread.
+ * Typing a severity number (0-7) and enter only shows records of that severity or worse,
+ * typing q and enter stops the dashboard.  The keyboard is only read while the dashboard runs,
+ * after {@link #stop()} the console input belongs to the application again.
+ * @author Noah
+ *
+ */
+public class LogTailDashboard implements LogAppender {
+	private static final String[] SEVERITY_NAMES = {"EMERG", "ALERT", "CRIT", "ERROR", "WARN", "NOTICE", "INFO", "DEBUG"};
+	//How often the input thread looks for typed characters.
+	private static final long INPUT_POLL_MILLIS = 50;
+	
+	private final AtomicReferenceArray<LogRecord> ring;
+	private final int mask;
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLongArray severityCounts = new AtomicLongArray(8);
+	
+	private final MDisplay display;
+	private final LogRecord[] visible;
+	private final long[] lastCounts = new long[8];
+	private long lastCountNanos;
+	
+	private volatile int minSeverity = LogSeverity.DEBUG;
+	private volatile long refreshMillis = 250;
+	private volatile boolean running;
+	private Thread renderThread;
+	private Thread inputThread;
+	
+	/**
+	 * Shows the 15 most recent records and keeps the last 1024.
+	 */
+	public LogTailDashboard() {
+		this(15, 1024);
+	}
+	
+	/**
+	 * @param lines The number of records shown.
+	 * @param bufferSize The number of recent records kept, rounded up to a power of two.
+	 * Records filtered out by the minimum severity are still kept, so this should be well above lines.
+	 */
+	public LogTailDashboard(int lines, int bufferSize) {
+		if(lines < 1)
+			throw new IllegalArgumentException("The dashboard needs at least one line.");
+		if(bufferSize < lines)
+			throw new IllegalArgumentException("The buffer cannot be smaller than the number of lines.");
+		
+		int capacity = Integer.highestOneBit(bufferSize);
+		if(capacity < bufferSize)
+			capacity <<= 1;
+		ring = new AtomicReferenceArray<LogRecord>(capacity);
+		mask = capacity - 1;
+		visible = new LogRecord[lines];
+		
+		//Two lines for the rates and queue counts.
+		display = new MDisplay(null, lines + 2);
+	}
+	
+	/**
+	 * Stores the record for the next frame.  Only a reference is kept, nothing is formatted here.
+	 * @param record
+	 */
+	@Override
+	public void append(LogRecord record) {
+		long seq = sequence.getAndIncrement();
+		ring.lazySet((int) (seq & mask), record);
+		severityCounts.incrementAndGet(record.severity);
+	}
+	
+	/**
+	 * Only records of this severity or worse are shown.  The default is {@link LogSeverity#DEBUG}, which shows everything.
+	 * @param severity
+	 */
+	public void setMinSeverity(int severity) {
+		LogSeverity.checkForValidSeverity(severity);
+		minSeverity = severity;
+	}
+	
+	/**
+	 * Returns the least severe severity that is shown.
+	 * @return
+	 */
+	public int getMinSeverity() {
+		return minSeverity;
+	}
+	
+	/**
+	 * Sets how often the dashboard is redrawn.  The default is 250 milliseconds.
+	 * @param millis
+	 */
+	public void setRefreshInterval(long millis) {
+		if(millis < 1)
+			throw new IllegalArgumentException("The refresh interval must be at least 1 millisecond.");
+		refreshMillis = millis;
+	}
+	
+	/**
+	 * Returns whether the dashboard is running.
+	 * @return
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+	
+	/**
+	 * Attaches the dashboard to {@link MLog} and starts drawing and reading the keyboard.
+	 * Does nothing if it is already running.
+	 */
+	public synchronized void start() {
+		if(running)
+			return;
+		
+		running = true;
+		lastCountNanos = System.nanoTime();
+		for(int i = 0; i < lastCounts.length; i++) {
+			lastCounts[i] = severityCounts.get(i);
+		}
+		MLog.addAppender(this);
+		
+		renderThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				renderLoop();
+			}
+		}, "LogTailDashboard render");
+		renderThread.setDaemon(true);
+		renderThread.start();
+		
+		inputThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				inputLoop();
+			}
+		}, "LogTailDashboard input");
+		inputThread.setDaemon(true);
+		inputThread.start();
+	}
+	
+	/**
+	 * Detaches the dashboard from {@link MLog}, stops drawing and stops reading the keyboard.
+	 */
+	public void stop() {
+		Thread render;
+		Thread input;
+		synchronized(this) {
+			if(!running)
+				return;
+			running = false;
+			MLog.removeAppender(this);
+			render = renderThread;
+			input = inputThread;
+			renderThread = null;
+			inputThread = null;
+		}
+		
+		join(render);
+		join(input);
+	}
+	
+	/**
+	 * Waits for one of the dashboard's threads to end, unless it is the one calling.
+	 */
+	private static void join(Thread thread) {
+		if(thread == Thread.currentThread())
+			return;
+		
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void renderLoop() {
+		while(running) {
+			render();
+			try {
+				Thread.sleep(refreshMillis);
+			} catch(InterruptedException e) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Reads System.in a byte at a time, and only what has already been typed, so nothing is read ahead
+	 * of the application and the thread never blocks past {@link #stop()}.
+	 */
+	private void inputLoop() {
+		StringBuilder line = new StringBuilder();
+		try {
+			while(running) {
+				if(System.in.available() == 0) {
+					Thread.sleep(INPUT_POLL_MILLIS);
+					continue;
+				}
+				
+				int b = System.in.read();
+				if(b < 0)
+					return;
+				if(b != '\n') {
+					line.append((char) b);
+					continue;
+				}
+				
+				String command = line.toString().trim();
+				line.setLength(0);
+				if(command.equalsIgnoreCase("q")) {
+					stop();
+				} else if(command.length() == 1 && command.charAt(0) >= '0' && command.charAt(0) <= '7') {
+					minSeverity = command.charAt(0) - '0';
+				}
+			}
+		} catch(InterruptedException e) {
+			//Stopped.
+		} catch(IOException e) {
+			//The console is gone, the dashboard keeps drawing.
+		}
+	}
+	
+	/**
+	 * Draws one frame.
+	 */
+	private void render() {
+		int min = minSeverity;
+		display.setBanner("MLog tail - showing " + SEVERITY_NAMES[min] + " (" + min + ") and worse.  Type 0-7 to filter, q to quit.");
+		display.clear();
+		
+		long now = System.nanoTime();
+		double seconds = Math.max(1, now - lastCountNanos) / 1e9;
+		lastCountNanos = now;
+		StringBuilder rates = new StringBuilder("per second:");
+		for(int i = 0; i < SEVERITY_NAMES.length; i++) {
+			long count = severityCounts.get(i);
+			rates.append("  ").append(SEVERITY_NAMES[i]).append(' ').append(Math.round((count - lastCounts[i]) / seconds));
+			lastCounts[i] = count;
+		}
+		display.addLine(rates.toString());
+		display.addLine(queueLine());
+		
+		//Walks back from the newest record.  Slots being written right now may still hold an older record.
+		int shown = 0;
+		long newest = sequence.get() - 1;
+		long oldest = Math.max(0, newest - mask);
+		for(long seq = newest; seq >= oldest && shown < visible.length; seq--) {
+			LogRecord record = ring.get((int) (seq & mask));
+			if(record != null && record.severity <= min)
+				visible[shown++] = record;
+		}
+		
+		for(int i = 0; i < shown; i++) {
+			display.addLine(formatRecord(visible[i]));
+			visible[i] = null;
+		}
+		display.display();
+	}
+	
+	private static String queueLine() {
+		StringBuilder line = new StringBuilder();
+		MFileLogger file = MLog.fileLog;
+		MSysLogger sys = MLog.sysLog;
+		if(file != null)
+			line.append("file queue ").append(file.getQueueSize()).append(" dropped ").append(file.getDroppedCount());
+		if(sys != null) {
+			if(line.length() > 0)
+				line.append("  |  ");
+			line.append("syslog queue ").append(sys.getQueueSize()).append(" dropped ").append(sys.getDroppedCount());
+		}
+		if(line.length() == 0)
+			line.append("no loggers initialized");
+		return line.toString();
+	}
+	
+	private static String formatRecord(LogRecord record) {
+		StringBuilder line = new StringBuilder();
+		line.append(Instant.ofEpochSecond(record.epochMicros / 1_000_000L, (record.epochMicros % 1_000_000L) * 1000L));
+		line.append(' ').append(SEVERITY_NAMES[record.severity]);
+		if(!"-".equals(record.processID))
+			line.append(" [").append(record.processID).append(']');
+		line.append(' ').append(record.message);
+		if(record.thrown != null)
+			line.append(" (").append(record.thrown).append(')');
+		
+		//One record per row, the display cannot draw line breaks.
+		for(int i = 0; i < line.length(); i++) {
+			if(line.charAt(i) == '\n' || line.charAt(i) == '\r')
+				line.setCharAt(i, ' ');
+		}
+		return line.toString();
+	}
+}
@@ -0,0 +1,266 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The background thread behind the asynchronous mode of {@link MFileLogger} and {@link MSysLogger}.
+ * Logging threads only put records on a bounded queue.  This thread takes them off in batches,
+ * hands every record to the sink and flushes the sink once per batch.
+ * When the queue is full the record is dropped and counted instead of blocking the logging thread.
+ * <p>
+ * There are two queues, or lanes.  Records at or above the priority severity go on the priority lane,
+ * which is always serviced before the next record of the bulk lane, and the sink can be flushed right
+ * after every priority record.  Priority records can therefore be written ahead of older bulk records,
+ * their timestamps still show the order they were logged in.
+ * @author Noah
+ *
+ */
+final class LogWriterThread extends Thread {
+	
+	/**
+	 * Where the writer thread puts the records.  Implementations report their own I/O errors.
+	 */
+	interface RecordSink {
+		void write(LogRecord record);
+		void flush();
+		
+		/**
+		 * Called about every 100 milliseconds while there is nothing to write, for work that runs on a timer.
+		 */
+		default void idle() {
+		}
+	}
+	
+	static final int DEFAULT_QUEUE_CAPACITY = 8192;
+	static final int DEFAULT_BATCH_SIZE = 256;
+	static final int DEFAULT_PRIORITY_SEVERITY = LogSeverity.CRITICAL;
+	static final long IDLE_MILLIS = 100;
+	
+	private final ArrayBlockingQueue<LogRecord> priorityQueue;
+	private final ArrayBlockingQueue<LogRecord> queue;
+	//One permit per queued record in either lane, so a priority record wakes the thread as well.
+	private final Semaphore pending = new Semaphore(0);
+	private final RecordSink sink;
+	private final int batchSize;
+	private final int queueCapacity;
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong writtenCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private volatile int prioritySeverity = DEFAULT_PRIORITY_SEVERITY;
+	private volatile boolean priorityFlush = true;
+	private volatile boolean running = true;
+	private volatile boolean abandon = false;
+	//The average time to write a record, taken over each batch.  Only written by this thread.
+	private volatile long recordNanos;
+	
+	LogWriterThread(String name, RecordSink sink, int queueCapacity) {
+		super(name);
+		if(queueCapacity < 1)
+			throw new IllegalArgumentException("The queue capacity must be at least 1.");
+		
+		priorityQueue = new ArrayBlockingQueue<LogRecord>(queueCapacity);
+		queue = new ArrayBlockingQueue<LogRecord>(queueCapacity);
+		this.sink = sink;
+		batchSize = Math.min(DEFAULT_BATCH_SIZE, queueCapacity);
+		this.queueCapacity = queueCapacity;
+		setDaemon(true);
+	}
+	
+	/**
+	 * Sets the severity at or above which records go on the priority lane.
+	 * @param severity
+	 */
+	void setPrioritySeverity(int severity) {
+		prioritySeverity = severity;
+	}
+	
+	/**
+	 * Sets if the sink is flushed right after every priority record instead of at the end of the batch.
+	 * @param flush
+	 */
+	void setPriorityFlush(boolean flush) {
+		priorityFlush = flush;
+	}
+	
+	/**
+	 * Queues a record.  Returns false, and counts the record as dropped, if its lane is full or the thread is stopping.
+	 * @param record
+	 * @return
+	 */
+	boolean enqueue(LogRecord record) {
+		return enqueue(record, record.severity <= prioritySeverity);
+	}
+	
+	/**
+	 * Queues a record on the lane of choice, for records that must not be lost when the bulk lane fills up.
+	 * @param record
+	 * @param priority
+	 * @return
+	 */
+	boolean enqueue(LogRecord record, boolean priority) {
+		if(!running) {
+			rejectedCount.incrementAndGet();
+			droppedCount.incrementAndGet();
+			return false;
+		}
+		
+		ArrayBlockingQueue<LogRecord> lane = priority ? priorityQueue : queue;
+		if(!lane.offer(record)) {
+			droppedCount.incrementAndGet();
+			return false;
+		}
+		pending.release();
+		return true;
+	}
+	
+	/**
+	 * Returns the number of records that were dropped because the queue was full.
+	 * @return
+	 */
+	long getDroppedCount() {
+		return droppedCount.get();
+	}
+	
+	/**
+	 * Returns the number of records waiting to be written in both lanes.
+	 * @return
+	 */
+	int getQueueSize() {
+		return priorityQueue.size() + queue.size();
+	}
+	
+	/**
+	 * Returns how full the bulk lane is, between 0 and 1.
+	 * @return
+	 */
+	double getQueueFill() {
+		return queue.size() / (double)queueCapacity;
+	}
+	
+	/**
+	 * Returns the average time it takes to write a record, flushing included, in nanoseconds.
+	 * @return
+	 */
+	long getRecordNanos() {
+		return recordNanos;
+	}
+	
+	/**
+	 * Stops accepting records, writes everything that is still queued and waits for the thread to end.
+	 */
+	void shutdown() {
+		shutdown(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Stops accepting records and writes what is still queued until the timeout runs out.
+	 * Whatever is left after that is thrown away.
+	 * @param timeoutNanos
+	 * @return How many queued records were written and how many were abandoned.
+	 */
+	ShutdownReport shutdown(long timeoutNanos) {
+		long start = System.nanoTime();
+		long writtenBefore = writtenCount.get();
+		running = false;
+		
+		try {
+			while(isAlive()) {
+				long remaining = timeoutNanos - (System.nanoTime() - start);
+				if(remaining <= 0)
+					break;
+				//Joins in short steps so a huge timeout can't overflow.
+				join(Math.max(1, Math.min(TimeUnit.NANOSECONDS.toMillis(remaining), 1000)));
+			}
+			
+			if(isAlive()) {
+				abandon = true;
+				//Gives the record that is being written a moment to finish.
+				join(100);
+			}
+		} catch(InterruptedException e) {
+			abandon = true;
+			Thread.currentThread().interrupt();
+		}
+		
+		long abandoned = rejectedCount.get() + priorityQueue.size() + queue.size();
+		priorityQueue.clear();
+		queue.clear();
+		return new ShutdownReport(writtenCount.get() - writtenBefore, abandoned);
+	}
+	
+	@Override
+	public void run() {
+		while((running || pending.availablePermits() > 0) && !abandon) {
+			try {
+				if(!pending.tryAcquire(IDLE_MILLIS, TimeUnit.MILLISECONDS)) {
+					sink.idle();
+					continue;
+				}
+				
+				//Writes up to a batch of records, checking the priority lane before every record.
+				long start = System.nanoTime();
+				int written = 0;
+				do {
+					LogRecord record = priorityQueue.poll();
+					if(record != null) {
+						sink.write(record);
+						if(priorityFlush)
+							sink.flush();
+					} else {
+						record = queue.poll();
+						sink.write(record);
+					}
+					writtenCount.incrementAndGet();
+					written++;
+				} while(written < batchSize && !abandon && pending.tryAcquire());
+				
+				sink.flush();
+				long perRecord = (System.nanoTime() - start) / written;
+				recordNanos += (perRecord - recordNanos) >> 3;
+			} catch(InterruptedException e) {
+				//Only stops once the queues are empty.
+			} catch(RuntimeException e) {
+				//A broken record must not take the writer thread down with it.
+				LogStatus.error(getName(), "Cannot write log record", e);
+			}
+		}
+	}
+}
@@ -36,10 +36,14 @@
 
 package mtools.logging;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.time.temporal.ChronoUnit;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+import mtools.TimestampRenderer;
 
 /**
  * Simple class that allows logging to a file.
@@ -48,25 +52,49 @@ import java.time.temporal.ChronoUnit;
  * However, the log statement that is written is not overall compliant with RFC 5424.
  * See the {@link LogSeverity} class for severity level definitions.
  * Uses a UTC timestamp by default.
+ * The records can also be written as JSON lines, see {@link #setLayout(int)}.
+ * By default every statement is written by the calling thread.  {@link #setAsynchronous(boolean)}
+ * moves the writing onto a background thread, and {@link #setCompression(int, long)} writes the file in compressed blocks.
  * @author Noah
  *
  */
-public class MFileLogger {
+public class MFileLogger implements LogAppender {
+	
+	private static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+	private static final long DEFAULT_BLOCK_FLUSH_MILLIS = 1000;
+	private static final int MIN_BLOCK_SIZE = 1024;
 	
-	FileWriter fWriter;
-	BufferedWriter bWriter;
+	FileOutputStream fStream;
+	BufferedOutputStream bStream;
+	private final String fileName;
+	private final FailureGuard guard;
+	private volatile LogAppender fallback;
+	private volatile LogSampler sampler;
+	//Null unless compression is on.  Guarded by the lock on this object, only set while holding writerLock as well.
+	private CompressedBlockWriter compressor;
+	
+	private final RecordEncoder encoder = new RecordEncoder();
+	private ZoneId timeZone = ZoneOffset.UTC;
+	private final ThrowableRenderer throwableRenderer = new ThrowableRenderer();
+	private int layout = LogLayout.TEXT;
+	private String applicationName = "-";
+	private int facilityNumber = FacilityNumbers.USER_LEVEL;
+	private volatile LogWriterThread writer;
+	//Guards switching the writer thread.  Not the lock on this object, the writer thread needs that one to finish.
+	private final Object writerLock = new Object();
+	private volatile boolean closed = false;
+	//False until the first record of a lazy logger.
+	private volatile boolean started;
+	//The queue capacity of the writer thread a lazy logger starts with, 0 for none.
+	private int deferredQueueCapacity = 0;
+	private int prioritySeverity = LogWriterThread.DEFAULT_PRIORITY_SEVERITY;
+	private boolean priorityFlush = true;
 	
 	/**
 	 * Configures the logging system to write to a local file named "Log.txt".
 	 */
 	public MFileLogger() {
-		try {
-			fWriter = new FileWriter("Log.txt");
-			bWriter = new BufferedWriter(fWriter);
-		} catch(IOException e) {
-			System.err.println("Cannot write to log file!!!");
-			e.printStackTrace();
-		}
+		this("Log.txt");
 	}
 	
 	/**
@@ -74,20 +102,380 @@ public class MFileLogger {
 	 * @param fileName
 	 */
 	public MFileLogger(String fileName) {
+		this(fileName, false);
+	}
+	
+	/**
+	 * Creates a logger that doesn't touch the file until the first record, and doesn't start the writer thread of
+	 * {@link #setAsynchronous(boolean)} until then either.  A program that logs nothing leaves an existing file as it was.
+	 * If the file can't be opened, opening it is retried like a failed write, see {@link #setFallbackAppender(LogAppender)}.
+	 * @param fileName
+	 * @return
+	 */
+	public static MFileLogger lazy(String fileName) {
+		return new MFileLogger(fileName, true);
+	}
+	
+	private MFileLogger(String fileName, boolean lazy) {
+		this.fileName = fileName;
+		guard = new FailureGuard("MFileLogger " + fileName);
+		started = !lazy;
+		if(!lazy)
+			openStreams();
+	}
+	
+	/**
+	 * Opens the file unless it is open.  Callers must hold the lock on this object.
+	 * @return False if it can't be opened.
+	 */
+	private boolean openStreams() {
+		if(bStream != null)
+			return true;
+		
 		try {
-			fWriter = new FileWriter(fileName);
-			bWriter = new BufferedWriter(fWriter);
+			fStream = new FileOutputStream(fileName);
+			bStream = new BufferedOutputStream(fStream);
+			return true;
 		} catch(IOException e) {
-			System.err.println("Cannot write to log file!!!");
-			e.printStackTrace();
+			guard.failed("Cannot open log file", e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Starts the writer thread of a lazy logger, if it was asked for, on the first record.
+	 */
+	private void start() {
+		synchronized(writerLock) {
+			if(started || closed)
+				return;
+			started = true;
+			if(deferredQueueCapacity > 0)
+				startWriter(deferredQueueCapacity);
 		}
 	}
 	
 	/**
-	 * Not implemented.
+	 * Writes the timestamps in the default time zone of the system instead of UTC.
+	 * See {@link #setTimeZone(ZoneId)}.
 	 */
 	public void setTimeZone() {
+		setTimeZone(ZoneId.systemDefault());
+	}
+	
+	/**
+	 * Sets the time zone of the timestamps in the log file.  The default is UTC.
+	 * Timestamps carry the offset of the zone, such as "2024-03-10T14:05:09.123456-04:00",
+	 * and "Z" while the offset is zero.  The offset is cached until the next daylight saving transition.
+	 * Pass null for UTC.
+	 * @param zone
+	 */
+	public synchronized void setTimeZone(ZoneId zone) {
+		if(zone == null || zone.equals(ZoneOffset.UTC))
+			encoder.setTimestampRenderer(null);
+		else
+			encoder.setTimestampRenderer(new TimestampRenderer(zone));
+		timeZone = zone == null ? ZoneOffset.UTC : zone;
+	}
+	
+	/**
+	 * Returns the time zone of the timestamps.
+	 * @return
+	 */
+	public synchronized ZoneId getTimeZone() {
+		return timeZone;
+	}
+	
+	/**
+	 * Sets the layout the records are written in.
+	 * See the {@link LogLayout} class for the available layouts.
+	 * The default is {@link LogLayout#TEXT}.
+	 * @param layout
+	 */
+	public synchronized void setLayout(int layout) {
+		LogLayout.checkForValidLayout(layout);
+		this.layout = layout;
+	}
+	
+	/**
+	 * Sets the application name written in the "app" field of the JSON layout.
+	 * Pass null if it's unavailable or N/A.
+	 * @param appName
+	 */
+	public synchronized void setApplicationName(String appName) {
+		if(appName == null)
+			applicationName = "-";
+		else
+			applicationName = appName;
+	}
+	
+	/**
+	 * Sets the facility number written in the "facility" field of the JSON layout.
+	 * The default is {@link FacilityNumbers#USER_LEVEL}.
+	 * Will throw an {@link IllegalArgumentException} if the facility number isn't valid (0 - 23).
+	 * @param facNumber
+	 */
+	public synchronized void setFacilityNumber(int facNumber) {
+		FacilityNumbers.checkForValidFacility(facNumber);
+		facilityNumber = facNumber;
+	}
+	
+	/**
+	 * Sets how long a stack trace that was written in full suppresses later copies of the same trace.
+	 * Repeats inside the window only reference the fingerprint of the first one.
+	 * The default is 60 seconds.  Pass 0 to write every stack trace in full.
+	 * @param millis
+	 */
+	public synchronized void setStackTraceWindow(long millis) {
+		throwableRenderer.setWindow(millis);
+	}
+	
+	/**
+	 * Turns the asynchronous mode on or off, with a queue of 8192 records.
+	 * See {@link #setAsynchronous(boolean, int)}.
+	 * @param async
+	 */
+	public void setAsynchronous(boolean async) {
+		setAsynchronous(async, LogWriterThread.DEFAULT_QUEUE_CAPACITY);
+	}
+	
+	/**
+	 * Turns the asynchronous mode on or off.
+	 * In asynchronous mode the log methods only put the record on a queue, a background thread
+	 * formats the records (including stack traces) and writes them in batches.
+	 * If the queue is full the record is dropped, see {@link #getDroppedCount()}.
+	 * Turning it off writes everything that is still queued before returning.
+	 * A lazy logger starts the thread on its first record.
+	 * A compressed file is always written by the background thread, so while compression is on
+	 * turning it off only changes the queue capacity.
+	 * @param async
+	 * @param queueCapacity The maximum number of records waiting to be written.
+	 */
+	public void setAsynchronous(boolean async, int queueCapacity) {
+		synchronized(writerLock) {
+			if(closed)
+				return;
+			if(compressor != null)
+				async = true;
+			
+			if(!started) {
+				deferredQueueCapacity = async ? queueCapacity : 0;
+				return;
+			}
+			
+			if(writer != null) {
+				LogWriterThread old = writer;
+				writer = null;
+				old.shutdown();
+			}
+			
+			if(async)
+				startWriter(queueCapacity);
+		}
+	}
+	
+	/**
+	 * Starts a writer thread.  Callers must hold writerLock.
+	 */
+	private void startWriter(int queueCapacity) {
+		LogWriterThread w = new LogWriterThread("MFileLogger writer", new LogWriterThread.RecordSink() {
+			@Override
+			public void write(LogRecord record) {
+				boolean written;
+				synchronized(MFileLogger.this) {
+					written = writeRecord(record.epochMicros, record.severity, record.processID, record.msgID, record.context, record.message, record.thrown);
+				}
+				if(!written)
+					fallBack(record);
+			}
+			
+			@Override
+			public void flush() {
+				synchronized(MFileLogger.this) {
+					flushStream();
+				}
+			}
+			
+			@Override
+			public void idle() {
+				synchronized(MFileLogger.this) {
+					if(compressor != null)
+						flushStream();
+				}
+			}
+		}, queueCapacity);
+		w.setPrioritySeverity(prioritySeverity);
+		w.setPriorityFlush(priorityFlush);
+		w.start();
+		writer = w;
+	}
+	
+	/**
+	 * Writes the file in compressed blocks of 64KB, finished after at most 1 second.
+	 * See {@link #setCompression(int, long)}.
+	 */
+	public void setCompression() {
+		setCompression(DEFAULT_BLOCK_SIZE, DEFAULT_BLOCK_FLUSH_MILLIS);
+	}
+	
+	/**
+	 * Writes the file in compressed blocks instead of plain text, which log files usually shrink to a tenth or less of.
+	 * Records are collected until a block is full or its oldest record has waited for the flush interval,
+	 * then the block is deflated and written as a gzip member of its own.  The file as a whole is a valid gzip file
+	 * that "zcat" can read.  An index of the blocks and the times they cover is written next to the file,
+	 * at the file name plus ".idx", so {@link CompressedLogReader} can read a time range by inflating only the blocks that overlap it.
+	 * <p>
+	 * This turns on the asynchronous mode, the background thread does the compressing.  Records reach the disk
+	 * a block at a time, the priority flush only writes the block once it is due.
+	 * Compression has to be turned on before the first record is written and can't be turned off again.
+	 * The file of a lazy logger is opened right away, to check that it is empty.
+	 * Will throw an {@link IllegalArgumentException} if the block size is below 1024 bytes or the interval isn't positive.
+	 * @param blockSize The size of the records in a block, before compression.
+	 * @param flushIntervalMillis The longest a record waits in an unfinished block.
+	 */
+	public void setCompression(int blockSize, long flushIntervalMillis) {
+		if(blockSize < MIN_BLOCK_SIZE)
+			throw new IllegalArgumentException("The block size must be at least " + MIN_BLOCK_SIZE + " bytes.");
+		if(flushIntervalMillis < 1)
+			throw new IllegalArgumentException("The flush interval must be at least 1 millisecond.");
 		
+		synchronized(writerLock) {
+			if(closed)
+				return;
+			
+			synchronized(this) {
+				if(compressor != null)
+					throw new IllegalStateException("Compression is already on.");
+				if(!openStreams())
+					return;
+				
+				try {
+					bStream.flush();
+					long size = fStream.getChannel().size();
+					if(size > 0)
+						throw new IllegalStateException("Compression has to be turned on before the first record is written.");
+					compressor = new CompressedBlockWriter(fStream, fileName + ".idx", blockSize, flushIntervalMillis);
+				} catch(IOException e) {
+					System.err.println("Cannot create log index!!!");
+					e.printStackTrace();
+					return;
+				}
+			}
+			
+			if(writer == null)
+				setAsynchronous(true);
+		}
+	}
+	
+	/**
+	 * Returns whether the file is written in compressed blocks.
+	 * @return
+	 */
+	public synchronized boolean isCompressed() {
+		return compressor != null;
+	}
+	
+	/**
+	 * Sets the severity at or above which records go on the priority lane in asynchronous mode.
+	 * The writer thread services the priority lane before the next record of the bulk lane, so an
+	 * urgent record doesn't wait behind a backlog of less severe ones.  Priority records can be
+	 * written ahead of older bulk records.
+	 * The default is {@link LogSeverity#CRITICAL}, which covers EMERGENCY, ALERT and CRITICAL.
+	 * Will throw an {@link IllegalArgumentException} if the severity isn't valid (0 - 7).
+	 * @param severity
+	 */
+	public void setPrioritySeverity(int severity) {
+		LogSeverity.checkForValidSeverity(severity);
+		synchronized(writerLock) {
+			prioritySeverity = severity;
+			if(writer != null)
+				writer.setPrioritySeverity(severity);
+		}
+	}
+	
+	/**
+	 * Sets if the file is flushed right after every record on the priority lane, instead of at the end
+	 * of the batch it was written in.  The default is true.  Only used in asynchronous mode.
+	 * @param flush
+	 */
+	public void setPriorityFlush(boolean flush) {
+		synchronized(writerLock) {
+			priorityFlush = flush;
+			if(writer != null)
+				writer.setPriorityFlush(flush);
+		}
+	}
+	
+	/**
+	 * Sets where records go while the file can't be written, such as another {@link MFileLogger} on a different disk
+	 * or a {@link MFlightRecorder} to keep them in memory.  Pass null to drop them, the default.
+	 * <p>
+	 * The first failed write marks this logger as degraded.  It then stops trying, so a full disk doesn't cost
+	 * a failed write per record, and hands every record to the fallback instead.  After half a second it tries again,
+	 * and after every failed retry it waits twice as long, up to a minute.  The first write that works makes it healthy again.
+	 * The failures themselves are reported through {@link LogStatus}, which keeps them from flooding the console.
+	 * Records that were already buffered when the file failed are kept and written once it recovers.
+	 * @param appender
+	 */
+	public void setFallbackAppender(LogAppender appender) {
+		fallback = appender;
+	}
+	
+	/**
+	 * Sets the sampler that decides which records the log methods keep when there are more than the file can take,
+	 * and reports how many it left out.  Pass null to keep every record, the default.
+	 * Records handed to {@link #append(LogRecord)} are never sampled.  Don't share a sampler between loggers,
+	 * its adaptive mode follows the load of the logger it belongs to.
+	 * @param sampler
+	 */
+	public void setSampler(LogSampler sampler) {
+		this.sampler = sampler;
+	}
+	
+	/**
+	 * Returns the sampler, null if there is none.
+	 * @return
+	 */
+	public LogSampler getSampler() {
+		return sampler;
+	}
+	
+	/**
+	 * Returns true while the file can't be written and records go to the fallback, see {@link #setFallbackAppender(LogAppender)}.
+	 * @return
+	 */
+	public boolean isDegraded() {
+		return guard.isDegraded();
+	}
+	
+	/**
+	 * Returns the number of records that couldn't be written to the file, and went to the fallback or were lost.
+	 * @return
+	 */
+	public long getFailedCount() {
+		return guard.getFailedRecordCount();
+	}
+	
+	/**
+	 * Returns the number of records dropped in asynchronous mode because the queue was full.
+	 * @return
+	 */
+	public long getDroppedCount() {
+		LogWriterThread w = writer;
+		if(w == null)
+			return 0;
+		return w.getDroppedCount();
+	}
+	
+	/**
+	 * Returns the number of records waiting in the asynchronous queue, 0 in synchronous mode.
+	 * @return
+	 */
+	public int getQueueSize() {
+		LogWriterThread w = writer;
+		if(w == null)
+			return 0;
+		return w.getQueueSize();
 	}
 	
 	/**
@@ -119,44 +507,284 @@ public class MFileLogger {
 	 * @param severity
 	 */
 	public void log(String logMessage, int severity, String processID) {
+		log(logMessage, severity, processID, "-", null);
+	}
+	
+	/**
+	 * Writes a log statement.
+	 * Allows for setting the severity level.
+	 * Allows for setting a process ID.
+	 * Allows for setting a message ID.  Pass "-" (the NILVALUE) if there is none.
+	 * @param logMessage
+	 * @param severity
+	 * @param processID
+	 * @param msgID
+	 */
+	public void log(String logMessage, int severity, String processID, String msgID) {
+		log(logMessage, severity, processID, msgID, null);
+	}
+	
+	/**
+	 * Writes a log statement with an exception.
+	 * Assigns it a severity of "Error" (3) by default.
+	 * Assigns it a process ID of 0 by default.
+	 * See {@link #log(String, int, String, String, Throwable)}.
+	 * @param logMessage
+	 * @param thrown
+	 */
+	public void log(String logMessage, Throwable thrown) {
+		log(logMessage, LogSeverity.ERROR, "0", "-", thrown);
+	}
+	
+	/**
+	 * Writes a log statement with an exception.
+	 * Allows for setting the severity level.
+	 * Assigns it a process ID of 0 by default.
+	 * See {@link #log(String, int, String, String, Throwable)}.
+	 * @param logMessage
+	 * @param severity
+	 * @param thrown
+	 */
+	public void log(String logMessage, int severity, Throwable thrown) {
+		log(logMessage, severity, "0", "-", thrown);
+	}
+	
+	/**
+	 * Writes a log statement with an exception.
+	 * Allows for setting the severity level.
+	 * Allows for setting a process ID.
+	 * See {@link #log(String, int, String, String, Throwable)}.
+	 * @param logMessage
+	 * @param severity
+	 * @param processID
+	 * @param thrown
+	 */
+	public void log(String logMessage, int severity, String processID, Throwable thrown) {
+		log(logMessage, severity, processID, "-", thrown);
+	}
+	
+	/**
+	 * Writes a log statement with an exception.
+	 * The stack trace is rendered by whichever thread writes the statement, which is the
+	 * background thread in asynchronous mode.  The first occurrence of a stack trace is written
+	 * in full along with its fingerprint, identical traces inside the window set with
+	 * {@link #setStackTraceWindow(long)} only reference the fingerprint.
+	 * @param logMessage
+	 * @param severity
+	 * @param processID
+	 * @param msgID Pass "-" (the NILVALUE) if there is none.
+	 * @param thrown May be null.
+	 */
+	public void log(String logMessage, int severity, String processID, String msgID, Throwable thrown) {
 		try {
 			//Throws and IllegalArgumentException if the severity is illegal.
 			LogSeverity.checkForValidSeverity(severity);
-			bWriter.write(createLogStatement(logMessage, severity, processID));
-			bWriter.newLine();
-			bWriter.flush();
 		} catch(IllegalArgumentException iae) {
 			iae.printStackTrace();
-		} catch (IOException e) {
-			System.err.println("Cannot write to log file!!!");
-			e.printStackTrace();
+			return;
+		}
+		
+		if(closed)
+			return;
+		
+		LogSampler s = sampler;
+		if(s != null) {
+			String report = s.takeReport(false);
+			if(report != null)
+				submit(report, LogSeverity.NOTICE, "0", LogSampler.REPORT_MSG_ID, null, null, true);
+			if(!s.sample(severity, writer))
+				return;
 		}
+		submit(logMessage, severity, processID, msgID, thrown, s, false);
+	}
+	
+	/**
+	 * Writes or queues a record that made it past the sampler.
+	 * @param s The sampler to tell how long a synchronous write took, may be null.
+	 * @param report True for the sampler's reports, which go on the priority lane so a full queue doesn't lose them.
+	 */
+	private void submit(String logMessage, int severity, String processID, String msgID, Throwable thrown, LogSampler s, boolean report) {
+		if(!started)
+			start();
+		
+		long epochMicros = LogRecord.currentEpochMicros();
+		LogWriterThread w = writer;
+		boolean tapped = MLog.isTapped(this);
+		if(w != null || tapped) {
+			LogRecord record = new LogRecord(epochMicros, severity, processID, msgID, logMessage, thrown, LogContext.snapshot());
+			if(tapped)
+				MLog.publish(record);
+			if(w != null) {
+				if(report)
+					w.enqueue(record, true);
+				else
+					w.enqueue(record);
+				return;
+			}
+		}
+		
+		boolean written;
+		synchronized(this) {
+			if(closed)
+				return;
+			long writeStart = s != null ? System.nanoTime() : 0;
+			written = writeRecord(epochMicros, severity, processID, msgID, LogContext.current(), logMessage, thrown);
+			flushStream();
+			if(s != null)
+				s.writeTook(System.nanoTime() - writeStart);
+		}
+		if(!written)
+			fallBack(new LogRecord(epochMicros, severity, processID, msgID, logMessage, thrown, LogContext.snapshot()));
 	}
 
 	/**
-	 * Closes the BufferedWriter and FileWriter associated with this object.
+	 * Writes a record that was created elsewhere, such as one dumped by a {@link MFlightRecorder}.
+	 * The record keeps its own timestamp.
+	 * In asynchronous mode the record is queued like any other.
+	 * @param record
+	 */
+	@Override
+	public void append(LogRecord record) {
+		if(closed)
+			return;
+		if(!started)
+			start();
+		
+		LogWriterThread w = writer;
+		if(w != null) {
+			w.enqueue(record);
+			return;
+		}
+		
+		boolean written;
+		synchronized(this) {
+			if(closed)
+				return;
+			written = writeRecord(record.epochMicros, record.severity, record.processID, record.msgID, record.context, record.message, record.thrown);
+			flushStream();
+		}
+		if(!written)
+			fallBack(record);
+	}
+
+	/**
+	 * Closes the BufferedOutputStream and FileOutputStream associated with this object.
+	 * In asynchronous mode everything that is still queued is written first.
 	 * This should be called when the program closes, but it is not mandatory.
+	 * {@link MLog} does it from a shutdown hook for the loggers it holds.
 	 */
 	public void close() {
+		close(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Stops accepting records, writes what is still queued until the timeout runs out,
+	 * then forces the file to disk and closes it.  Records still queued after the timeout are abandoned.
+	 * Any log calls after this are ignored.
+	 * @param timeoutMillis
+	 * @return How many queued records were written and how many were abandoned.
+	 */
+	public ShutdownReport close(long timeoutMillis) {
+		ShutdownReport report = new ShutdownReport(0, 0);
+		
+		//The counts since the last report go out with the rest of the queue.
+		LogSampler s = sampler;
+		if(s != null && !closed) {
+			String last = s.takeReport(true);
+			if(last != null)
+				submit(last, LogSeverity.NOTICE, "0", LogSampler.REPORT_MSG_ID, null, null, true);
+		}
+		
+		synchronized(writerLock) {
+			if(closed)
+				return report;
+			closed = true;
+			
+			if(writer != null) {
+				LogWriterThread old = writer;
+				writer = null;
+				report = old.shutdown(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+			}
+		}
+		
+		synchronized(this) {
+			//A lazy logger that never logged has nothing to close.
+			if(bStream == null)
+				return report;
+			try {
+				if(compressor != null)
+					compressor.close();
+				bStream.flush();
+				fStream.getChannel().force(true);
+				bStream.close();
+				fStream.close();
+			} catch(IOException e) {
+				System.err.println("Cannot close logging system!!!");
+				e.printStackTrace();
+			}
+		}
+		
+		return report;
+	}
+	
+	/**
+	 * Encodes a statement and writes it to the buffered stream.  Callers must hold the lock on this object.
+	 * @return False if the record has to go to the fallback, which callers do after letting go of the lock.
+	 */
+	private boolean writeRecord(long epochMicros, int severity, String processID, String msgID, LogContext context, String logMessage, Throwable thrown) {
+		if(!guard.canAttempt() || !openStreams())
+			return false;
+		
+		encoder.reset();
+		if(layout == LogLayout.JSON) {
+			encoder.writeJsonRecord(epochMicros, severity, facilityNumber, applicationName, processID, msgID, context, logMessage, thrown, throwableRenderer);
+		} else {
+			encoder.writeTextRecord(epochMicros, severity, processID, msgID, logMessage);
+			if(thrown != null)
+				throwableRenderer.writeText(encoder, thrown, epochMicros);
+		}
+		encoder.writeByte('\n');
+		
 		try {
-			bWriter.flush();
-			bWriter.close();
-			fWriter.close();
-		} catch(IOException e) {
-			System.err.println("Cannot close logging system!!!");
-			e.printStackTrace();
+			if(compressor != null)
+				compressor.write(encoder.getBuffer(), 0, encoder.size(), epochMicros);
+			else
+				bStream.write(encoder.getBuffer(), 0, encoder.size());
+		} catch (IOException e) {
+			guard.failed("Cannot write to log file", e);
+			return false;
 		}
+		return true;
+	}
+	
+	/**
+	 * Hands a record that couldn't be written to the fallback appender, if there is one.
+	 * Never called with the lock on this object held, the fallback can be a {@link MFlightRecorder} that dumps back into this logger.
+	 */
+	private void fallBack(LogRecord record) {
+		guard.recordFailed();
+		LogAppender appender = fallback;
+		if(appender != null)
+			appender.append(record);
 	}
 	
-	private String createLogStatement(String logMessage, int severity, String processID) {
-		String statement = java.time.Clock.systemUTC().instant().truncatedTo(ChronoUnit.MICROS).toString();
-		statement += ", Severity ";
-		statement += severity;
-		statement += ", PID ";
-		statement += processID;
-		statement += ", ";
-		statement += logMessage;
+	/**
+	 * Flushes the buffered stream, or writes the current block if it is due in compressed mode.
+	 */
+	private void flushStream() {
+		//A degraded logger doesn't flush either, the buffer would fail the same way.
+		if(!guard.canAttempt() || bStream == null)
+			return;
 		
-		return statement;
+		try {
+			if(compressor != null)
+				compressor.flushIfDue();
+			else
+				bStream.flush();
+			guard.succeeded();
+		} catch (IOException e) {
+			//The buffered records stay in the buffer and go out with the next flush that works.
+			guard.failed("Cannot write to log file", e);
+		}
 	}
 }
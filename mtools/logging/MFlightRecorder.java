@@ -0,0 +1,406 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Keeps the most recent log records in memory and only writes them out when something goes wrong.
+ * Log everything, including {@link LogSeverity#DEBUG}, to the flight recorder.  When a record at or above the
+ * trigger severity arrives (or {@link #dump()} is called) the whole history is handed to the target
+ * appender, such as an {@link MFileLogger} or {@link MSysLogger}, with the original timestamps.
+ * <p>
+ * The records are kept in a fixed size ring buffer outside of the Java heap.  Storing a record does not
+ * allocate, once the buffer is full the oldest records are overwritten.  The {@link LogContext} is not
+ * stored and exceptions are stored as text.
+ * @author Noah
+ *
+ */
+public class MFlightRecorder implements LogAppender {
+	
+	//The fixed part of a stored record: timestamp, severity and the three string lengths.
+	private static final int RECORD_HEADER_SIZE = 8 + 1 + 4 + 4 + 4;
+	
+	private final ByteBuffer ring;
+	private final int capacity;
+	private final LogAppender target;
+	private final RecordEncoder encoder = new RecordEncoder();
+	private final ThrowableRenderer throwableRenderer = new ThrowableRenderer();
+	
+	private int triggerSeverity;
+	private int maxRecords;
+	private int head;
+	private int tail;
+	private int usedBytes;
+	private int recordCount;
+	private byte[] dumpBuffer;
+	//Held while a dump hands records to the target, never while waiting for the lock on this object.
+	private final Object dumpLock = new Object();
+	//The thread handing records to the target.  Guarded by dumpLock.
+	private Thread dumpingThread;
+	
+	/**
+	 * Creates a flight recorder.
+	 * Will throw an {@link IllegalArgumentException} if the trigger severity isn't valid (0 - 7).
+	 * 
+	 * @param target Where the history is written when it is dumped.
+	 * @param capacityBytes The size of the ring buffer.  Older records are overwritten once it is full.
+	 * @param triggerSeverity Records at or above this severity (numerically lower or equal) dump the history.
+	 * See the {@link LogSeverity} class for severity level definitions.
+	 */
+	public MFlightRecorder(LogAppender target, int capacityBytes, int triggerSeverity) {
+		if(target == null)
+			throw new IllegalArgumentException("The flight recorder needs a target to dump to.");
+		if(capacityBytes < RECORD_HEADER_SIZE * 4)
+			throw new IllegalArgumentException("The flight recorder capacity must be at least " + (RECORD_HEADER_SIZE * 4) + " bytes.");
+		LogSeverity.checkForValidSeverity(triggerSeverity);
+		
+		this.target = target;
+		capacity = capacityBytes;
+		ring = ByteBuffer.allocateDirect(capacityBytes);
+		this.triggerSeverity = triggerSeverity;
+		maxRecords = Integer.MAX_VALUE;
+		dumpBuffer = new byte[256];
+		
+		//Every record is stored with its full trace, the dump is the only copy.
+		throwableRenderer.setWindow(0);
+	}
+	
+	/**
+	 * Limits the history to the last N records, on top of the byte capacity.
+	 * Anything less than 1 removes the limit.
+	 * @param max
+	 */
+	public synchronized void setMaxRecords(int max) {
+		if(max > 0)
+			maxRecords = max;
+		else
+			maxRecords = Integer.MAX_VALUE;
+		
+		while(recordCount > maxRecords) {
+			evictOldest();
+		}
+	}
+	
+	/**
+	 * Sets the severity that dumps the history.
+	 * Will throw an {@link IllegalArgumentException} if the severity isn't valid (0 - 7).
+	 * @param severity
+	 */
+	public synchronized void setTriggerSeverity(int severity) {
+		LogSeverity.checkForValidSeverity(severity);
+		triggerSeverity = severity;
+	}
+	
+	/**
+	 * Returns the number of records currently held.
+	 * @return
+	 */
+	public synchronized int getRecordCount() {
+		return recordCount;
+	}
+	
+	/**
+	 * Returns the number of bytes of the ring buffer currently in use.
+	 * @return
+	 */
+	public synchronized int getUsedBytes() {
+		return usedBytes;
+	}
+	
+	/**
+	 * Records a log statement.
+	 * Assigns it a severity of "Informational" (6) by default.
+	 * Assigns it a process ID of 0 by default.
+	 * @param logMessage
+	 */
+	public void log(String logMessage) {
+		log(logMessage, LogSeverity.INFORMATION, "0", "-", null);
+	}
+	
+	/**
+	 * Records a log statement.
+	 * Allows for setting the severity level.
+	 * Assigns it a process ID of 0 by default.
+	 * @param logMessage
+	 * @param severity
+	 */
+	public void log(String logMessage, int severity) {
+		log(logMessage, severity, "0", "-", null);
+	}
+	
+	/**
+	 * Records a log statement.
+	 * Allows for setting the severity level.
+	 * Allows for setting a process ID.
+	 * @param logMessage
+	 * @param severity
+	 * @param processID
+	 */
+	public void log(String logMessage, int severity, String processID) {
+		log(logMessage, severity, processID, "-", null);
+	}
+	
+	/**
+	 * Records a log statement.
+	 * Allows for setting the severity level.
+	 * Allows for setting a process ID.
+	 * Allows for setting a message ID.  Pass "-" (the NILVALUE) if there is none.
+	 * @param logMessage
+	 * @param severity
+	 * @param processID
+	 * @param msgID
+	 */
+	public void log(String logMessage, int severity, String processID, String msgID) {
+		log(logMessage, severity, processID, msgID, null);
+	}
+	
+	/**
+	 * Records a log statement with an exception.
+	 * Assigns it a severity of "Error" (3) by default.
+	 * Assigns it a process ID of 0 by default.
+	 * @param logMessage
+	 * @param thrown
+	 */
+	public void log(String logMessage, Throwable thrown) {
+		log(logMessage, LogSeverity.ERROR, "0", "-", thrown);
+	}
+	
+	/**
+	 * Records a log statement with an exception.  The stack trace is stored as text after the message.
+	 * If the severity is at or above the trigger severity the history, including this record, is dumped.
+	 * @param logMessage
+	 * @param severity
+	 * @param processID
+	 * @param msgID Pass "-" (the NILVALUE) if there is none.
+	 * @param thrown May be null.
+	 */
+	public void log(String logMessage, int severity, String processID, String msgID, Throwable thrown) {
+		//Throws an IllegalArgumentException if the severity is illegal.
+		LogSeverity.checkForValidSeverity(severity);
+		boolean trigger;
+		synchronized(this) {
+			store(LogRecord.currentEpochMicros(), severity, processID, msgID, logMessage, thrown);
+			trigger = severity <= triggerSeverity;
+		}
+		
+		if(trigger)
+			dump();
+	}
+	
+	/**
+	 * Records a record that was created elsewhere.
+	 * If its severity is at or above the trigger severity the history, including this record, is dumped.
+	 * Records that arrive while the history is being dumped are only stored, so the recorder can be the
+	 * fallback of the logger it dumps to, see {@link MFileLogger#setFallbackAppender(LogAppender)}.
+	 * Records the failing target hands back are then kept for the next dump.
+	 * @param record
+	 */
+	@Override
+	public void append(LogRecord record) {
+		boolean trigger;
+		synchronized(this) {
+			store(record.epochMicros, record.severity, record.processID, record.msgID, record.message, record.thrown);
+			trigger = record.severity <= triggerSeverity;
+		}
+		
+		if(trigger)
+			dump();
+	}
+	
+	/**
+	 * Hands every record currently held to the target appender, oldest first, and empties the history.
+	 * The records are taken out under the lock and handed over after letting go of it, so a target that logs
+	 * back into this recorder from another thread can't deadlock with it.  Dumps happen one at a time,
+	 * and a dump started by the target itself, on the thread that is dumping, does nothing.
+	 */
+	public void dump() {
+		synchronized(dumpLock) {
+			if(dumpingThread == Thread.currentThread())
+				return;
+			
+			ArrayList<LogRecord> records = takeAll();
+			dumpingThread = Thread.currentThread();
+			try {
+				for(int i = 0; i < records.size(); i++) {
+					target.append(records.get(i));
+				}
+			} finally {
+				dumpingThread = null;
+			}
+		}
+	}
+	
+	/**
+	 * Decodes every record held, oldest first, and empties the history.
+	 */
+	private synchronized ArrayList<LogRecord> takeAll() {
+		ArrayList<LogRecord> records = new ArrayList<LogRecord>(recordCount);
+		while(recordCount > 0) {
+			int length = readInt(tail);
+			if(dumpBuffer.length < length)
+				dumpBuffer = new byte[Math.max(length, dumpBuffer.length * 2)];
+			read((tail + 4) % capacity, dumpBuffer, length);
+			evictOldest();
+			records.add(decode(dumpBuffer));
+		}
+		return records;
+	}
+	
+	/**
+	 * Throws away the history without writing it.
+	 */
+	public synchronized void clear() {
+		head = 0;
+		tail = 0;
+		usedBytes = 0;
+		recordCount = 0;
+	}
+	
+	/**
+	 * Encodes a record into the scratch encoder and copies it into the ring.
+	 * The stored form is: int length, long timestamp, byte severity, then the process ID,
+	 * message ID and message, each as an int length followed by UTF-8 bytes.
+	 */
+	private void store(long epochMicros, int severity, String processID, String msgID, String logMessage, Throwable thrown) {
+		encoder.reset();
+		encoder.writeInt(0);
+		encoder.writeLong(epochMicros);
+		encoder.writeByte(severity);
+		//Nulls are kept the way the text layout writes them.
+		writeString(String.valueOf(processID));
+		writeString(msgID == null ? "-" : msgID);
+		
+		int messageStart = encoder.size();
+		if(messageStart + 4 > capacity)
+			return;
+		encoder.writeInt(0);
+		encoder.writeUtf8(String.valueOf(logMessage));
+		if(thrown != null)
+			throwableRenderer.writeText(encoder, thrown, epochMicros);
+		
+		//A record that doesn't fit in the whole ring gets its message cut off,
+		//one whose IDs alone don't fit is not stored at all.
+		//The cut may split a UTF-8 sequence, the decoder replaces the broken character.
+		if(encoder.size() > capacity)
+			encoder.truncate(capacity);
+		encoder.setInt(messageStart, encoder.size() - messageStart - 4);
+		
+		int length = encoder.size();
+		encoder.setInt(0, length - 4);
+		
+		while(recordCount > 0 && (usedBytes + length > capacity || recordCount >= maxRecords)) {
+			evictOldest();
+		}
+		
+		write(head, encoder.getBuffer(), length);
+		head = (head + length) % capacity;
+		usedBytes += length;
+		recordCount++;
+	}
+	
+	private void writeString(String s) {
+		int start = encoder.size();
+		encoder.writeInt(0);
+		encoder.writeUtf8(s);
+		encoder.setInt(start, encoder.size() - start - 4);
+	}
+	
+	private void evictOldest() {
+		int length = readInt(tail) + 4;
+		tail = (tail + length) % capacity;
+		usedBytes -= length;
+		recordCount--;
+	}
+	
+	private LogRecord decode(byte[] bytes) {
+		long epochMicros = getLong(bytes, 0);
+		int severity = bytes[8];
+		int position = 9;
+		
+		int length = getInt(bytes, position);
+		String processID = new String(bytes, position + 4, length, StandardCharsets.UTF_8);
+		position += 4 + length;
+		
+		length = getInt(bytes, position);
+		String msgID = new String(bytes, position + 4, length, StandardCharsets.UTF_8);
+		position += 4 + length;
+		
+		length = getInt(bytes, position);
+		String message = new String(bytes, position + 4, length, StandardCharsets.UTF_8);
+		
+		return new LogRecord(epochMicros, severity, processID, msgID, message, null, null);
+	}
+	
+	private void write(int position, byte[] src, int length) {
+		int first = Math.min(length, capacity - position);
+		ring.position(position);
+		ring.put(src, 0, first);
+		if(first < length) {
+			ring.position(0);
+			ring.put(src, first, length - first);
+		}
+	}
+	
+	private void read(int position, byte[] dst, int length) {
+		int first = Math.min(length, capacity - position);
+		ring.position(position);
+		ring.get(dst, 0, first);
+		if(first < length) {
+			ring.position(0);
+			ring.get(dst, first, length - first);
+		}
+	}
+	
+	private int readInt(int position) {
+		int value = 0;
+		for(int i = 0; i < 4; i++) {
+			value = (value << 8) | (ring.get((position + i) % capacity) & 0xFF);
+		}
+		return value;
+	}
+	
+	private static int getInt(byte[] bytes, int position) {
+		return ((bytes[position] & 0xFF) << 24) | ((bytes[position + 1] & 0xFF) << 16)
+				| ((bytes[position + 2] & 0xFF) << 8) | (bytes[position + 3] & 0xFF);
+	}
+	
+	private static long getLong(byte[] bytes, int position) {
+		return ((long) getInt(bytes, position) << 32) | (getInt(bytes, position + 4) & 0xFFFFFFFFL);
+	}
+}
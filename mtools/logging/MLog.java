@@ -38,10 +38,23 @@ package mtools.logging;
 
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Wrapper for a static {@link MFileLogger} and a static {@link MSysLogger} so they can be called
  * directly from anywhere in the application without having to pass the object down to other objects.
+ * The first init call registers a JVM shutdown hook that calls {@link #shutdown()}, so queued records
+ * are written and the loggers are closed when the program exits.
+ * Extra appenders, such as a {@link LogTailDashboard}, can be attached with {@link #addAppender(LogAppender)}
+ * to see every record the two loggers receive.
+ * <p>
+ * For short-lived programs, {@link #setLazyInit(boolean)} makes the init calls cheap: the file, the socket and the
+ * writer threads are only created on the first record.  {@link #log(String, int)} logs to whichever loggers
+ * were initialized, and does nothing if none were.
+ * <p>
+ * When there are more DEBUG and INFORMATION records than the disk or the syslog server can take, give each logger
+ * a {@link LogSampler}, such as <code>MLog.fileLog.setSampler(sampler)</code>, to keep a representative part of them.
  * @author Noah
  *
  */
@@ -49,13 +62,86 @@ public class MLog {
 	public static MFileLogger fileLog;
 	public static MSysLogger sysLog;
 	
+	private static long shutdownTimeoutMillis = 5000;
+	private static Thread shutdownHook;
+	//Copied on every change so the logging path can read it without locking.
+	private static volatile LogAppender[] appenders = new LogAppender[0];
+	private static boolean lazyInit = false;
+	private static volatile int severityThreshold = LogSeverity.DEBUG;
+	
+	/**
+	 * Makes the init calls that follow create lazy loggers, see {@link MFileLogger#lazy(String)} and
+	 * {@link MSysLogger#lazy(String, int, String)}.  Nothing is opened, looked up or started until the first record,
+	 * so a program that logs nothing doesn't pay for it.  The default is false.
+	 * @param lazy
+	 */
+	public static synchronized void setLazyInit(boolean lazy) {
+		lazyInit = lazy;
+	}
+	
+	/**
+	 * Sets the least severe records that {@link #log(String, int)} passes on.  The default is {@link LogSeverity#DEBUG}, everything.
+	 * Records below it are dropped before they reach a logger, so they don't open a lazy one either.
+	 * @param severity
+	 */
+	public static void setSeverityThreshold(int severity) {
+		LogSeverity.checkForValidSeverity(severity);
+		severityThreshold = severity;
+	}
+	
+	/**
+	 * Returns true if {@link #log(String, int)} would pass a record of this severity on to a logger.
+	 * Use it to skip building expensive messages.
+	 * @param severity
+	 * @return
+	 */
+	public static boolean isEnabled(int severity) {
+		return severity <= severityThreshold && (fileLog != null || sysLog != null);
+	}
+	
+	/**
+	 * Logs a message to every logger that was initialized, with a process ID of 0.
+	 * Does nothing if there are none or the severity is below the threshold, see {@link #setSeverityThreshold(int)}.
+	 * @param logMessage
+	 * @param severity
+	 */
+	public static void log(String logMessage, int severity) {
+		if(severity > severityThreshold)
+			return;
+		
+		MFileLogger file = fileLog;
+		MSysLogger sys = sysLog;
+		if(file != null)
+			file.log(logMessage, severity);
+		if(sys != null)
+			sys.log(logMessage, severity);
+	}
+	
+	/**
+	 * Logs a message with an exception to every logger that was initialized, see {@link #log(String, int)}.
+	 * @param logMessage
+	 * @param severity
+	 * @param thrown
+	 */
+	public static void log(String logMessage, int severity, Throwable thrown) {
+		if(severity > severityThreshold)
+			return;
+		
+		MFileLogger file = fileLog;
+		MSysLogger sys = sysLog;
+		if(file != null)
+			file.log(logMessage, severity, thrown);
+		if(sys != null)
+			sys.log(logMessage, severity, thrown);
+	}
+	
 	/**
 	 * Initializes the {@link MFileLogger}.
 	 * One of the init commands for that object must be called before using the MFileLogger object contained in this class.
 	 * Logs to a local file named "Log.txt".
 	 */
 	public static void initFileLogger() {
-		fileLog = new MFileLogger();
+		initFileLogger("Log.txt");
 	}
 	
 	/**
@@ -66,7 +152,10 @@ public class MLog {
 	 * @param logFileName The filename you wish to assign to the log file.
 	 */
 	public static void initFileLogger(String logFileName) {
-		fileLog = new MFileLogger(logFileName);
+		synchronized(MLog.class) {
+			fileLog = lazyInit ? MFileLogger.lazy(logFileName) : new MFileLogger(logFileName);
+		}
+		registerShutdownHook();
 	}
 	
 	/**
@@ -80,10 +169,175 @@ public class MLog {
 	 */
 	public static void initSysLogger(String applicationName, int facilityNumber, InetAddress serverAddress) {
 		try {
-			sysLog = new MSysLogger(applicationName, facilityNumber, serverAddress);
+			synchronized(MLog.class) {
+				sysLog = lazyInit ? MSysLogger.lazy(applicationName, facilityNumber, serverAddress)
+						: new MSysLogger(applicationName, facilityNumber, serverAddress);
+			}
+			registerShutdownHook();
 		} catch (SocketException e) {
 			System.err.println("Cannot initialize syslogger!!!");
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Attaches an appender that receives every record logged through {@link #fileLog} or {@link #sysLog},
+	 * on the thread that logs it.  The appender has to be quick and must not block.
+	 * A message logged to both loggers reaches the appender twice.
+	 * @param appender
+	 */
+	public static synchronized void addAppender(LogAppender appender) {
+		if(appender == null)
+			throw new IllegalArgumentException("The appender cannot be null.");
+		
+		LogAppender[] current = appenders;
+		LogAppender[] added = new LogAppender[current.length + 1];
+		System.arraycopy(current, 0, added, 0, current.length);
+		added[current.length] = appender;
+		appenders = added;
+	}
+	
+	/**
+	 * Detaches an appender added with {@link #addAppender(LogAppender)}.  Does nothing if it is not attached.
+	 * @param appender
+	 */
+	public static synchronized void removeAppender(LogAppender appender) {
+		LogAppender[] current = appenders;
+		for(int i = 0; i < current.length; i++) {
+			if(current[i] == appender) {
+				LogAppender[] removed = new LogAppender[current.length - 1];
+				System.arraycopy(current, 0, removed, 0, i);
+				System.arraycopy(current, i + 1, removed, i, current.length - i - 1);
+				appenders = removed;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Returns whether records from the passed logger have to be handed to attached appenders.
+	 * Cheap enough to call on every log call.
+	 * @param source
+	 * @return
+	 */
+	static boolean isTapped(Object source) {
+		return appenders.length > 0 && (source == fileLog || source == sysLog);
+	}
+	
+	/**
+	 * Hands a record to every attached appender.
+	 * @param record
+	 */
+	static void publish(LogRecord record) {
+		LogAppender[] current = appenders;
+		for(int i = 0; i < current.length; i++) {
+			try {
+				current[i].append(record);
+			} catch(RuntimeException e) {
+				LogStatus.error("MLog appender " + current[i].getClass().getName(), "Log appender failed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Initializes the {@link MSysLogger} with the syslog server given by name.
+	 * The name is looked up again in the background whenever the host cache entry expires, see {@link mtools.MUtils#setHostCacheTtl(long)}.
+	 * 
+	 * @param applicationName The application name for the syslog messages.  See RFC 5424, section 6.2.5 for more info.
+	 * @param facilityNumber The facilityNumber for the syslog messages.  See RFC 5424, section 6.2.1 for more info.
+	 * @param serverHost The host name or IP address of the syslog server you wish to write to.
+	 */
+	public static void initSysLogger(String applicationName, int facilityNumber, String serverHost) {
+		try {
+			synchronized(MLog.class) {
+				sysLog = lazyInit ? MSysLogger.lazy(applicationName, facilityNumber, serverHost)
+						: new MSysLogger(applicationName, facilityNumber, serverHost);
+			}
+			registerShutdownHook();
+		} catch (SocketException | UnknownHostException e) {
+			System.err.println("Cannot initialize syslogger!!!");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Sets how long the shutdown gets to write the records that are still queued
+	 * before they are abandoned.  The default is 5 seconds.  The time is shared by all loggers.
+	 * @param millis
+	 */
+	public static synchronized void setShutdownTimeout(long millis) {
+		if(millis < 0)
+			throw new IllegalArgumentException("The shutdown timeout cannot be negative.");
+		shutdownTimeoutMillis = millis;
+	}
+	
+	/**
+	 * Registers the JVM shutdown hook that calls {@link #shutdown()}.
+	 * This is done by the init calls, calling it again does nothing.
+	 * The hook reports on stderr if any records had to be abandoned.
+	 */
+	public static synchronized void registerShutdownHook() {
+		if(shutdownHook != null)
+			return;
+		
+		shutdownHook = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ShutdownReport report = shutdown();
+				if(report.getAbandonedCount() > 0)
+					System.err.println("MLog shutdown: " + report);
+			}
+		}, "MLog shutdown");
+		
+		try {
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		} catch(IllegalStateException e) {
+			//The JVM is already shutting down.
+			shutdownHook = null;
+		}
+	}
+	
+	/**
+	 * Removes the JVM shutdown hook.  The loggers then have to be closed by the application.
+	 */
+	public static synchronized void unregisterShutdownHook() {
+		if(shutdownHook == null)
+			return;
+		
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch(IllegalStateException e) {
+			//The JVM is already shutting down, the hook runs anyway.
+		}
+		shutdownHook = null;
+	}
+	
+	/**
+	 * Stops intake on both loggers, writes what they still have queued until the shutdown timeout
+	 * runs out, forces the log file to disk and closes the file and the UDP socket.
+	 * Any log calls after this are ignored.
+	 * @return How many queued records were written and how many were abandoned.
+	 */
+	public static ShutdownReport shutdown() {
+		MFileLogger file;
+		MSysLogger sys;
+		long timeoutNanos;
+		synchronized(MLog.class) {
+			file = fileLog;
+			sys = sysLog;
+			timeoutNanos = TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMillis);
+		}
+		
+		long start = System.nanoTime();
+		ShutdownReport report = new ShutdownReport(0, 0);
+		if(file != null)
+			report.add(file.close(remainingMillis(start, timeoutNanos)));
+		if(sys != null)
+			report.add(sys.close(remainingMillis(start, timeoutNanos)));
+		return report;
+	}
+	
+	private static long remainingMillis(long start, long timeoutNanos) {
+		return Math.max(0, (timeoutNanos - (System.nanoTime() - start)) / 1_000_000L);
+	}
 }
@@ -0,0 +1,488 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mtools.TimestampRenderer;
+
+/**
+ * Writes records to several files according to {@link LogRoute} rules, such as every record to "all.log"
+ * and ERROR and worse to "errors.log" as well.  A record is written to every file with a matching route, once per file.
+ * <p>
+ * The files are shared out over a small pool of writer threads, every file always on the same thread so its records stay in order.
+ * Unlike {@link MFileLogger}, severe records don't skip ahead of the queue.
+ * Logging threads only match the routes and queue the record, like the asynchronous mode of {@link MFileLogger}.
+ * A writer thread encodes a batch of records into buffers per file and writes each file's buffers with one gathering
+ * {@link FileChannel} write, so a file costs one write per batch instead of one per record.  Files are opened on their first record.
+ * Records that don't come with a facility or a logger name, such as the ones from {@link MLog#addAppender(LogAppender)},
+ * use the default facility and no logger name.
+ * @author Noah
+ *
+ */
+public class MRoutingLogger implements LogAppender {
+	
+	private static final int DEFAULT_WRITER_THREADS = 2;
+	private static final int SEGMENT_SIZE = 1 << 16;
+	
+	/**
+	 * One file and the buffers waiting to be written to it.  Only touched by its writer thread.
+	 */
+	static final class Target {
+		final String fileName;
+		final int writerIndex;
+		FileChannel channel;
+		final ArrayList<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+		//Per file, a trace is only left out as repeated if this file has it.
+		final ThrowableRenderer throwableRenderer = new ThrowableRenderer();
+		boolean dirty;
+		//The records in the segments.
+		int pendingRecords;
+		
+		Target(String fileName, int writerIndex) {
+			this.fileName = fileName;
+			this.writerIndex = writerIndex;
+		}
+	}
+	
+	/**
+	 * The routes and their files, with the routes to the same file next to each other.  Never changed once it is published.
+	 */
+	private static final class RouteTable {
+		final LogRoute[] routes;
+		final Target[] targets;
+		
+		RouteTable(LogRoute[] routes, Target[] targets) {
+			this.routes = routes;
+			this.targets = targets;
+		}
+	}
+	
+	/**
+	 * Encodes and writes the records of one writer thread.
+	 */
+	private final class WriterSink implements LogWriterThread.RecordSink {
+		private final RecordEncoder encoder = new RecordEncoder();
+		private final ArrayList<Target> dirtyTargets = new ArrayList<Target>();
+		private final ArrayDeque<ByteBuffer> freeSegments = new ArrayDeque<ByteBuffer>();
+		//Records lost because their file couldn't be written.
+		final AtomicLong failedCount = new AtomicLong();
+		
+		@Override
+		public void write(LogRecord record) {
+			RoutedRecord routed = (RoutedRecord) record;
+			Target target = routed.target;
+			encoder.reset();
+			encoder.setTimestampRenderer(timestamps);
+			if(layout == LogLayout.JSON) {
+				encoder.writeJsonRecord(record.epochMicros, record.severity, routed.facility, applicationName, record.processID, record.msgID,
+						record.context, record.message, record.thrown, target.throwableRenderer);
+			} else {
+				encoder.writeTextRecord(record.epochMicros, record.severity, record.processID, record.msgID, record.message);
+				if(record.thrown != null)
+					target.throwableRenderer.writeText(encoder, record.thrown, record.epochMicros);
+			}
+			encoder.writeByte('\n');
+			
+			if(!target.dirty) {
+				target.dirty = true;
+				dirtyTargets.add(target);
+			}
+			target.pendingRecords++;
+			
+			byte[] bytes = encoder.getBuffer();
+			int length = encoder.size();
+			int offset = 0;
+			while(offset < length) {
+				ByteBuffer segment = target.segments.isEmpty() ? null : target.segments.get(target.segments.size() - 1);
+				if(segment == null || !segment.hasRemaining()) {
+					segment = freeSegments.isEmpty() ? ByteBuffer.allocate(SEGMENT_SIZE) : freeSegments.poll();
+					target.segments.add(segment);
+				}
+				int n = Math.min(segment.remaining(), length - offset);
+				segment.put(bytes, offset, n);
+				offset += n;
+			}
+		}
+		
+		@Override
+		public void flush() {
+			for(int i = 0; i < dirtyTargets.size(); i++) {
+				writeTarget(dirtyTargets.get(i));
+			}
+			dirtyTargets.clear();
+		}
+		
+		private void writeTarget(Target target) {
+			ArrayList<ByteBuffer> segments = target.segments;
+			ByteBuffer[] buffers = segments.toArray(new ByteBuffer[segments.size()]);
+			for(int i = 0; i < buffers.length; i++) {
+				buffers[i].flip();
+			}
+			
+			try {
+				if(target.channel == null)
+					target.channel = FileChannel.open(Paths.get(target.fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+				
+				//A gathering write may stop early, the last buffer tells if everything is out.
+				ByteBuffer last = buffers[buffers.length - 1];
+				while(last.hasRemaining()) {
+					target.channel.write(buffers);
+				}
+			} catch(IOException e) {
+				LogStatus.error("MRoutingLogger " + target.fileName, "Cannot write to log file", e);
+				//Some of it may have made it out, but there is no telling which records.
+				failedCount.addAndGet(target.pendingRecords);
+			}
+			
+			for(int i = 0; i < buffers.length; i++) {
+				buffers[i].clear();
+				freeSegments.add(buffers[i]);
+			}
+			segments.clear();
+			target.dirty = false;
+			target.pendingRecords = 0;
+		}
+	}
+	
+	private final LogWriterThread[] writers;
+	private final WriterSink[] sinks;
+	private final HashMap<String, Target> targets = new HashMap<String, Target>();
+	//Copied on every change, so the logging threads can read it without locking.
+	private volatile RouteTable routeTable = new RouteTable(new LogRoute[0], new Target[0]);
+	
+	private volatile int layout = LogLayout.TEXT;
+	private volatile TimestampRenderer timestamps;
+	private volatile ZoneId timeZone = ZoneOffset.UTC;
+	private volatile String applicationName = "-";
+	private volatile int facilityNumber = FacilityNumbers.USER_LEVEL;
+	private volatile boolean closed = false;
+	
+	/**
+	 * A routing logger with 2 writer threads.
+	 */
+	public MRoutingLogger() {
+		this(DEFAULT_WRITER_THREADS);
+	}
+	
+	/**
+	 * @param writerThreads The number of writer threads the files are shared out over, at least 1.
+	 */
+	public MRoutingLogger(int writerThreads) {
+		this(writerThreads, LogWriterThread.DEFAULT_QUEUE_CAPACITY);
+	}
+	
+	/**
+	 * @param writerThreads The number of writer threads the files are shared out over, at least 1.
+	 * @param queueCapacity The maximum number of records waiting per writer thread.
+	 */
+	public MRoutingLogger(int writerThreads, int queueCapacity) {
+		if(writerThreads < 1)
+			throw new IllegalArgumentException("There has to be at least one writer thread.");
+		
+		writers = new LogWriterThread[writerThreads];
+		sinks = new WriterSink[writerThreads];
+		for(int i = 0; i < writerThreads; i++) {
+			sinks[i] = new WriterSink();
+			writers[i] = new LogWriterThread("MRoutingLogger writer " + i, sinks[i], queueCapacity);
+			//No priority lane, it would write severe records ahead of earlier ones in the same file.
+			writers[i].setPrioritySeverity(-1);
+			writers[i].start();
+		}
+	}
+	
+	/**
+	 * Adds a route.  Routes to the same file share it, and a record matching several of them is written to it once.
+	 * @param route
+	 */
+	public synchronized void addRoute(LogRoute route) {
+		Target target = targets.get(route.getFileName());
+		if(target == null) {
+			target = new Target(route.getFileName(), targets.size() % writers.length);
+			targets.put(route.getFileName(), target);
+		}
+		
+		//Goes behind the last route to the same file, or at the end.
+		RouteTable table = routeTable;
+		int count = table.routes.length;
+		int position = count;
+		for(int i = count - 1; i >= 0; i--) {
+			if(table.targets[i] == target) {
+				position = i + 1;
+				break;
+			}
+		}
+		
+		LogRoute[] newRoutes = new LogRoute[count + 1];
+		Target[] newTargets = new Target[count + 1];
+		System.arraycopy(table.routes, 0, newRoutes, 0, position);
+		System.arraycopy(table.targets, 0, newTargets, 0, position);
+		System.arraycopy(table.routes, position, newRoutes, position + 1, count - position);
+		System.arraycopy(table.targets, position, newTargets, position + 1, count - position);
+		newRoutes[position] = route;
+		newTargets[position] = target;
+		routeTable = new RouteTable(newRoutes, newTargets);
+	}
+	
+	/**
+	 * Returns the number of routes.
+	 * @return
+	 */
+	public int getRouteCount() {
+		return routeTable.routes.length;
+	}
+	
+	/**
+	 * Sets the layout of the files, see {@link LogLayout}.  The default is {@link LogLayout#TEXT}.
+	 * @param layout
+	 */
+	public void setLayout(int layout) {
+		LogLayout.checkForValidLayout(layout);
+		this.layout = layout;
+	}
+	
+	/**
+	 * Sets the time zone of the timestamps, see {@link MFileLogger#setTimeZone(ZoneId)}.  Pass null for UTC, the default.
+	 * @param zone
+	 */
+	public void setTimeZone(ZoneId zone) {
+		if(zone == null || zone.equals(ZoneOffset.UTC))
+			timestamps = null;
+		else
+			timestamps = new TimestampRenderer(zone);
+		timeZone = zone == null ? ZoneOffset.UTC : zone;
+	}
+	
+	/**
+	 * Returns the time zone of the timestamps.
+	 * @return
+	 */
+	public ZoneId getTimeZone() {
+		return timeZone;
+	}
+	
+	/**
+	 * Sets the application name of the JSON layout.  Pass null if it's unavailable or N/A.
+	 * @param appName
+	 */
+	public void setApplicationName(String appName) {
+		applicationName = appName == null ? "-" : appName;
+	}
+	
+	/**
+	 * Sets the facility of records logged without one.  The default is {@link FacilityNumbers#USER_LEVEL}.
+	 * @param facNumber
+	 */
+	public void setFacilityNumber(int facNumber) {
+		FacilityNumbers.checkForValidFacility(facNumber);
+		facilityNumber = facNumber;
+	}
+	
+	/**
+	 * Logs a message with the default facility and no logger name.
+	 * @param logMessage
+	 * @param severity
+	 */
+	public void log(String logMessage, int severity) {
+		route(null, facilityNumber, LogRecord.currentEpochMicros(), severity, "0", "-", logMessage, null, LogContext.snapshot());
+	}
+	
+	/**
+	 * Logs a message for a logger name with the default facility.
+	 * @param loggerName Such as "db.pool", see {@link LogRoute}.
+	 * @param logMessage
+	 * @param severity
+	 */
+	public void log(String loggerName, String logMessage, int severity) {
+		route(loggerName, facilityNumber, LogRecord.currentEpochMicros(), severity, "0", "-", logMessage, null, LogContext.snapshot());
+	}
+	
+	/**
+	 * Logs a message for a logger name and a facility.
+	 * @param loggerName Such as "db.pool", see {@link LogRoute}.
+	 * @param facility See {@link FacilityNumbers}.
+	 * @param logMessage
+	 * @param severity
+	 */
+	public void log(String loggerName, int facility, String logMessage, int severity) {
+		log(loggerName, facility, logMessage, severity, "0", "-", null);
+	}
+	
+	/**
+	 * Logs a message with every field.
+	 * @param loggerName Such as "db.pool", see {@link LogRoute}.  May be null.
+	 * @param facility See {@link FacilityNumbers}.
+	 * @param logMessage
+	 * @param severity
+	 * @param processID
+	 * @param msgID "-" for none.
+	 * @param thrown May be null.
+	 */
+	public void log(String loggerName, int facility, String logMessage, int severity, String processID, String msgID, Throwable thrown) {
+		FacilityNumbers.checkForValidFacility(facility);
+		route(loggerName, facility, LogRecord.currentEpochMicros(), severity, processID, msgID, logMessage, thrown, LogContext.snapshot());
+	}
+	
+	/**
+	 * Routes a record that was created elsewhere with the default facility and no logger name.
+	 * @param record
+	 */
+	@Override
+	public void append(LogRecord record) {
+		route(null, facilityNumber, record.epochMicros, record.severity, record.processID, record.msgID, record.message, record.thrown, record.context);
+	}
+	
+	private void route(String loggerName, int facility, long epochMicros, int severity, String processID, String msgID, String logMessage,
+			Throwable thrown, LogContext context) {
+		LogSeverity.checkForValidSeverity(severity);
+		if(closed)
+			return;
+		
+		RouteTable table = routeTable;
+		LogRoute[] r = table.routes;
+		Target[] t = table.targets;
+		for(int i = 0; i < r.length; i++) {
+			if(!r[i].matches(severity, facility, loggerName))
+				continue;
+			
+			Target target = t[i];
+			writers[target.writerIndex].enqueue(new RoutedRecord(epochMicros, severity, processID, msgID, logMessage, thrown, context, target, facility));
+			
+			//The record is in this file, the other routes to it are next in line and don't need to be matched.
+			while(i + 1 < r.length && t[i + 1] == target) {
+				i++;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of records dropped because a writer queue was full.
+	 * @return
+	 */
+	public long getDroppedCount() {
+		long dropped = 0;
+		for(int i = 0; i < writers.length; i++) {
+			dropped += writers[i].getDroppedCount();
+		}
+		return dropped;
+	}
+	
+	/**
+	 * Returns the number of records that were lost because their file couldn't be written.
+	 * @return
+	 */
+	public long getFailedCount() {
+		long failed = 0;
+		for(int i = 0; i < sinks.length; i++) {
+			failed += sinks[i].failedCount.get();
+		}
+		return failed;
+	}
+	
+	/**
+	 * Returns the number of records waiting to be written.
+	 * @return
+	 */
+	public int getQueueSize() {
+		int size = 0;
+		for(int i = 0; i < writers.length; i++) {
+			size += writers[i].getQueueSize();
+		}
+		return size;
+	}
+	
+	/**
+	 * Writes everything that is still queued and closes the files.
+	 */
+	public void close() {
+		close(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Stops accepting records, writes what is still queued until the timeout runs out, forces the files to disk and closes them.
+	 * Any log calls after this are ignored.
+	 * @param timeoutMillis
+	 * @return How many queued records were written and how many were abandoned.
+	 */
+	public ShutdownReport close(long timeoutMillis) {
+		synchronized(this) {
+			if(closed)
+				return new ShutdownReport(0, 0);
+			closed = true;
+		}
+		
+		long timeoutNanos = timeoutMillis >= Long.MAX_VALUE / 1_000_000L ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		long start = System.nanoTime();
+		ShutdownReport report = new ShutdownReport(0, 0);
+		for(int i = 0; i < writers.length; i++) {
+			long remaining = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, timeoutNanos - (System.nanoTime() - start));
+			long failedBefore = sinks[i].failedCount.get();
+			ShutdownReport writerReport = writers[i].shutdown(remaining);
+			
+			//The writer thread counts records handed to a file that then failed as flushed.
+			//A batch that was under way when the shutdown started can't be told apart, hence the cap.
+			long failed = Math.min(sinks[i].failedCount.get() - failedBefore, writerReport.getFlushedCount());
+			report.add(new ShutdownReport(writerReport.getFlushedCount() - failed, writerReport.getAbandonedCount() + failed));
+		}
+		
+		synchronized(this) {
+			for(Target target : targets.values()) {
+				if(target.channel == null)
+					continue;
+				try {
+					target.channel.force(true);
+					target.channel.close();
+				} catch(IOException e) {
+					System.err.println("Cannot close log file " + target.fileName + "!!!");
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		return report;
+	}
+}
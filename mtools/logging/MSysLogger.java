@@ -42,24 +42,58 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.time.temporal.ChronoUnit;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+import mtools.MUtils;
+import mtools.TimestampRenderer;
 
 /**
  * This is a network logging system that is Syslog compliant (RFC 5424).
  * It is currently only UDP compatible.
  * This does not support setting the Structured Data syslog field.
+ * The MSG part can also be written as a JSON object, see {@link #setLayout(int)}.
+ * By default every message is sent by the calling thread.  {@link #setAsynchronous(boolean)}
+ * moves the sending onto a background thread.
+ * The HOSTNAME field and a syslog server given by name come from the host cache in {@link MUtils},
+ * so sending a message never waits for a name lookup.
  * @author Noah
  *
  */
-public class MSysLogger {
+public class MSysLogger implements LogAppender {
 	
 	private final int DEFAULT_UDP_PORT = 514;
 	
+	//The largest payload that fits in a UDP datagram.
+	private static final int MAX_DATAGRAM_SIZE = 65507;
+	
 	private InetAddress logAddress;
+	//The name of the syslog server if it was given by name, null otherwise.
+	private String logHost;
 	private DatagramSocket logSocket;
 	private int logPort;
 	private int facilityNumber;
 	private String applicationName;
+	private int layout = LogLayout.TEXT;
+	
+	private final RecordEncoder encoder = new RecordEncoder();
+	private ZoneId timeZone = ZoneOffset.UTC;
+	private final ThrowableRenderer throwableRenderer = new ThrowableRenderer();
+	private final DatagramPacket logPacket = new DatagramPacket(new byte[0], 0);
+	private final FailureGuard guard = new FailureGuard("MSysLogger");
+	private volatile LogAppender fallback;
+	private volatile LogSampler sampler;
+	private volatile LogWriterThread writer;
+	//Guards switching the writer thread.  Not the lock on this object, the writer thread needs that one to finish.
+	private final Object writerLock = new Object();
+	private volatile boolean closed = false;
+	//False until the first record of a lazy logger.
+	private volatile boolean started;
+	//The queue capacity of the writer thread a lazy logger starts with, 0 for none.
+	private int deferredQueueCapacity = 0;
+	private int prioritySeverity = LogWriterThread.DEFAULT_PRIORITY_SEVERITY;
+	private boolean priorityFlush = true;
 	
 	/**
 	 * The constructor for the syslog logger.
@@ -76,6 +110,10 @@ public class MSysLogger {
 	 * @throws SocketException When the InetAddress is invalid for whatever reason.
 	 */
 	public MSysLogger(String appName, int facNumber, InetAddress syslogAddress) throws SocketException {
+		this(appName, facNumber, syslogAddress, null, false);
+	}
+	
+	private MSysLogger(String appName, int facNumber, InetAddress syslogAddress, String syslogHost, boolean lazy) throws SocketException {
 		if(appName == null)
 			applicationName = "-";
 		else
@@ -85,8 +123,110 @@ public class MSysLogger {
 		facilityNumber = facNumber;
 		
 		logAddress = syslogAddress;
-		logSocket = new DatagramSocket();
+		logHost = syslogHost;
 		logPort = DEFAULT_UDP_PORT;
+		started = !lazy;
+		if(lazy)
+			return;
+		
+		logSocket = new DatagramSocket();
+		
+		//Starts looking up the local host name in the background.
+		MUtils.getLocalHostName();
+	}
+	
+	/**
+	 * Same as {@link #MSysLogger(String, int, InetAddress)}, but the syslog server is given by name.
+	 * The name is looked up once here, then kept in the host cache of {@link MUtils}, which looks it up again
+	 * in the background when the cache entry expires.  So the logger follows DNS changes of the server.
+	 * 
+	 * @param appName Application Name.
+	 * @param facNumber Facility Number.
+	 * @param syslogHost The host name or IP address of the syslog server.
+	 * @throws SocketException When the socket cannot be opened.
+	 * @throws UnknownHostException When the server name cannot be found.
+	 */
+	public MSysLogger(String appName, int facNumber, String syslogHost) throws SocketException, UnknownHostException {
+		this(appName, facNumber, MUtils.resolveAddress(syslogHost), syslogHost, false);
+	}
+	
+	/**
+	 * Same as {@link #MSysLogger(String, int, String)}, but a lazy logger doesn't open the socket, look up the server
+	 * or start the writer thread of {@link #setAsynchronous(boolean)} until the first record.
+	 * Nothing is thrown then, if the socket can't be opened or the server can't be found the record goes
+	 * to the fallback and it is tried again later, see {@link #setFallbackAppender(LogAppender)}.
+	 * 
+	 * @param appName Application Name.
+	 * @param facNumber Facility Number.
+	 * @param syslogHost The host name or IP address of the syslog server.
+	 * @return
+	 */
+	public static MSysLogger lazy(String appName, int facNumber, String syslogHost) {
+		try {
+			return new MSysLogger(appName, facNumber, null, syslogHost, true);
+		} catch(SocketException e) {
+			//A lazy logger doesn't open anything here.
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Same as {@link #lazy(String, int, String)}, with the address of the server.
+	 * 
+	 * @param appName Application Name.
+	 * @param facNumber Facility Number.
+	 * @param syslogAddress The address of the syslog server.
+	 * @return
+	 */
+	public static MSysLogger lazy(String appName, int facNumber, InetAddress syslogAddress) {
+		try {
+			return new MSysLogger(appName, facNumber, syslogAddress, null, true);
+		} catch(SocketException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Opens the socket of a lazy logger and picks up the cached address of the server.  Callers must hold the lock on this object.
+	 * The server is never looked up here, a host that is not known yet is looked up in the background
+	 * and counts as a failed send until then.
+	 * @return False if either failed.
+	 */
+	private boolean openSocket() {
+		try {
+			if(logSocket == null) {
+				logSocket = new DatagramSocket();
+				MUtils.getLocalHostName();
+			}
+		} catch(IOException e) {
+			guard.failed("Cannot open UDP socket", e);
+			return false;
+		}
+		
+		if(logHost != null) {
+			//Keeps the last known address while a lookup has not found one.
+			InetAddress address = MUtils.getCachedAddress(logHost);
+			if(address != null)
+				logAddress = address;
+		}
+		if(logAddress == null) {
+			guard.failed("Cannot find syslog server " + logHost, null);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Starts the writer thread of a lazy logger, if it was asked for, on the first record.
+	 */
+	private void start() {
+		synchronized(writerLock) {
+			if(started || closed)
+				return;
+			started = true;
+			if(deferredQueueCapacity > 0)
+				startWriter(deferredQueueCapacity);
+		}
 	}
 	
 	/**
@@ -98,10 +238,222 @@ public class MSysLogger {
 	}
 	
 	/**
-	 * Not yet implemented.
+	 * Writes the timestamps in the default time zone of the system instead of UTC.
+	 * See {@link #setTimeZone(ZoneId)}.
 	 */
 	public void setTimeZone() {
-		
+		setTimeZone(ZoneId.systemDefault());
+	}
+	
+	/**
+	 * Sets the time zone of the timestamps in the syslog messages.  The default is UTC.
+	 * Timestamps carry the offset of the zone, such as "2024-03-10T14:05:09.123456-04:00",
+	 * and "Z" while the offset is zero, as RFC 5424 allows for the TIMESTAMP field.
+	 * The offset is cached until the next daylight saving transition.
+	 * Pass null for UTC.
+	 * @param zone
+	 */
+	public synchronized void setTimeZone(ZoneId zone) {
+		if(zone == null || zone.equals(ZoneOffset.UTC))
+			encoder.setTimestampRenderer(null);
+		else
+			encoder.setTimestampRenderer(new TimestampRenderer(zone));
+		timeZone = zone == null ? ZoneOffset.UTC : zone;
+	}
+	
+	/**
+	 * Returns the time zone of the timestamps.
+	 * @return
+	 */
+	public synchronized ZoneId getTimeZone() {
+		return timeZone;
+	}
+	
+	/**
+	 * Sets the layout of the MSG part of the syslog messages.
+	 * With {@link LogLayout#JSON} the MSG part is a JSON object holding the timestamp, severity,
+	 * facility, app, pid, msgid, the {@link LogContext} fields and the message.
+	 * The default is {@link LogLayout#TEXT}.
+	 * @param layout
+	 */
+	public synchronized void setLayout(int layout) {
+		LogLayout.checkForValidLayout(layout);
+		this.layout = layout;
+	}
+	
+	/**
+	 * Sets how long a stack trace that was sent in full suppresses later copies of the same trace.
+	 * Repeats inside the window only reference the fingerprint of the first one.
+	 * The default is 60 seconds.  Pass 0 to send every stack trace in full.
+	 * @param millis
+	 */
+	public synchronized void setStackTraceWindow(long millis) {
+		throwableRenderer.setWindow(millis);
+	}
+	
+	/**
+	 * Turns the asynchronous mode on or off, with a queue of 8192 records.
+	 * See {@link #setAsynchronous(boolean, int)}.
+	 * @param async
+	 */
+	public void setAsynchronous(boolean async) {
+		setAsynchronous(async, LogWriterThread.DEFAULT_QUEUE_CAPACITY);
+	}
+	
+	/**
+	 * Turns the asynchronous mode on or off.
+	 * In asynchronous mode the log methods only put the record on a queue, a background thread
+	 * formats the records (including stack traces) and sends them.
+	 * If the queue is full the record is dropped, see {@link #getDroppedCount()}.
+	 * Turning it off sends everything that is still queued before returning.
+	 * @param async
+	 * @param queueCapacity The maximum number of records waiting to be sent.
+	 */
+	public void setAsynchronous(boolean async, int queueCapacity) {
+		synchronized(writerLock) {
+			if(closed)
+				return;
+			
+			if(!started) {
+				deferredQueueCapacity = async ? queueCapacity : 0;
+				return;
+			}
+			
+			if(writer != null) {
+				LogWriterThread old = writer;
+				writer = null;
+				old.shutdown();
+			}
+			
+			if(async)
+				startWriter(queueCapacity);
+		}
+	}
+	
+	/**
+	 * Starts a writer thread.  Callers must hold writerLock.
+	 */
+	private void startWriter(int queueCapacity) {
+		LogWriterThread w = new LogWriterThread("MSysLogger writer", new LogWriterThread.RecordSink() {
+			@Override
+			public void write(LogRecord record) {
+				boolean sent;
+				synchronized(MSysLogger.this) {
+					sent = sendRecord(record.epochMicros, record.severity, record.processID, record.msgID, record.context, record.message, record.thrown);
+				}
+				if(!sent)
+					fallBack(record);
+			}
+			
+			@Override
+			public void flush() {
+				//Every datagram is sent as soon as it is encoded.
+			}
+		}, queueCapacity);
+		w.setPrioritySeverity(prioritySeverity);
+		w.setPriorityFlush(priorityFlush);
+		w.start();
+		writer = w;
+	}
+	
+	/**
+	 * Sets the severity at or above which records go on the priority lane in asynchronous mode.
+	 * The writer thread services the priority lane before the next record of the bulk lane, so an
+	 * urgent record doesn't wait behind a backlog of less severe ones.  Priority records can be
+	 * sent ahead of older bulk records.
+	 * The default is {@link LogSeverity#CRITICAL}, which covers EMERGENCY, ALERT and CRITICAL.
+	 * Will throw an {@link IllegalArgumentException} if the severity isn't valid (0 - 7).
+	 * @param severity
+	 */
+	public void setPrioritySeverity(int severity) {
+		LogSeverity.checkForValidSeverity(severity);
+		synchronized(writerLock) {
+			prioritySeverity = severity;
+			if(writer != null)
+				writer.setPrioritySeverity(severity);
+		}
+	}
+	
+	/**
+	 * Sets if the writer thread should stop and send right after every record on the priority lane.
+	 * Every datagram is sent as soon as it is encoded anyway, so this only matters for the ordering
+	 * inside a batch.  The default is true.  Only used in asynchronous mode.
+	 * @param flush
+	 */
+	public void setPriorityFlush(boolean flush) {
+		synchronized(writerLock) {
+			priorityFlush = flush;
+			if(writer != null)
+				writer.setPriorityFlush(flush);
+		}
+	}
+	
+	/**
+	 * Sets where records go while they can't be sent, such as a {@link MFileLogger} or a {@link MFlightRecorder}.
+	 * Pass null to drop them, the default.  UDP only fails when the network is down or the server is unreachable
+	 * on the local network, a server that is down further away goes unnoticed.
+	 * See {@link MFileLogger#setFallbackAppender(LogAppender)} for how the logger backs off and recovers.
+	 * @param appender
+	 */
+	public void setFallbackAppender(LogAppender appender) {
+		fallback = appender;
+	}
+	
+	/**
+	 * Sets the sampler that decides which records the log methods keep when there are more than the syslog server can take,
+	 * and reports how many it left out.  Pass null to keep every record, the default.
+	 * Records handed to {@link #append(LogRecord)} are never sampled.  Don't share a sampler between loggers,
+	 * its adaptive mode follows the load of the logger it belongs to.
+	 * @param sampler
+	 */
+	public void setSampler(LogSampler sampler) {
+		this.sampler = sampler;
+	}
+	
+	/**
+	 * Returns the sampler, null if there is none.
+	 * @return
+	 */
+	public LogSampler getSampler() {
+		return sampler;
+	}
+	
+	/**
+	 * Returns true while records can't be sent and go to the fallback.
+	 * @return
+	 */
+	public boolean isDegraded() {
+		return guard.isDegraded();
+	}
+	
+	/**
+	 * Returns the number of records that couldn't be sent, and went to the fallback or were lost.
+	 * @return
+	 */
+	public long getFailedCount() {
+		return guard.getFailedRecordCount();
+	}
+	
+	/**
+	 * Returns the number of records dropped in asynchronous mode because the queue was full.
+	 * @return
+	 */
+	public long getDroppedCount() {
+		LogWriterThread w = writer;
+		if(w == null)
+			return 0;
+		return w.getDroppedCount();
+	}
+	
+	/**
+	 * Returns the number of records waiting in the asynchronous queue, 0 in synchronous mode.
+	 * @return
+	 */
+	public int getQueueSize() {
+		LogWriterThread w = writer;
+		if(w == null)
+			return 0;
+		return w.getQueueSize();
 	}
 	
 	/**
@@ -153,63 +505,271 @@ public class MSysLogger {
 	 * @param msgID
 	 */
 	public void log(String logMessage, int severity, String processID, String msgID) {
+		log(logMessage, severity, processID, msgID, null);
+	}
+	
+	/**
+	 * Writes a log message with an exception.
+	 * Assigns the message a severity level of "Error" (3) by default.
+	 * Assigns the NILVALUE for the process ID by default.
+	 * Assigns the NILVALUE for the message ID by default.
+	 * See {@link #log(String, int, String, String, Throwable)}.
+	 * @param logMessage
+	 * @param thrown
+	 */
+	public void log(String logMessage, Throwable thrown) {
+		log(logMessage, LogSeverity.ERROR, "-", "-", thrown);
+	}
+	
+	/**
+	 * Writes a log message with an exception.
+	 * Allows for the assigning of a severity level.
+	 * Assigns the NILVALUE for the process ID by default.
+	 * Assigns the NILVALUE for the message ID by default.
+	 * See {@link #log(String, int, String, String, Throwable)}.
+	 * @param logMessage
+	 * @param severity
+	 * @param thrown
+	 */
+	public void log(String logMessage, int severity, Throwable thrown) {
+		log(logMessage, severity, "-", "-", thrown);
+	}
+	
+	/**
+	 * Writes a log message with an exception.
+	 * Allows for the assigning of a severity level.
+	 * Allows for the assigning of a process ID.
+	 * Assigns the NILVALUE for the message ID by default.
+	 * See {@link #log(String, int, String, String, Throwable)}.
+	 * @param logMessage
+	 * @param severity
+	 * @param processID
+	 * @param thrown
+	 */
+	public void log(String logMessage, int severity, String processID, Throwable thrown) {
+		log(logMessage, severity, processID, "-", thrown);
+	}
+	
+	/**
+	 * Writes a log message with an exception.
+	 * The stack trace is rendered into the MSG part by whichever thread sends the message, which is the
+	 * background thread in asynchronous mode.  The first occurrence of a stack trace is sent
+	 * in full along with its fingerprint, identical traces inside the window set with
+	 * {@link #setStackTraceWindow(long)} only reference the fingerprint.
+	 * Messages that don't fit in a single datagram are cut off.
+	 * 
+	 * @param logMessage
+	 * @param severity
+	 * @param processID
+	 * @param msgID
+	 * @param thrown May be null.
+	 */
+	public void log(String logMessage, int severity, String processID, String msgID, Throwable thrown) {
 		
 		//Does nothing if severity is legal.
 		LogSeverity.checkForValidSeverity(severity);
 		
-		byte[] message = createLogStatement(logMessage, severity, processID, msgID).getBytes();
-		DatagramPacket logPacket = new DatagramPacket(message, message.length, logAddress, logPort);
+		if(closed)
+			return;
 		
-		try {
-			logSocket.send(logPacket);
-		} catch (IOException e) {
-			System.err.println("Unable to send UDP log message to syslog server!!!");
-			e.printStackTrace();
+		LogSampler s = sampler;
+		if(s != null) {
+			String report = s.takeReport(false);
+			if(report != null)
+				submit(report, LogSeverity.NOTICE, "0", LogSampler.REPORT_MSG_ID, null, null, true);
+			if(!s.sample(severity, writer))
+				return;
+		}
+		submit(logMessage, severity, processID, msgID, thrown, s, false);
+	}
+	
+	/**
+	 * Writes or queues a record that made it past the sampler.
+	 * @param s The sampler to tell how long a synchronous write took, may be null.
+	 * @param report True for the sampler's reports, which go on the priority lane so a full queue doesn't lose them.
+	 */
+	private void submit(String logMessage, int severity, String processID, String msgID, Throwable thrown, LogSampler s, boolean report) {
+		if(!started)
+			start();
+		
+		long epochMicros = LogRecord.currentEpochMicros();
+		LogWriterThread w = writer;
+		boolean tapped = MLog.isTapped(this);
+		if(w != null || tapped) {
+			LogRecord record = new LogRecord(epochMicros, severity, processID, msgID, logMessage, thrown, LogContext.snapshot());
+			if(tapped)
+				MLog.publish(record);
+			if(w != null) {
+				if(report)
+					w.enqueue(record, true);
+				else
+					w.enqueue(record);
+				return;
+			}
+		}
+		
+		boolean sent;
+		synchronized(this) {
+			if(closed)
+				return;
+			long writeStart = s != null ? System.nanoTime() : 0;
+			sent = sendRecord(epochMicros, severity, processID, msgID, LogContext.current(), logMessage, thrown);
+			if(s != null)
+				s.writeTook(System.nanoTime() - writeStart);
 		}
+		if(!sent)
+			fallBack(new LogRecord(epochMicros, severity, processID, msgID, logMessage, thrown, LogContext.snapshot()));
+	}
+
+	/**
+	 * Sends a record that was created elsewhere, such as one dumped by a {@link MFlightRecorder}.
+	 * The record keeps its own timestamp.
+	 * In asynchronous mode the record is queued like any other.
+	 * @param record
+	 */
+	@Override
+	public void append(LogRecord record) {
+		if(closed)
+			return;
+		if(!started)
+			start();
+		
+		LogWriterThread w = writer;
+		if(w != null) {
+			w.enqueue(record);
+			return;
+		}
+		
+		boolean sent;
+		synchronized(this) {
+			if(closed)
+				return;
+			sent = sendRecord(record.epochMicros, record.severity, record.processID, record.msgID, record.context, record.message, record.thrown);
+		}
+		if(!sent)
+			fallBack(record);
 	}
 
 	/**
 	 * Closes the UDP socket.
+	 * In asynchronous mode everything that is still queued is sent first.
 	 */
 	public void close() {
-		logSocket.close();
+		close(Long.MAX_VALUE);
 	}
 	
-	private String createLogStatement(String logMessage, int severity, String processID, String msgID) {
+	/**
+	 * Stops accepting records, sends what is still queued until the timeout runs out,
+	 * then closes the UDP socket.  Records still queued after the timeout are abandoned.
+	 * Any log calls after this are ignored.
+	 * @param timeoutMillis
+	 * @return How many queued records were sent and how many were abandoned.
+	 */
+	public ShutdownReport close(long timeoutMillis) {
+		ShutdownReport report = new ShutdownReport(0, 0);
 		
-		String pri = "<" + ((facilityNumber * 8) + severity) + ">";
-		String version = "1";
-		String timeStamp = java.time.Clock.systemUTC().instant().truncatedTo(ChronoUnit.MICROS).toString();
-		//Defaults to the NILVALUE if we can't grab the FQDN, host name, or IP address for some reason.
-		String hostName = "-";
-		//We don't support structured data at this time.
-		String structuredData = "-";
+		//The counts since the last report go out with the rest of the queue.
+		LogSampler s = sampler;
+		if(s != null && !closed) {
+			String last = s.takeReport(true);
+			if(last != null)
+				submit(last, LogSeverity.NOTICE, "0", LogSampler.REPORT_MSG_ID, null, null, true);
+		}
+		
+		synchronized(writerLock) {
+			if(closed)
+				return report;
+			closed = true;
+			
+			if(writer != null) {
+				LogWriterThread old = writer;
+				writer = null;
+				report = old.shutdown(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+			}
+		}
+		
+		synchronized(this) {
+			if(logSocket != null)
+				logSocket.close();
+		}
+		
+		return report;
+	}
+	
+	/**
+	 * Encodes and sends a single message.  Callers must hold the lock on this object.
+	 * @return False if the record has to go to the fallback, which callers do after letting go of the lock.
+	 */
+	private boolean sendRecord(long epochMicros, int severity, String processID, String msgID, LogContext context, String logMessage, Throwable thrown) {
+		if(!guard.canAttempt() || !openSocket())
+			return false;
+		
+		encoder.reset();
+		createLogStatement(epochMicros, logMessage, severity, processID, msgID, context, thrown);
+		encoder.truncate(MAX_DATAGRAM_SIZE);
+		logPacket.setData(encoder.getBuffer(), 0, encoder.size());
+		logPacket.setAddress(logAddress);
+		logPacket.setPort(logPort);
 		
-		//Attempts to get the hostname.
-		//If that fails, it should try to get the local IP address.
-		//If that also fails, then we are stuck with the NILVALUE.
 		try {
-			hostName = InetAddress.getLocalHost().getHostName();
-		} catch (UnknownHostException e1) {
-			//we are stuck with the NILVALUE at this point.
+			logSocket.send(logPacket);
+			guard.succeeded();
+		} catch (IOException e) {
+			guard.failed("Unable to send UDP log message to syslog server", e);
+			return false;
 		}
+		return true;
+	}
+	
+	/**
+	 * Hands a record that couldn't be sent to the fallback appender, if there is one.
+	 * Never called with the lock on this object held, the fallback can be a {@link MFlightRecorder} that dumps back into this logger.
+	 */
+	private void fallBack(LogRecord record) {
+		guard.recordFailed();
+		LogAppender appender = fallback;
+		if(appender != null)
+			appender.append(record);
+	}
+	
+	/**
+	 * Encodes the syslog message into the encoder.
+	 */
+	private void createLogStatement(long epochMicros, String logMessage, int severity, String processID, String msgID, LogContext context, Throwable thrown) {
+		
+		//The NILVALUE until the host name has been looked up, or if it can't be found.
+		String hostName = MUtils.getLocalHostName();
 		
-		String statement = pri;
-		statement += version; 
-		statement += " " + timeStamp;
-		statement += " " + hostName;
-		statement += " " + applicationName;
-		statement += " " + processID;
+		//PRI and version
+		encoder.writeByte('<');
+		encoder.writeDecimal((facilityNumber * 8) + severity);
+		encoder.writeAscii(">1 ");
+		encoder.writeTimestamp(epochMicros);
+		encoder.writeByte(' ');
+		encoder.writeUtf8(hostName);
+		encoder.writeByte(' ');
+		encoder.writeUtf8(applicationName);
+		encoder.writeByte(' ');
+		encoder.writeUtf8(String.valueOf(processID));
 		
 		//Checking for the NILVALUE.  We have to remove or add the "ID" depending on if it's a NILVALUE or not.
-		if(msgID.matches("-"))
-			statement += " -";
-		else
-			statement += " ID" + msgID;
+		//A null message ID is sent as the NILVALUE too.
+		if(msgID == null || "-".equals(msgID)) {
+			encoder.writeAscii(" -");
+		} else {
+			encoder.writeAscii(" ID");
+			encoder.writeUtf8(msgID);
+		}
 		
-		statement += " " + structuredData;
-		statement += " " + logMessage;
+		//We don't support structured data at this time.
+		encoder.writeAscii(" - ");
 		
-		return statement;
+		if(layout == LogLayout.JSON) {
+			encoder.writeJsonRecord(epochMicros, severity, facilityNumber, applicationName, processID, msgID, context, logMessage, thrown, throwableRenderer);
+		} else {
+			encoder.writeUtf8(String.valueOf(logMessage));
+			if(thrown != null)
+				throwableRenderer.writeText(encoder, thrown, epochMicros);
+		}
 	}
 }
@@ -0,0 +1,224 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts messages by their shape for {@link LogAnalyzer}, with every run of digits replaced by '#',
+ * so "request 1234 took 5ms" and "request 99 took 12ms" are the same message.
+ * The messages are kept as bytes in an open addressing table, a message that was seen before costs no allocation.
+ * <p>
+ * The table stops taking new messages at its limit.  Records of messages that didn't fit are only counted as other.
+ * Every task of the analyzer has its own table, and the tables are merged with {@link #addAll(MessageCounter)}
+ * under the same limit, so with more distinct messages than the limit a message can have fit in one task's table
+ * and not in another's.  Its count is then too low, and a message that first shows up late can be missing altogether.
+ * Below the limit every count is exact.  Not thread safe.
+ * @author Noah
+ *
+ */
+final class MessageCounter {
+	
+	//Longer messages are counted by their start.
+	static final int MAX_KEY_LENGTH = 200;
+	
+	private final int limit;
+	private byte[][] keys;
+	private int[] hashes;
+	private long[] counts;
+	private int size;
+	private long otherCount;
+	
+	private final byte[] scratch = new byte[MAX_KEY_LENGTH];
+	
+	MessageCounter(int limit) {
+		this.limit = limit;
+		int capacity = 64;
+		keys = new byte[capacity][];
+		hashes = new int[capacity];
+		counts = new long[capacity];
+	}
+	
+	/**
+	 * Counts the message in the given bytes, UTF-8, once.
+	 * @param source
+	 * @param start
+	 * @param end
+	 */
+	void add(byte[] source, int start, int end) {
+		int length = 0;
+		boolean inDigits = false;
+		for(int i = start; i < end && length < MAX_KEY_LENGTH; i++) {
+			byte b = source[i];
+			if(b >= '0' && b <= '9') {
+				if(!inDigits)
+					scratch[length++] = '#';
+				inDigits = true;
+			} else {
+				scratch[length++] = b;
+				inDigits = false;
+			}
+		}
+		
+		//Doesn't cut a character in half.
+		if(length == MAX_KEY_LENGTH) {
+			while(length > 0 && (scratch[length - 1] & 0xC0) == 0x80)
+				length--;
+			if(length > 0 && (scratch[length - 1] & 0x80) != 0)
+				length--;
+		}
+		
+		increment(scratch, length, 1);
+	}
+	
+	private void increment(byte[] key, int length, long count) {
+		int hash = 1;
+		for(int i = 0; i < length; i++) {
+			hash = 31 * hash + key[i];
+		}
+		hash ^= hash >>> 16;
+		
+		int mask = keys.length - 1;
+		int slot = hash & mask;
+		while(keys[slot] != null) {
+			if(hashes[slot] == hash && equals(keys[slot], key, length)) {
+				counts[slot] += count;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		
+		if(size >= limit) {
+			otherCount += count;
+			return;
+		}
+		
+		keys[slot] = Arrays.copyOf(key, length);
+		hashes[slot] = hash;
+		counts[slot] = count;
+		size++;
+		if(size * 2 > keys.length)
+			grow();
+	}
+	
+	private static boolean equals(byte[] stored, byte[] key, int length) {
+		if(stored.length != length)
+			return false;
+		for(int i = 0; i < length; i++) {
+			if(stored[i] != key[i])
+				return false;
+		}
+		return true;
+	}
+	
+	private void grow() {
+		byte[][] oldKeys = keys;
+		int[] oldHashes = hashes;
+		long[] oldCounts = counts;
+		
+		int capacity = oldKeys.length * 2;
+		keys = new byte[capacity][];
+		hashes = new int[capacity];
+		counts = new long[capacity];
+		int mask = capacity - 1;
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] == null)
+				continue;
+			int slot = oldHashes[i] & mask;
+			while(keys[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = oldKeys[i];
+			hashes[slot] = oldHashes[i];
+			counts[slot] = oldCounts[i];
+		}
+	}
+	
+	/**
+	 * Adds the counts of another counter to this one.
+	 * @param other
+	 */
+	void addAll(MessageCounter other) {
+		for(int i = 0; i < other.keys.length; i++) {
+			if(other.keys[i] != null)
+				increment(other.keys[i], other.keys[i].length, other.counts[i]);
+		}
+		otherCount += other.otherCount;
+	}
+	
+	/**
+	 * Returns the number of records whose message didn't fit in the table.
+	 * @return
+	 */
+	long getOtherCount() {
+		return otherCount;
+	}
+	
+	/**
+	 * Returns the number of distinct messages.
+	 * @return
+	 */
+	int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns the most frequent messages, most frequent first.
+	 * @param count
+	 * @return
+	 */
+	List<Map.Entry<String, Long>> top(int count) {
+		Integer[] slots = new Integer[size];
+		int n = 0;
+		for(int i = 0; i < keys.length; i++) {
+			if(keys[i] != null)
+				slots[n++] = i;
+		}
+		Arrays.sort(slots, (a, b) -> Long.compare(counts[b], counts[a]));
+		
+		List<Map.Entry<String, Long>> top = new ArrayList<Map.Entry<String, Long>>();
+		for(int i = 0; i < Math.min(count, n); i++) {
+			int slot = slots[i];
+			top.add(new AbstractMap.SimpleImmutableEntry<String, Long>(new String(keys[slot], StandardCharsets.UTF_8), counts[slot]));
+		}
+		return top;
+	}
+}
@@ -0,0 +1,410 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.util.Arrays;
+
+import mtools.MUtils;
+import mtools.TimestampRenderer;
+
+/**
+ * A reusable byte buffer that log records are encoded straight into.
+ * Strings are escaped and UTF-8 encoded character by character, so no intermediate
+ * strings or byte arrays are created while a record is encoded.
+ * Not thread safe, each logger owns its own encoder.
+ * @author Noah
+ *
+ */
+final class RecordEncoder {
+	
+	private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+	
+	private byte[] buf;
+	private int count;
+	//null for UTC.
+	private TimestampRenderer timestamps;
+	
+	RecordEncoder() {
+		this(512);
+	}
+	
+	RecordEncoder(int initialCapacity) {
+		buf = new byte[initialCapacity];
+		count = 0;
+	}
+	
+	/**
+	 * Empties the buffer.  The backing array is kept.
+	 */
+	void reset() {
+		count = 0;
+	}
+	
+	/**
+	 * Returns the backing array.  Only the first {@link #size()} bytes are valid.
+	 * @return
+	 */
+	byte[] getBuffer() {
+		return buf;
+	}
+	
+	/**
+	 * Returns the amount of encoded bytes.
+	 * @return
+	 */
+	int size() {
+		return count;
+	}
+	
+	/**
+	 * Cuts the buffer back to the passed length.
+	 * @param length
+	 */
+	void truncate(int length) {
+		if(length < count)
+			count = length;
+	}
+	
+	private void ensureCapacity(int extra) {
+		if(count + extra > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+	}
+	
+	void writeByte(int b) {
+		ensureCapacity(1);
+		buf[count++] = (byte) b;
+	}
+	
+	void writeBytes(byte[] bytes, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(bytes, offset, buf, count, length);
+		count += length;
+	}
+	
+	/**
+	 * Writes a big endian int.
+	 * @param value
+	 */
+	void writeInt(int value) {
+		ensureCapacity(4);
+		setInt(count, value);
+		count += 4;
+	}
+	
+	/**
+	 * Overwrites four already written bytes with a big endian int.
+	 * @param position
+	 * @param value
+	 */
+	void setInt(int position, int value) {
+		buf[position] = (byte) (value >>> 24);
+		buf[position + 1] = (byte) (value >>> 16);
+		buf[position + 2] = (byte) (value >>> 8);
+		buf[position + 3] = (byte) value;
+	}
+	
+	/**
+	 * Writes a big endian long.
+	 * @param value
+	 */
+	void writeLong(long value) {
+		writeInt((int) (value >>> 32));
+		writeInt((int) value);
+	}
+	
+	/**
+	 * Writes a string that is known to only contain US-ASCII characters.
+	 * @param s
+	 */
+	void writeAscii(String s) {
+		int length = s.length();
+		ensureCapacity(length);
+		for(int i = 0; i < length; i++) {
+			buf[count++] = (byte) s.charAt(i);
+		}
+	}
+	
+	/**
+	 * Writes a string as UTF-8.  Unpaired surrogates are written as '?'.
+	 * @param s
+	 */
+	void writeUtf8(String s) {
+		int length = s.length();
+		ensureCapacity(length * 3);
+		for(int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) {
+				buf[count++] = (byte) c;
+			} else {
+				i = writeUtf8Char(s, i, c);
+			}
+		}
+	}
+	
+	/**
+	 * Writes a string as a quoted and escaped JSON string.
+	 * A null string is written as the JSON null literal.
+	 * @param s
+	 */
+	void writeJsonString(String s) {
+		if(s == null) {
+			writeAscii("null");
+			return;
+		}
+		
+		writeByte('"');
+		writeJsonEscaped(s);
+		writeByte('"');
+	}
+	
+	/**
+	 * Writes the escaped contents of a JSON string without the surrounding quotes.
+	 * @param s
+	 */
+	void writeJsonEscaped(String s) {
+		int length = s.length();
+		//Worst case is a control character written as a six byte unicode escape.
+		ensureCapacity(length * 6);
+		for(int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if(c >= 0x20 && c < 0x80) {
+				if(c == '"' || c == '\\')
+					buf[count++] = '\\';
+				buf[count++] = (byte) c;
+			} else if(c < 0x20) {
+				buf[count++] = '\\';
+				switch(c) {
+				case '\n':
+					buf[count++] = 'n';
+					break;
+				case '\r':
+					buf[count++] = 'r';
+					break;
+				case '\t':
+					buf[count++] = 't';
+					break;
+				case '\b':
+					buf[count++] = 'b';
+					break;
+				case '\f':
+					buf[count++] = 'f';
+					break;
+				default:
+					buf[count++] = 'u';
+					buf[count++] = '0';
+					buf[count++] = '0';
+					buf[count++] = HEX[c >> 4];
+					buf[count++] = HEX[c & 0xF];
+				}
+			} else {
+				i = writeUtf8Char(s, i, c);
+			}
+		}
+	}
+	
+	/**
+	 * Writes a single non ASCII character, or a surrogate pair, as UTF-8.
+	 * The caller must have reserved at least 3 bytes per remaining character.
+	 * Returns the index of the last character consumed.
+	 */
+	private int writeUtf8Char(String s, int i, char c) {
+		if(c < 0x800) {
+			buf[count++] = (byte) (0xC0 | (c >> 6));
+			buf[count++] = (byte) (0x80 | (c & 0x3F));
+		} else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+			int codePoint = Character.toCodePoint(c, s.charAt(++i));
+			buf[count++] = (byte) (0xF0 | (codePoint >> 18));
+			buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+			buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+			buf[count++] = (byte) (0x80 | (codePoint & 0x3F));
+		} else if(Character.isSurrogate(c)) {
+			buf[count++] = '?';
+		} else {
+			buf[count++] = (byte) (0xE0 | (c >> 12));
+			buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buf[count++] = (byte) (0x80 | (c & 0x3F));
+		}
+		return i;
+	}
+	
+	/**
+	 * Writes a decimal number.
+	 * @param value
+	 */
+	void writeDecimal(long value) {
+		if(value == Long.MIN_VALUE) {
+			writeAscii("-9223372036854775808");
+			return;
+		}
+		
+		ensureCapacity(20);
+		if(value < 0) {
+			buf[count++] = '-';
+			value = -value;
+		}
+		
+		int start = count;
+		do {
+			buf[count++] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while(value != 0);
+		
+		//Digits were written backwards.
+		for(int i = start, j = count - 1; i < j; i++, j--) {
+			byte tmp = buf[i];
+			buf[i] = buf[j];
+			buf[j] = tmp;
+		}
+	}
+	
+	/**
+	 * Writes a number as 16 lower case hex digits.
+	 * @param value
+	 */
+	void writeHex(long value) {
+		ensureCapacity(16);
+		for(int shift = 60; shift >= 0; shift -= 4) {
+			buf[count++] = HEX[(int) (value >>> shift) & 0xF];
+		}
+	}
+	
+	/**
+	 * Sets the time zone of the timestamps, null for UTC.
+	 * @param renderer
+	 */
+	void setTimestampRenderer(TimestampRenderer renderer) {
+		timestamps = renderer;
+	}
+	
+	/**
+	 * Writes a timestamp in the RFC 3339 / ISO-8601 form "yyyy-MM-ddTHH:mm:ss.SSSSSSZ", or with the offset
+	 * of the zone set with {@link #setTimestampRenderer(TimestampRenderer)}.
+	 * See {@link MUtils#writeTimestamp(long, byte[], int)}.
+	 * @param epochMicros Microseconds since the epoch.
+	 */
+	void writeTimestamp(long epochMicros) {
+		if(timestamps == null) {
+			ensureCapacity(MUtils.TIMESTAMP_LENGTH);
+			count = MUtils.writeTimestamp(epochMicros, buf, count);
+		} else {
+			ensureCapacity(TimestampRenderer.MAX_LENGTH);
+			count = timestamps.write(epochMicros, buf, count);
+		}
+	}
+	
+	/**
+	 * Writes the text layout of a record, "timestamp, Severity N, PID x, [MSGID y, ]message", without a trailing line break.
+	 * The MSGID part is left out for the NILVALUE ("-") and for null, a null PID or message is written as "null".
+	 * @param epochMicros
+	 * @param severity
+	 * @param processID
+	 * @param msgID
+	 * @param logMessage
+	 */
+	void writeTextRecord(long epochMicros, int severity, String processID, String msgID, String logMessage) {
+		writeTimestamp(epochMicros);
+		writeAscii(", Severity ");
+		writeDecimal(severity);
+		writeAscii(", PID ");
+		writeUtf8(String.valueOf(processID));
+		
+		//The message ID is only written when there is one.
+		if(msgID != null && !"-".equals(msgID)) {
+			writeAscii(", MSGID ");
+			writeUtf8(msgID);
+		}
+		
+		writeAscii(", ");
+		writeUtf8(String.valueOf(logMessage));
+	}
+	
+	/**
+	 * Writes a complete record as a single JSON object, without a trailing line break.
+	 * The NILVALUE ("-") and null are both written as JSON null for the app, pid and msgid fields.
+	 * 
+	 * @param epochMicros
+	 * @param severity
+	 * @param facility
+	 * @param appName
+	 * @param processID
+	 * @param msgID
+	 * @param context The context of the logging thread, may be null.
+	 * @param logMessage
+	 * @param thrown The exception attached to the record, may be null.
+	 * @param renderer Renders the exception.
+	 */
+	void writeJsonRecord(long epochMicros, int severity, int facility, String appName, String processID, String msgID, LogContext context, String logMessage,
+			Throwable thrown, ThrowableRenderer renderer) {
+		writeAscii("{\"timestamp\":\"");
+		writeTimestamp(epochMicros);
+		writeAscii("\",\"severity\":");
+		writeDecimal(severity);
+		writeAscii(",\"facility\":");
+		writeDecimal(facility);
+		writeAscii(",\"app\":");
+		writeJsonString(nilToNull(appName));
+		writeAscii(",\"pid\":");
+		writeJsonString(nilToNull(processID));
+		writeAscii(",\"msgid\":");
+		writeJsonString(nilToNull(msgID));
+		
+		if(context != null && context.size > 0) {
+			writeAscii(",\"context\":{");
+			for(int i = 0; i < context.size; i++) {
+				if(i > 0)
+					writeByte(',');
+				writeJsonString(context.keys[i]);
+				writeByte(':');
+				writeJsonString(context.values[i]);
+			}
+			writeByte('}');
+		}
+		
+		writeAscii(",\"message\":");
+		writeJsonString(logMessage);
+		
+		if(thrown != null)
+			renderer.writeJson(this, thrown, epochMicros);
+		
+		writeByte('}');
+	}
+	
+	private static String nilToNull(String s) {
+		if(s == null || s.equals("-"))
+			return null;
+		return s;
+	}
+}
@@ -0,0 +1,82 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+/**
+ * What happened to the queued records when a logger was closed.
+ * @author Noah
+ *
+ */
+public class ShutdownReport {
+	private long flushedCount;
+	private long abandonedCount;
+	
+	ShutdownReport(long flushed, long abandoned) {
+		flushedCount = flushed;
+		abandonedCount = abandoned;
+	}
+	
+	/**
+	 * Adds the counts of another report to this one.
+	 * @param other
+	 */
+	void add(ShutdownReport other) {
+		flushedCount += other.flushedCount;
+		abandonedCount += other.abandonedCount;
+	}
+	
+	/**
+	 * Returns the number of queued records that were written before the deadline.
+	 * @return
+	 */
+	public long getFlushedCount() {
+		return flushedCount;
+	}
+	
+	/**
+	 * Returns the number of records that were still queued when the deadline passed,
+	 * plus the ones that were logged after intake had stopped.
+	 * @return
+	 */
+	public long getAbandonedCount() {
+		return abandonedCount;
+	}
+	
+	@Override
+	public String toString() {
+		return flushedCount + " records flushed, " + abandonedCount + " abandoned";
+	}
+}
@@ -0,0 +1,211 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.time.LocalDate;
+
+/**
+ * Parses the first line of a record in the text layout of {@link MFileLogger},
+ * "2024-03-10T14:05:09.123456Z, Severity 3, PID 42, MSGID x, message", straight from the bytes.
+ * The MSGID is optional and the timestamp can have any offset.  After a successful {@link #parse(byte[], int, int)}
+ * the fields hold the timestamp, the severity and where the PID, MSGID and message are in the line.
+ * <p>
+ * The date of the last timestamp is cached, since neighbouring lines mostly share it.  Not thread safe.
+ * Used by {@link LogAnalyzer} and {@link LogForwarder}.
+ * @author Noah
+ *
+ */
+final class TextLineParser {
+	
+	private final byte[] lastDate = new byte[10];
+	private long lastEpochDay = Long.MIN_VALUE;
+	
+	long micros;
+	int severity;
+	int pidStart;
+	int pidEnd;
+	//-1 when there is no MSGID.
+	int msgIdStart;
+	int msgIdEnd;
+	int messageStart;
+	
+	//Set by parseTimestamp.
+	private int position;
+	
+	/**
+	 * Returns true for the lines that continue the record before them: stack trace lines.
+	 * @param buffer
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	static boolean isContinuation(byte[] buffer, int start, int end) {
+		return start < end && (buffer[start] == '\t' || startsWith(buffer, start, end, "Caused by: "));
+	}
+	
+	/**
+	 * Parses the line from start to end, without the line break.
+	 * @param buffer
+	 * @param start
+	 * @param end
+	 * @return False if the line doesn't start a record.
+	 */
+	boolean parse(byte[] buffer, int start, int end) {
+		if(!parseTimestamp(buffer, start, end) || !startsWith(buffer, position, end, ", Severity ") || position + 12 > end)
+			return false;
+		position += 11;
+		severity = buffer[position] - '0';
+		if(severity < 0 || severity > 7 || !startsWith(buffer, position + 1, end, ", PID "))
+			return false;
+		
+		pidStart = position + 7;
+		pidEnd = indexOfSeparator(buffer, pidStart, end);
+		messageStart = Math.min(end, pidEnd + 2);
+		msgIdStart = -1;
+		if(startsWith(buffer, messageStart, end, "MSGID ")) {
+			msgIdStart = messageStart + 6;
+			msgIdEnd = indexOfSeparator(buffer, msgIdStart, end);
+			messageStart = Math.min(end, msgIdEnd + 2);
+		}
+		return true;
+	}
+	
+	/**
+	 * Parses "yyyy-MM-ddTHH:mm:ss[.fraction]" followed by "Z" or "+hh:mm" into micros, leaving the position after it.
+	 */
+	private boolean parseTimestamp(byte[] buffer, int start, int end) {
+		if(end - start < 20 || buffer[start + 4] != '-' || buffer[start + 10] != 'T')
+			return false;
+		
+		boolean sameDate = lastEpochDay != Long.MIN_VALUE;
+		for(int i = 0; i < 10 && sameDate; i++) {
+			sameDate = buffer[start + i] == lastDate[i];
+		}
+		if(!sameDate) {
+			int year = digits(buffer, start, 4);
+			int month = digits(buffer, start + 5, 2);
+			int day = digits(buffer, start + 8, 2);
+			if(year < 0 || month < 0 || day < 0 || buffer[start + 7] != '-')
+				return false;
+			try {
+				lastEpochDay = LocalDate.of(year, month, day).toEpochDay();
+			} catch(RuntimeException e) {
+				lastEpochDay = Long.MIN_VALUE;
+				return false;
+			}
+			for(int i = 0; i < 10; i++) {
+				lastDate[i] = buffer[start + i];
+			}
+		}
+		
+		int hour = digits(buffer, start + 11, 2);
+		int minute = digits(buffer, start + 14, 2);
+		int second = digits(buffer, start + 17, 2);
+		if(hour < 0 || minute < 0 || second < 0 || buffer[start + 13] != ':' || buffer[start + 16] != ':')
+			return false;
+		
+		int p = start + 19;
+		long fraction = 0;
+		if(p < end && buffer[p] == '.') {
+			p++;
+			int scale = 0;
+			while(p < end && buffer[p] >= '0' && buffer[p] <= '9') {
+				if(scale < 6) {
+					fraction = fraction * 10 + (buffer[p] - '0');
+					scale++;
+				}
+				p++;
+			}
+			for(; scale < 6; scale++) {
+				fraction *= 10;
+			}
+		}
+		
+		int offsetSeconds = 0;
+		if(p >= end)
+			return false;
+		byte zone = buffer[p];
+		if(zone == 'Z') {
+			p++;
+		} else if(zone == '+' || zone == '-') {
+			int offsetHours = digits(buffer, p + 1, 2);
+			int offsetMinutes = p + 6 <= end && buffer[p + 3] == ':' ? digits(buffer, p + 4, 2) : -1;
+			if(offsetHours < 0 || offsetMinutes < 0)
+				return false;
+			offsetSeconds = (offsetHours * 3600 + offsetMinutes * 60) * (zone == '-' ? -1 : 1);
+			p += 6;
+		} else {
+			return false;
+		}
+		
+		long epochSecond = lastEpochDay * 86400 + hour * 3600 + minute * 60 + second - offsetSeconds;
+		micros = epochSecond * 1_000_000L + fraction;
+		position = p;
+		return true;
+	}
+	
+	private static int digits(byte[] buffer, int start, int count) {
+		int value = 0;
+		for(int i = 0; i < count; i++) {
+			int digit = buffer[start + i] - '0';
+			if(digit < 0 || digit > 9)
+				return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+	
+	private static boolean startsWith(byte[] buffer, int start, int end, String prefix) {
+		if(end - start < prefix.length())
+			return false;
+		for(int i = 0; i < prefix.length(); i++) {
+			if(buffer[start + i] != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the index of the next ", ", or the end.
+	 */
+	private static int indexOfSeparator(byte[] buffer, int start, int end) {
+		for(int i = start; i < end - 1; i++) {
+			if(buffer[i] == ',' && buffer[i + 1] == ' ')
+				return i;
+		}
+		return end;
+	}
+}
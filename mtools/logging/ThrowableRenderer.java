@@ -0,0 +1,276 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Renders exceptions into a {@link RecordEncoder} and deduplicates identical stack traces.
+ * Every trace is fingerprinted by hashing the exception classes and stack frames of the whole cause chain.
+ * The full trace is only written the first time a fingerprint is seen within the window,
+ * later records just reference the fingerprint.  The exception message is not part of the fingerprint,
+ * so it is always written.
+ * Not thread safe, each logger owns its own renderer and only uses it from the thread that writes.
+ * @author Noah
+ *
+ */
+final class ThrowableRenderer {
+	
+	static final long DEFAULT_WINDOW_MILLIS = 60_000;
+	
+	private static final int MAX_TRACKED_FINGERPRINTS = 4096;
+	private static final int MAX_CAUSE_DEPTH = 32;
+	
+	private final HashMap<Long, Long> lastFullTrace = new HashMap<Long, Long>();
+	private long windowMicros = DEFAULT_WINDOW_MILLIS * 1000;
+	
+	/**
+	 * Sets how long a full trace suppresses repeats of the same fingerprint.
+	 * 0 or less writes every trace in full.
+	 * @param millis
+	 */
+	void setWindow(long millis) {
+		windowMicros = millis * 1000;
+		lastFullTrace.clear();
+	}
+	
+	/**
+	 * Hashes the classes and frames of an exception and its causes.
+	 * @param thrown
+	 * @return
+	 */
+	static long fingerprint(Throwable thrown) {
+		//64 bit FNV-1a over the hash codes of the parts.
+		long hash = 0xcbf29ce484222325L;
+		int depth = 0;
+		for(Throwable t = thrown; t != null && depth < MAX_CAUSE_DEPTH; t = t.getCause(), depth++) {
+			hash = mix(hash, t.getClass().getName().hashCode());
+			for(StackTraceElement frame : t.getStackTrace()) {
+				hash = mix(hash, frame.getClassName().hashCode());
+				hash = mix(hash, frame.getMethodName().hashCode());
+				hash = mix(hash, frame.getLineNumber());
+			}
+		}
+		return hash;
+	}
+	
+	private static long mix(long hash, int value) {
+		hash ^= value;
+		hash *= 0x100000001b3L;
+		return hash;
+	}
+	
+	/**
+	 * Returns true if the trace with the passed fingerprint has to be written in full, and remembers that it was.
+	 */
+	private boolean claimFullTrace(long fingerprint, long epochMicros) {
+		if(windowMicros <= 0)
+			return true;
+		
+		Long last = lastFullTrace.get(fingerprint);
+		if(last != null && epochMicros - last < windowMicros)
+			return false;
+		
+		if(lastFullTrace.size() >= MAX_TRACKED_FINGERPRINTS) {
+			Iterator<Map.Entry<Long, Long>> it = lastFullTrace.entrySet().iterator();
+			while(it.hasNext()) {
+				if(epochMicros - it.next().getValue() >= windowMicros)
+					it.remove();
+			}
+			
+			//Everything is still inside the window, forget the lot rather than grow without bound.
+			if(lastFullTrace.size() >= MAX_TRACKED_FINGERPRINTS)
+				lastFullTrace.clear();
+		}
+		
+		lastFullTrace.put(fingerprint, epochMicros);
+		return true;
+	}
+	
+	/**
+	 * Appends the exception to a text record.
+	 * The first line gets ", type: message [trace fingerprint]", the stack frames follow on their own lines.
+	 * A repeated trace only gets ", type: message [trace fingerprint, repeated]".
+	 */
+	void writeText(RecordEncoder encoder, Throwable thrown, long epochMicros) {
+		long fingerprint = fingerprint(thrown);
+		boolean full = claimFullTrace(fingerprint, epochMicros);
+		
+		encoder.writeAscii(", ");
+		writeTextSummary(encoder, thrown);
+		encoder.writeAscii(" [trace ");
+		encoder.writeHex(fingerprint);
+		if(!full) {
+			encoder.writeAscii(", repeated]");
+			return;
+		}
+		encoder.writeByte(']');
+		
+		StackTraceElement[] enclosing = null;
+		IdentityHashMap<Throwable, Boolean> seen = new IdentityHashMap<Throwable, Boolean>();
+		int depth = 0;
+		for(Throwable t = thrown; t != null && depth < MAX_CAUSE_DEPTH && seen.put(t, Boolean.TRUE) == null; t = t.getCause(), depth++) {
+			if(t != thrown) {
+				encoder.writeAscii("\nCaused by: ");
+				writeTextSummary(encoder, t);
+			}
+			
+			StackTraceElement[] frames = t.getStackTrace();
+			int unique = uniqueFrames(frames, enclosing);
+			for(int i = 0; i < unique; i++) {
+				encoder.writeAscii("\n\tat ");
+				writeFrame(encoder, frames[i], false);
+			}
+			if(unique < frames.length) {
+				encoder.writeAscii("\n\t... ");
+				encoder.writeDecimal(frames.length - unique);
+				encoder.writeAscii(" more");
+			}
+			enclosing = frames;
+		}
+	}
+	
+	/**
+	 * Appends the exception to a JSON record as an "exception" object.
+	 * The "stack" field is only written with the full trace, a repeated trace gets "repeated":true instead.
+	 */
+	void writeJson(RecordEncoder encoder, Throwable thrown, long epochMicros) {
+		long fingerprint = fingerprint(thrown);
+		boolean full = claimFullTrace(fingerprint, epochMicros);
+		
+		encoder.writeAscii(",\"exception\":{\"type\":");
+		encoder.writeJsonString(thrown.getClass().getName());
+		encoder.writeAscii(",\"message\":");
+		encoder.writeJsonString(thrown.getMessage());
+		encoder.writeAscii(",\"fingerprint\":\"");
+		encoder.writeHex(fingerprint);
+		encoder.writeByte('"');
+		
+		if(!full) {
+			encoder.writeAscii(",\"repeated\":true}");
+			return;
+		}
+		
+		encoder.writeAscii(",\"stack\":\"");
+		StackTraceElement[] enclosing = null;
+		IdentityHashMap<Throwable, Boolean> seen = new IdentityHashMap<Throwable, Boolean>();
+		int depth = 0;
+		for(Throwable t = thrown; t != null && depth < MAX_CAUSE_DEPTH && seen.put(t, Boolean.TRUE) == null; t = t.getCause(), depth++) {
+			if(t != thrown) {
+				encoder.writeAscii("\\nCaused by: ");
+				encoder.writeJsonEscaped(t.getClass().getName());
+				if(t.getMessage() != null) {
+					encoder.writeAscii(": ");
+					encoder.writeJsonEscaped(t.getMessage());
+				}
+			}
+			
+			StackTraceElement[] frames = t.getStackTrace();
+			int unique = uniqueFrames(frames, enclosing);
+			for(int i = 0; i < unique; i++) {
+				if(i > 0 || t != thrown)
+					encoder.writeAscii("\\n");
+				encoder.writeAscii("at ");
+				writeFrame(encoder, frames[i], true);
+			}
+			if(unique < frames.length) {
+				encoder.writeAscii("\\n... ");
+				encoder.writeDecimal(frames.length - unique);
+				encoder.writeAscii(" more");
+			}
+			enclosing = frames;
+		}
+		encoder.writeAscii("\"}");
+	}
+	
+	private static void writeTextSummary(RecordEncoder encoder, Throwable t) {
+		encoder.writeUtf8(t.getClass().getName());
+		String message = t.getMessage();
+		if(message != null) {
+			encoder.writeAscii(": ");
+			encoder.writeUtf8(message);
+		}
+	}
+	
+	/**
+	 * Writes a frame the same way {@link StackTraceElement#toString()} does, without building the string.
+	 */
+	private static void writeFrame(RecordEncoder encoder, StackTraceElement frame, boolean json) {
+		writePart(encoder, frame.getClassName(), json);
+		encoder.writeByte('.');
+		writePart(encoder, frame.getMethodName(), json);
+		encoder.writeByte('(');
+		if(frame.isNativeMethod()) {
+			encoder.writeAscii("Native Method");
+		} else if(frame.getFileName() == null) {
+			encoder.writeAscii("Unknown Source");
+		} else {
+			writePart(encoder, frame.getFileName(), json);
+			if(frame.getLineNumber() >= 0) {
+				encoder.writeByte(':');
+				encoder.writeDecimal(frame.getLineNumber());
+			}
+		}
+		encoder.writeByte(')');
+	}
+	
+	private static void writePart(RecordEncoder encoder, String s, boolean json) {
+		if(json)
+			encoder.writeJsonEscaped(s);
+		else
+			encoder.writeUtf8(s);
+	}
+	
+	/**
+	 * Returns how many frames at the top of the trace are not shared with the enclosing trace,
+	 * the same way {@link Throwable#printStackTrace()} elides common frames with "... n more".
+	 */
+	private static int uniqueFrames(StackTraceElement[] frames, StackTraceElement[] enclosing) {
+		if(enclosing == null)
+			return frames.length;
+		
+		int m = frames.length - 1;
+		int n = enclosing.length - 1;
+		while(m >= 0 && n >= 0 && frames[m].equals(enclosing[n])) {
+			m--;
+			n--;
+		}
+		return m + 1;
+	}
+}
@@ -0,0 +1,128 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging.test;
+
+import java.io.File;
+
+import mtools.logging.LogSeverity;
+import mtools.logging.LogStatus;
+import mtools.logging.MFileLogger;
+import mtools.logging.MFlightRecorder;
+
+/**
+ * Checks that a {@link MFlightRecorder} can be the fallback of the logger it dumps to.
+ * The logger writes to a file that can't be opened, so every record the recorder dumps
+ * is handed straight back to it.  That used to recurse until the stack overflowed, or loop forever.
+ * Then one thread logs to the logger while another triggers dumps of the recorder, which used to
+ * deadlock with the two of them waiting for each other's lock.
+ * Exits with status 1 if anything goes wrong.
+ * @author Noah
+ *
+ */
+public class FlightRecorderFallbackTest {
+	
+	private static final int ROUNDS = 5000;
+	private static final long DEADLOCK_MILLIS = 20_000;
+	
+	public static void main(String[] args) throws Exception {
+		LogStatus.setOutput(null);
+		
+		File missing = new File(System.getProperty("java.io.tmpdir"), "no-such-dir-" + System.nanoTime());
+		MFileLogger logger = MFileLogger.lazy(new File(missing, "test.log").getPath());
+		final MFlightRecorder recorder = new MFlightRecorder(logger, 1 << 16, LogSeverity.ERROR);
+		logger.setFallbackAppender(recorder);
+		
+		boolean failed = !singleThread(logger, recorder) || !twoThreads(logger, recorder);
+		System.out.println(failed ? "FAILED" : "OK");
+		//Closing a deadlocked logger would hang as well.
+		if(failed)
+			System.exit(1);
+		logger.close();
+	}
+	
+	private static boolean singleThread(MFileLogger logger, MFlightRecorder recorder) {
+		boolean failed = false;
+		try {
+			for(int i = 0; i < 10; i++) {
+				logger.log("chatter " + i, LogSeverity.INFORMATION);
+			}
+			logger.log("the trigger", LogSeverity.CRITICAL);
+			recorder.dump();
+		} catch(StackOverflowError e) {
+			System.out.println("Stack overflow in the dump");
+			failed = true;
+		}
+		
+		//The records go round once and are kept for the next dump.
+		if(!failed && recorder.getRecordCount() != 11) {
+			System.out.println("Expected 11 records in the recorder, found " + recorder.getRecordCount());
+			failed = true;
+		}
+		return !failed;
+	}
+	
+	private static boolean twoThreads(final MFileLogger logger, final MFlightRecorder recorder) throws InterruptedException {
+		Thread chatter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for(int i = 0; i < ROUNDS; i++) {
+					logger.log("chatter " + i, LogSeverity.INFORMATION);
+				}
+			}
+		}, "chatter");
+		Thread trigger = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for(int i = 0; i < ROUNDS; i++) {
+					recorder.log("trigger " + i, LogSeverity.ERROR);
+				}
+			}
+		}, "trigger");
+		chatter.setDaemon(true);
+		trigger.setDaemon(true);
+		chatter.start();
+		trigger.start();
+		
+		long deadline = System.currentTimeMillis() + DEADLOCK_MILLIS;
+		chatter.join(DEADLOCK_MILLIS);
+		trigger.join(Math.max(1, deadline - System.currentTimeMillis()));
+		if(chatter.isAlive() || trigger.isAlive()) {
+			System.out.println("Deadlock between the logger and the recorder: chatter " + chatter.getState() + ", trigger " + trigger.getState());
+			return false;
+		}
+		return true;
+	}
+}
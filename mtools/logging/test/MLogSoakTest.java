@@ -0,0 +1,431 @@
+/* Copyright 2022 Noah McLean
+ *
+ * Redistribution and use in source and binary forms, with
+ * or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or
+ *    promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package mtools.logging.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+import mtools.logging.FacilityNumbers;
+import mtools.logging.LogLayout;
+import mtools.logging.LogSeverity;
+import mtools.logging.MLog;
+import mtools.logging.ShutdownReport;
+
+/**
+ * Load generator that drives {@link MLog} from many threads for a long time and checks what arrived.
+ * Both loggers are used: the file logger writes to a temp directory and the syslog logger sends to a
+ * UDP sink on the loopback interface (MSysLogger only supports UDP).  Every message carries the sending
+ * thread and a per thread sequence number, so after the run the file and the sink can be checked for
+ * lost messages and for messages that arrived out of order.
+ * <p>
+ * Reports sustained throughput, p50/p99/p999 latency of the log calls, loss and ordering violations,
+ * all per severity.  Exits with status 1 if anything was lost or reordered, or if the throughput
+ * is below the minimum, so it can run unattended.
+ * <p>
+ * Arguments, all optional, in the form name=value:
+ * threads (8), rate (total records per second, 0 for as fast as possible, 0), duration (seconds, 60),
+ * async (true), layout (text or json), minThroughput (records per second, 0).
+ * @author Noah
+ *
+ */
+public class MLogSoakTest {
+	
+	//The severity of record n is SEVERITY_MIX[n % SEVERITY_MIX.length], mostly chatter with the occasional emergency.
+	private static final int[] SEVERITY_MIX = buildSeverityMix();
+	private static final String MESSAGE_PREFIX = "soak t=";
+	
+	private static int[] buildSeverityMix() {
+		int[] mix = new int[1000];
+		for(int i = 0; i < mix.length; i++) {
+			if(i == 0)
+				mix[i] = LogSeverity.EMERGENCY;
+			else if(i % 250 == 0)
+				mix[i] = LogSeverity.CRITICAL;
+			else if(i % 50 == 0)
+				mix[i] = LogSeverity.ERROR;
+			else if(i % 10 == 0)
+				mix[i] = LogSeverity.WARNING;
+			else if(i % 2 == 0)
+				mix[i] = LogSeverity.INFORMATION;
+			else
+				mix[i] = LogSeverity.DEBUG;
+		}
+		return mix;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		HashMap<String, String> options = new HashMap<String, String>();
+		for(String arg : args) {
+			int split = arg.indexOf('=');
+			if(split < 1)
+				throw new IllegalArgumentException("Arguments must look like name=value: " + arg);
+			options.put(arg.substring(0, split), arg.substring(split + 1));
+		}
+		
+		final int threads = Integer.parseInt(option(options, "threads", "8"));
+		final long rate = Long.parseLong(option(options, "rate", "0"));
+		final long durationNanos = Long.parseLong(option(options, "duration", "60")) * 1_000_000_000L;
+		boolean async = Boolean.parseBoolean(option(options, "async", "true"));
+		int layout = option(options, "layout", "text").equalsIgnoreCase("json") ? LogLayout.JSON : LogLayout.TEXT;
+		long minThroughput = Long.parseLong(option(options, "minThroughput", "0"));
+		
+		File directory = Files.createTempDirectory("mlog-soak").toFile();
+		File logFile = new File(directory, "soak.log");
+		UdpSink sink = new UdpSink(threads);
+		sink.start();
+		
+		MLog.initFileLogger(logFile.getPath());
+		MLog.initSysLogger("soak", FacilityNumbers.LOCAL_USE_0, InetAddress.getLoopbackAddress());
+		MLog.sysLog.setSyslogPort(sink.getPort());
+		MLog.fileLog.setLayout(layout);
+		MLog.sysLog.setLayout(layout);
+		MLog.fileLog.setAsynchronous(async, 1 << 16);
+		MLog.sysLog.setAsynchronous(async, 1 << 16);
+		MLog.setShutdownTimeout(60_000);
+		
+		System.out.println("Soak: " + threads + " threads, " + (rate == 0 ? "unlimited" : rate + "/s") + ", "
+				+ (durationNanos / 1_000_000_000L) + "s, async " + async + ", " + (layout == LogLayout.JSON ? "json" : "text")
+				+ ", file " + logFile);
+		
+		final LoadThread[] loaders = new LoadThread[threads];
+		final CountDownLatch startGate = new CountDownLatch(1);
+		for(int i = 0; i < threads; i++) {
+			loaders[i] = new LoadThread(i, rate / threads, durationNanos, startGate);
+			loaders[i].start();
+		}
+		
+		long start = System.nanoTime();
+		startGate.countDown();
+		for(LoadThread loader : loaders) {
+			loader.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		
+		ShutdownReport report = MLog.shutdown();
+		//Gives the last datagrams a moment to arrive.
+		Thread.sleep(500);
+		sink.stop();
+		
+		long[] sent = new long[8];
+		Histogram[] latency = new Histogram[8];
+		for(int s = 0; s < 8; s++) {
+			latency[s] = new Histogram();
+		}
+		long total = 0;
+		for(LoadThread loader : loaders) {
+			for(int s = 0; s < 8; s++) {
+				sent[s] += loader.sent[s];
+				latency[s].add(loader.latency[s]);
+			}
+			total += loader.total;
+		}
+		
+		Checker fileCheck = new Checker(threads);
+		readLogFile(logFile, fileCheck);
+		
+		double throughput = total * 1e9 / elapsed;
+		System.out.println();
+		System.out.printf("Sustained throughput: %.0f records/s (%d records in %.1fs)%n", throughput, total, elapsed / 1e9);
+		System.out.println("Shutdown: " + report + ", file logger dropped " + MLog.fileLog.getDroppedCount()
+				+ ", syslog logger dropped " + MLog.sysLog.getDroppedCount());
+		System.out.println();
+		System.out.println("Severity       sent    p50 us    p99 us   p999 us   file lost  file order   udp lost   udp order");
+		
+		boolean failed = false;
+		for(int s = 0; s < 8; s++) {
+			if(sent[s] == 0)
+				continue;
+			long fileLost = sent[s] - fileCheck.received[s];
+			long udpLost = sent[s] - sink.checker.received[s];
+			System.out.printf("%-8d %10d %9.1f %9.1f %9.1f %11d %11d %10d %11d%n", s, sent[s],
+					latency[s].percentile(0.50) / 1e3, latency[s].percentile(0.99) / 1e3, latency[s].percentile(0.999) / 1e3,
+					fileLost, fileCheck.orderViolations[s], udpLost, sink.checker.orderViolations[s]);
+			if(fileLost != 0 || udpLost != 0 || fileCheck.orderViolations[s] != 0 || sink.checker.orderViolations[s] != 0)
+				failed = true;
+		}
+		
+		if(minThroughput > 0 && throughput < minThroughput) {
+			System.out.println("Throughput is below the minimum of " + minThroughput + " records/s");
+			failed = true;
+		}
+		
+		logFile.delete();
+		directory.delete();
+		System.out.println(failed ? "FAILED" : "PASSED");
+		System.exit(failed ? 1 : 0);
+	}
+	
+	private static String option(HashMap<String, String> options, String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+	
+	/**
+	 * Reads the log file back.  Works for both layouts since the message is the only place the prefix shows up.
+	 */
+	private static void readLogFile(File logFile, Checker checker) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				int severity;
+				int at = line.indexOf("\"severity\":");
+				if(at >= 0) {
+					severity = line.charAt(at + 11) - '0';
+				} else {
+					at = line.indexOf(", Severity ");
+					if(at < 0)
+						continue;
+					severity = line.charAt(at + 11) - '0';
+				}
+				checker.check(severity, line);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Keeps the last sequence number seen per thread and severity.
+	 */
+	private static class Checker {
+		final long[] received = new long[8];
+		final long[] orderViolations = new long[8];
+		final long[][] lastSequence;
+		
+		Checker(int threads) {
+			lastSequence = new long[threads][8];
+			for(long[] perThread : lastSequence) {
+				Arrays.fill(perThread, -1);
+			}
+		}
+		
+		void check(int severity, String text) {
+			int at = text.indexOf(MESSAGE_PREFIX);
+			if(at < 0 || severity < 0 || severity > 7)
+				return;
+			
+			int position = at + MESSAGE_PREFIX.length();
+			int thread = 0;
+			while(Character.isDigit(text.charAt(position))) {
+				thread = thread * 10 + (text.charAt(position++) - '0');
+			}
+			//Skips " s="
+			position += 3;
+			long sequence = 0;
+			while(position < text.length() && Character.isDigit(text.charAt(position))) {
+				sequence = sequence * 10 + (text.charAt(position++) - '0');
+			}
+			
+			received[severity]++;
+			if(sequence < lastSequence[thread][severity])
+				orderViolations[severity]++;
+			lastSequence[thread][severity] = sequence;
+		}
+	}
+	
+	/**
+	 * Logs to both loggers at a fixed rate, or as fast as it can, and measures every call.
+	 */
+	private static class LoadThread extends Thread {
+		final int id;
+		final long rate;
+		final long durationNanos;
+		final CountDownLatch startGate;
+		final long[] sent = new long[8];
+		final Histogram[] latency = new Histogram[8];
+		long total;
+		
+		LoadThread(int id, long rate, long durationNanos, CountDownLatch startGate) {
+			super("soak-" + id);
+			this.id = id;
+			this.rate = rate;
+			this.durationNanos = durationNanos;
+			this.startGate = startGate;
+			for(int s = 0; s < 8; s++) {
+				latency[s] = new Histogram();
+			}
+		}
+		
+		@Override
+		public void run() {
+			try {
+				startGate.await();
+			} catch(InterruptedException e) {
+				return;
+			}
+			
+			long start = System.nanoTime();
+			long intervalNanos = rate > 0 ? 1_000_000_000L / rate : 0;
+			String prefix = MESSAGE_PREFIX + id + " s=";
+			long sequence = 0;
+			while(true) {
+				long now = System.nanoTime();
+				if(now - start >= durationNanos)
+					break;
+				
+				if(intervalNanos > 0) {
+					long due = start + sequence * intervalNanos;
+					if(due - now > 0) {
+						LockSupport.parkNanos(due - now);
+						continue;
+					}
+				}
+				
+				int severity = SEVERITY_MIX[(int) (sequence % SEVERITY_MIX.length)];
+				String message = prefix + sequence;
+				long before = System.nanoTime();
+				MLog.fileLog.log(message, severity);
+				MLog.sysLog.log(message, severity);
+				latency[severity].record(System.nanoTime() - before);
+				sent[severity]++;
+				sequence++;
+			}
+			total = sequence;
+		}
+	}
+	
+	/**
+	 * Receives and checks the syslog messages on the loopback interface.
+	 */
+	private static class UdpSink implements Runnable {
+		final DatagramSocket socket;
+		final Checker checker;
+		final Thread thread;
+		volatile boolean running = true;
+		
+		UdpSink(int threads) throws SocketException {
+			socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+			socket.setReceiveBufferSize(16 * 1024 * 1024);
+			socket.setSoTimeout(200);
+			checker = new Checker(threads);
+			thread = new Thread(this, "UDP sink");
+		}
+		
+		int getPort() {
+			return socket.getLocalPort();
+		}
+		
+		void start() {
+			thread.start();
+		}
+		
+		void stop() throws InterruptedException {
+			running = false;
+			thread.join();
+			socket.close();
+		}
+		
+		@Override
+		public void run() {
+			DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+			while(running) {
+				try {
+					socket.receive(packet);
+				} catch(IOException e) {
+					continue;
+				}
+				
+				String text = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+				int end = text.indexOf('>');
+				if(text.charAt(0) != '<' || end < 0)
+					continue;
+				int pri = Integer.parseInt(text.substring(1, end));
+				checker.check(pri % 8, text);
+			}
+		}
+	}
+	
+	/**
+	 * A simple log-linear latency histogram: 16 sub buckets per power of two nanoseconds, about 6% precision.
+	 */
+	private static class Histogram {
+		private static final int SUB_BUCKETS = 16;
+		final long[] counts = new long[64 * SUB_BUCKETS];
+		long count;
+		
+		void record(long nanos) {
+			if(nanos < 1)
+				nanos = 1;
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+			int sub = exponent < 4 ? (int) (nanos & (SUB_BUCKETS - 1)) : (int) ((nanos >>> (exponent - 4)) & (SUB_BUCKETS - 1));
+			counts[exponent * SUB_BUCKETS + sub]++;
+			count++;
+		}
+		
+		void add(Histogram other) {
+			for(int i = 0; i < counts.length; i++) {
+				counts[i] += other.counts[i];
+			}
+			count += other.count;
+		}
+		
+		/**
+		 * Returns the upper bound of the bucket holding the passed percentile, in nanoseconds.
+		 */
+		long percentile(double fraction) {
+			if(count == 0)
+				return 0;
+			
+			long target = (long) Math.ceil(count * fraction);
+			long seen = 0;
+			for(int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if(seen >= target) {
+					int exponent = i / SUB_BUCKETS;
+					int sub = i % SUB_BUCKETS;
+					if(exponent < 4)
+						return sub + 1;
+					return ((long) (SUB_BUCKETS + sub + 1)) << (exponent - 4);
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+	}
+}